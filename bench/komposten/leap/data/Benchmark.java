@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+/**
+ * A case for {@link BenchmarkRunner}: an operation that is run over and over
+ * while it is being measured.
+ * <br />An operation processes a batch of frames (e.g. writes a whole
+ * recording), and the results are reported per frame, so that cases with
+ * different batch sizes can be compared.
+ * @author Komposten (aka Jakob Hjelm)
+ */
+abstract class Benchmark
+{
+  private String name_;
+  
+  
+  
+  /**
+   * @param name The name of the case, as <code>group.case</code>. Cases are
+   *          picked on the command line by prefixes of their names.
+   */
+  protected Benchmark(String name)
+  {
+    name_ = name;
+  }
+  
+  
+  
+  public String getName()
+  {
+    return name_;
+  }
+  
+  
+  
+  /**
+   * Prepares the case before it is warmed up.
+   * @throws SkipException If the case can not be run here.
+   */
+  protected void setUp() throws Exception
+  {
+  }
+  
+  
+  
+  /**
+   * Runs the operation once.
+   * @return The number of frames the operation processed.
+   */
+  protected abstract int run() throws Exception;
+  
+  
+  
+  /** Releases what {@link #setUp()} created. Called even if the case failed. */
+  protected void tearDown() throws Exception
+  {
+  }
+  
+  
+  
+  /** Thrown by {@link Benchmark#setUp()} when a case can not be run. */
+  static class SkipException extends Exception
+  {
+    private static final long serialVersionUID = 1L;
+    
+    public SkipException(String reason)
+    {
+      super(reason);
+    }
+  }
+}
@@ -0,0 +1,675 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import com.leapmotion.leap.Controller;
+
+/**
+ * Measures the capture, storage and serialisation paths on synthetic frames
+ * (see {@link SyntheticFrameSource}), without any dependencies.
+ * <br />Each case is warmed up for a number of iterations and then measured
+ * for a number of iterations of a fixed length, like JMH's throughput and
+ * average time modes. For each case it reports:
+ * <ul>
+ * <li>the throughput in frames per second, with its standard deviation
+ * over the iterations,</li>
+ * <li>the average time per frame,</li>
+ * <li>the bytes allocated per frame and the allocation rate, counted by the
+ * JVM for every thread (like <code>-prof gc</code>), and</li>
+ * <li>the number of garbage collections and the time spent in them.</li>
+ * </ul>
+ * Usage: <code>BenchmarkRunner [-frames n] [-hands n] [-warmup n]
+ * [-iterations n] [-time ms] [case prefix...]</code>
+ * @author Komposten (aka Jakob Hjelm)
+ */
+class BenchmarkRunner
+{
+  private static final String FORMAT = "%-26s %12s %10s %10s %10s %10s %5s %7s%n";
+  
+  private static com.sun.management.ThreadMXBean threads_ =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+  
+  private int      frameCount_ = 1000;
+  private int      handCount_  = 2;
+  private int      warmup_     = 3;
+  private int      iterations_ = 5;
+  private long     timeMillis_ = 1000;
+  private String[] prefixes_   = new String[0];
+  
+  /** Keeps the results of the cases alive so that they can not be optimised away. */
+  static volatile long sink_;
+  
+  
+  
+  public static void main(String[] args)
+  {
+    BenchmarkRunner runner = new BenchmarkRunner();
+    
+    try
+    {
+      runner.parseArguments(args);
+    }
+    catch (IllegalArgumentException e)
+    {
+      System.err.println(e.getMessage());
+      System.err.println("Usage: BenchmarkRunner [-frames n] [-hands n] [-warmup n] [-iterations n] [-time ms] [case prefix...]");
+      System.exit(2);
+    }
+    
+    if (!threads_.isThreadAllocatedMemorySupported())
+      System.err.println("Allocation can not be measured on this JVM.");
+    else
+      threads_.setThreadAllocatedMemoryEnabled(true);
+    
+    System.exit(runner.runAll() ? 0 : 1);
+  }
+  
+  
+  
+  private void parseArguments(String[] args)
+  {
+    List<String> prefixes = new ArrayList<String>();
+    
+    for (int i = 0; i < args.length; i++)
+    {
+      String arg = args[i];
+      
+      if (!arg.startsWith("-"))
+      {
+        prefixes.add(arg);
+        continue;
+      }
+      if (i + 1 >= args.length)
+        throw new IllegalArgumentException("Missing value for " + arg + "!");
+      
+      long value;
+      try
+      {
+        value = Long.parseLong(args[++i]);
+      }
+      catch (NumberFormatException e)
+      {
+        throw new IllegalArgumentException("Not a number: " + args[i]);
+      }
+      if (value < (arg.equals("-hands") || arg.equals("-warmup") ? 0 : 1))
+        throw new IllegalArgumentException("Value out of range for " + arg + ": " + value);
+      
+      if (arg.equals("-frames"))
+        frameCount_ = (int) value;
+      else if (arg.equals("-hands"))
+        handCount_ = (int) value;
+      else if (arg.equals("-warmup"))
+        warmup_ = (int) value;
+      else if (arg.equals("-iterations"))
+        iterations_ = (int) value;
+      else if (arg.equals("-time"))
+        timeMillis_ = value;
+      else
+        throw new IllegalArgumentException("Unknown option: " + arg);
+    }
+    
+    prefixes_ = prefixes.toArray(prefixes_);
+  }
+  
+  
+  
+  /** @return <code>false</code> if a case failed. */
+  private boolean runAll()
+  {
+    FrameData[] frames  = generateFrames();
+    boolean     success = true;
+    
+    System.out.printf(Locale.ROOT, "%d frames, %d hands, %d warmup and %d measured iterations of %d ms.%n%n",
+        frameCount_, handCount_, warmup_, iterations_, timeMillis_);
+    System.out.printf(Locale.ROOT, FORMAT, "Case", "frames/s", "+/-", "ns/frame", "B/frame", "MB/s alloc", "GCs", "GC ms");
+    
+    for (Benchmark benchmark : createBenchmarks(frames))
+    {
+      if (selected(benchmark.getName()))
+        success &= run(benchmark);
+    }
+    
+    return success;
+  }
+  
+  
+  
+  private FrameData[] generateFrames()
+  {
+    SyntheticFrameSource source = new SyntheticFrameSource(0, handCount_, true);
+    FrameData[]          frames = new FrameData[frameCount_];
+    
+    source.begin(CaptureProfile.FULL);
+    for (int i = 0; i < frames.length; i++)
+      frames[i] = source.generate(i);
+    
+    return frames;
+  }
+  
+  
+  
+  private boolean selected(String name)
+  {
+    if (prefixes_.length == 0)
+      return true;
+    
+    for (String prefix : prefixes_)
+    {
+      if (name.startsWith(prefix))
+        return true;
+    }
+    
+    return false;
+  }
+  
+  
+  
+  private boolean run(Benchmark benchmark)
+  {
+    String name = benchmark.getName();
+    
+    try
+    {
+      benchmark.setUp();
+      
+      for (int i = 0; i < warmup_; i++)
+        measure(benchmark);
+      
+      Measurement total      = new Measurement();
+      double[]    throughput = new double[iterations_];
+      
+      for (int i = 0; i < iterations_; i++)
+      {
+        Measurement iteration = measure(benchmark);
+        throughput[i] = iteration.frames_ * 1e9 / iteration.nanos_;
+        total.add(iteration);
+      }
+      
+      report(name, total, throughput);
+      return true;
+    }
+    catch (Benchmark.SkipException e)
+    {
+      System.out.printf(Locale.ROOT, "%-26s skipped: %s%n", name, e.getMessage());
+      return true;
+    }
+    catch (Exception e)
+    {
+      System.out.printf(Locale.ROOT, "%-26s failed: %s%n", name, e);
+      e.printStackTrace();
+      return false;
+    }
+    finally
+    {
+      try
+      {
+        benchmark.tearDown();
+      }
+      catch (Exception e)
+      {
+        e.printStackTrace();
+      }
+    }
+  }
+  
+  
+  
+  /** Runs the operation of a case over and over for one iteration. */
+  private Measurement measure(Benchmark benchmark) throws Exception
+  {
+    Measurement measurement = new Measurement();
+    long        gcCount     = gcCount();
+    long        gcMillis    = gcMillis();
+    long        allocated   = allocatedBytes();
+    long        start       = System.nanoTime();
+    long        end         = start + timeMillis_ * 1000000;
+    long        now;
+    
+    do
+    {
+      measurement.frames_ += benchmark.run();
+    }
+    while ((now = System.nanoTime()) < end);
+    
+    measurement.nanos_     = now - start;
+    measurement.allocated_ = allocatedBytes() - allocated;
+    measurement.gcCount_   = gcCount() - gcCount;
+    measurement.gcMillis_  = gcMillis() - gcMillis;
+    
+    return measurement;
+  }
+  
+  
+  
+  private void report(String name, Measurement total, double[] throughput)
+  {
+    double mean     = 0;
+    double variance = 0;
+    
+    for (double value : throughput)
+      mean += value / throughput.length;
+    for (double value : throughput)
+      variance += (value - mean) * (value - mean) / Math.max(1, throughput.length - 1);
+    
+    double seconds = total.nanos_ / 1e9;
+    
+    System.out.printf(Locale.ROOT, FORMAT, name,
+        String.format(Locale.ROOT, "%.1f", mean),
+        String.format(Locale.ROOT, "%.1f", Math.sqrt(variance)),
+        String.format(Locale.ROOT, "%.1f", (double) total.nanos_ / total.frames_),
+        String.format(Locale.ROOT, "%.1f", (double) total.allocated_ / total.frames_),
+        String.format(Locale.ROOT, "%.1f", total.allocated_ / seconds / (1024 * 1024)),
+        total.gcCount_, total.gcMillis_);
+  }
+  
+  
+  
+  /** @return The bytes allocated so far by all live threads, or 0 if it can not be measured. */
+  private static long allocatedBytes()
+  {
+    if (!threads_.isThreadAllocatedMemoryEnabled())
+      return 0;
+    
+    long total = 0;
+    for (long bytes : threads_.getThreadAllocatedBytes(threads_.getAllThreadIds()))
+    {
+      if (bytes > 0)
+        total += bytes;
+    }
+    
+    return total;
+  }
+  
+  
+  
+  private static long gcCount()
+  {
+    long total = 0;
+    for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans())
+      total += Math.max(0, collector.getCollectionCount());
+    return total;
+  }
+  
+  
+  
+  private static long gcMillis()
+  {
+    long total = 0;
+    for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans())
+      total += Math.max(0, collector.getCollectionTime());
+    return total;
+  }
+  
+  
+  
+  private List<Benchmark> createBenchmarks(final FrameData[] frames)
+  {
+    List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+    
+    benchmarks.add(new LeapCapture());
+    benchmarks.add(new PipelineCapture(frames));
+    
+    benchmarks.add(new Benchmark("store.add")
+    {
+      @Override
+      protected int run()
+      {
+        FrameStore store = new FrameStore();
+        for (FrameData frame : frames)
+          store.add(frame);
+        sink_ += store.size();
+        return frames.length;
+      }
+    });
+    
+    benchmarks.add(new Benchmark("store.get")
+    {
+      private FrameStore store_;
+      
+      @Override
+      protected void setUp()
+      {
+        store_ = new FrameStore();
+        for (FrameData frame : frames)
+          store_.add(frame);
+      }
+      
+      @Override
+      protected int run()
+      {
+        long sum = 0;
+        for (int i = 0; i < store_.size(); i++)
+          sum += store_.get(i).frameId;
+        sink_ += sum;
+        return store_.size();
+      }
+    });
+    
+    benchmarks.add(new JsonWrite("json.write.bones", frames, FrameJson.ALL));
+    benchmarks.add(new JsonWrite("json.write.noBones", frames, 0));
+    
+    benchmarks.add(new FormatRead("json.parse", frames, RecordingFormat.JSON));
+    
+    for (RecordingFormat format : RecordingFormat.values())
+    {
+      String name = format.name().toLowerCase(Locale.ROOT);
+      benchmarks.add(new FormatWrite("format.write." + name, frames, format));
+      benchmarks.add(new FormatRead("format.read." + name, frames, format));
+    }
+    
+    return benchmarks;
+  }
+  
+  
+  
+  /** The results of one or more iterations of a case. */
+  private static class Measurement
+  {
+    private long frames_;
+    private long nanos_;
+    private long allocated_;
+    private long gcCount_;
+    private long gcMillis_;
+    
+    void add(Measurement measurement)
+    {
+      frames_     += measurement.frames_;
+      nanos_      += measurement.nanos_;
+      allocated_  += measurement.allocated_;
+      gcCount_    += measurement.gcCount_;
+      gcMillis_   += measurement.gcMillis_;
+    }
+  }
+  
+  
+  
+  /**
+   * Copies the latest frame of a connected controller with the full
+   * profile. Needs the Leap natives and a controller that sees hands, so it
+   * is skipped otherwise.
+   */
+  private static class LeapCapture extends Benchmark
+  {
+    private static final int  BATCH         = 100;
+    private static final long CONNECT_NANOS = 3000000000L;
+    
+    private Controller   controller_;
+    private FrameCapture capture_;
+    
+    LeapCapture()
+    {
+      super("capture.leap");
+    }
+    
+    @Override
+    protected void setUp() throws Exception
+    {
+      // LeapJNI exits the JVM if it can not load its library, so try it first.
+      try
+      {
+        System.loadLibrary("LeapJava");
+      }
+      catch (UnsatisfiedLinkError e)
+      {
+        throw new SkipException("the Leap natives are not available");
+      }
+      
+      controller_ = new Controller();
+      
+      long end = System.nanoTime() + CONNECT_NANOS;
+      while (!controller_.isConnected() || controller_.frame().hands().isEmpty())
+      {
+        if (System.nanoTime() > end)
+          throw new SkipException("no controller with hands in view");
+        Thread.sleep(10);
+      }
+      
+      capture_ = new FrameCapture(CaptureProfile.FULL);
+    }
+    
+    @Override
+    protected int run()
+    {
+      long sum = 0;
+      for (int i = 0; i < BATCH; i++)
+        sum += capture_.capture(controller_.frame()).frameId;
+      sink_ += sum;
+      return BATCH;
+    }
+    
+    @Override
+    protected void tearDown()
+    {
+      if (controller_ != null)
+        controller_.delete();
+    }
+  }
+  
+  
+  
+  /**
+   * Publishes a recording to a {@link RecordingPipeline} that stores it in a
+   * {@link FrameStore}, and waits for it to be stored: the cost of a frame
+   * from the capture callback until it is in memory.
+   */
+  private static class PipelineCapture extends Benchmark
+  {
+    private FrameData[]       frames_;
+    private RecordingPipeline pipeline_;
+    
+    PipelineCapture(FrameData[] frames)
+    {
+      super("capture.pipeline");
+      frames_ = frames;
+    }
+    
+    @Override
+    protected void setUp()
+    {
+      // Room for every frame, so that none are dropped.
+      pipeline_ = new RecordingPipeline(frames_.length);
+    }
+    
+    @Override
+    protected int run() throws IOException
+    {
+      pipeline_.start(new FrameStore());
+      for (FrameData frame : frames_)
+        pipeline_.publish(frame);
+      return (int) pipeline_.stop();
+    }
+    
+    @Override
+    protected void tearDown() throws IOException
+    {
+      if (pipeline_ != null)
+        pipeline_.shutdown();
+    }
+  }
+  
+  
+  
+  /** Serialises a recording to JSON in memory, without any I/O. */
+  private static class JsonWrite extends Benchmark
+  {
+    private FrameData[] frames_;
+    private int         fields_;
+    
+    JsonWrite(String name, FrameData[] frames, int fields)
+    {
+      super(name);
+      frames_ = frames;
+      fields_ = fields;
+    }
+    
+    @Override
+    protected int run() throws IOException
+    {
+      NullWriter      output = new NullWriter();
+      JsonFrameWriter writer = new JsonFrameWriter(output, fields_);
+      
+      writer.beginArray();
+      for (FrameData frame : frames_)
+        writer.write(frame);
+      writer.endArray();
+      writer.close();
+      
+      sink_ += output.length_;
+      return frames_.length;
+    }
+  }
+  
+  
+  
+  /** Writes a recording to a file in one of the recording formats. */
+  private static class FormatWrite extends Benchmark
+  {
+    private FrameData[]     frames_;
+    private RecordingFormat format_;
+    private File            file_;
+    
+    FormatWrite(String name, FrameData[] frames, RecordingFormat format)
+    {
+      super(name);
+      frames_ = frames;
+      format_ = format;
+    }
+    
+    @Override
+    protected void setUp() throws IOException
+    {
+      file_ = createTempFile(format_);
+    }
+    
+    @Override
+    protected int run() throws IOException
+    {
+      writeRecording(file_, format_, frames_);
+      sink_ += file_.length();
+      return frames_.length;
+    }
+    
+    @Override
+    protected void tearDown()
+    {
+      if (file_ != null)
+        file_.delete();
+    }
+  }
+  
+  
+  
+  /** Reads a recording that was saved in one of the recording formats. */
+  private static class FormatRead extends Benchmark
+  {
+    private FrameData[]     frames_;
+    private RecordingFormat format_;
+    private File            file_;
+    
+    FormatRead(String name, FrameData[] frames, RecordingFormat format)
+    {
+      super(name);
+      frames_ = frames;
+      format_ = format;
+    }
+    
+    @Override
+    protected void setUp() throws IOException
+    {
+      file_ = createTempFile(format_);
+      writeRecording(file_, format_, frames_);
+    }
+    
+    @Override
+    protected int run() throws IOException
+    {
+      FrameReader reader = format_.createReader(file_);
+      FrameData   frame;
+      int         count  = 0;
+      long        sum    = 0;
+      
+      try
+      {
+        while ((frame = reader.next()) != null)
+        {
+          sum += frame.frameId;
+          count++;
+        }
+      }
+      finally
+      {
+        reader.close();
+      }
+      
+      sink_ += sum;
+      return count;
+    }
+    
+    @Override
+    protected void tearDown()
+    {
+      if (file_ != null)
+        file_.delete();
+    }
+  }
+  
+  
+  
+  private static File createTempFile(RecordingFormat format) throws IOException
+  {
+    File file = File.createTempFile("benchmark", "." + format.getExtension());
+    file.deleteOnExit();
+    return file;
+  }
+  
+  
+  
+  private static void writeRecording(File file, RecordingFormat format, FrameData[] frames) throws IOException
+  {
+    FrameSink writer = format.createWriter(file, CaptureProfile.FULL);
+    
+    try
+    {
+      for (FrameData frame : frames)
+        writer.write(frame);
+    }
+    finally
+    {
+      writer.close();
+    }
+  }
+  
+  
+  
+  /** A writer that only counts the characters written to it. */
+  private static class NullWriter extends Writer
+  {
+    private long length_;
+    
+    @Override
+    public void write(char[] buffer, int offset, int length)
+    {
+      length_ += length;
+    }
+    
+    @Override
+    public void flush()
+    {
+    }
+    
+    @Override
+    public void close()
+    {
+    }
+  }
+}
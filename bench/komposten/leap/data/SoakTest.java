@@ -0,0 +1,517 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+
+/**
+ * Records for a long time without a GUI, the way the recorder does, and
+ * reports how well it held up: the heap high-water mark, the GC pauses, how
+ * late the frames were delivered, how many frames were delivered, captured
+ * and persisted, and how long the final save took.
+ * <br />The frames come from a {@link SyntheticFrameSource} at a given frame
+ * rate, or from a {@link ReplayFrameSource}. They go through a
+ * {@link RecordingPipeline} into a {@link FrameStore} that is saved when the
+ * recording stops (like "Save All"), or straight into a file (like "Stream to
+ * disk"). The saved file is read back to count the persisted frames.
+ * <br />Budgets can be given for the heap, the pauses, the lag, dropped
+ * frames, the save time and the file size. The exit code is 0 if the run kept
+ * within them, 1 if a budget was exceeded, 2 for bad arguments and 3 if the
+ * recording failed.
+ * <br />Usage: <code>SoakTest [options]</code>, see {@link #USAGE}.
+ * @author Komposten (aka Jakob Hjelm)
+ */
+class SoakTest
+{
+  static final String USAGE = "Usage: SoakTest [options]\n"
+      + "  -fps n           Frames per second of the synthetic source (default 120).\n"
+      + "  -hands n         Hands per synthetic frame (default 2).\n"
+      + "  -replay file     Replay a recording instead of generating frames.\n"
+      + "  -speed x         Replay speed, 0 for max speed (default 1).\n"
+      + "  -duration s      How long to record, in seconds (default 60).\n"
+      + "  -profile name    palm, fingertips, skeleton or full (default full).\n"
+      + "  -noVelocities    Leave out palm and tip velocities.\n"
+      + "  -format name     json, lrec or lrec_compact (default json).\n"
+      + "  -stream          Write the frames to the file while recording.\n"
+      + "  -dir path        Where to save the recording (default: a temporary file, deleted afterwards).\n"
+      + "  -report s        Seconds between progress lines, 0 for none (default 60).\n"
+      + "  -noVerify        Do not read the file back to count the persisted frames.\n"
+      + "Budgets (exit code 1 if exceeded):\n"
+      + "  -maxHeapMb n     Heap used.\n"
+      + "  -maxPauseMs n    Longest GC pause.\n"
+      + "  -maxLagMs n      Longest delay of a frame beyond its interval.\n"
+      + "  -maxDropped n    Frames dropped or lost between delivery and the file.\n"
+      + "  -maxSaveMs n     Time to save (or finish the stream) after stopping.\n"
+      + "  -maxFileMb n     Size of the saved file.";
+  
+  private static final long SAMPLE_MILLIS = 100;
+  
+  private double          fps_          = 120;
+  private int             handCount_    = 2;
+  private File            replay_;
+  private double          speed_        = 1;
+  private double          duration_     = 60;
+  private CaptureProfile  profile_      = CaptureProfile.FULL;
+  private RecordingFormat format_       = RecordingFormat.JSON;
+  private boolean         stream_;
+  private File            directory_;
+  private double          reportEvery_  = 60;
+  private boolean         verify_       = true;
+  
+  private double maxHeapMb_   = Double.NaN;
+  private double maxPauseMs_  = Double.NaN;
+  private double maxLagMs_    = Double.NaN;
+  private double maxDropped_  = Double.NaN;
+  private double maxSaveMs_   = Double.NaN;
+  private double maxFileMb_   = Double.NaN;
+  
+  private RecordingPipeline pipeline_;
+  private Set<String>       heapPools_;
+  private List<Long>        pauses_ = new ArrayList<Long>();
+  
+  private volatile long      heapHighWater_;
+  private volatile long      liveHighWater_;
+  private volatile long      delivered_;
+  private volatile long      lastDelivery_;
+  private volatile long      maxInterval_;
+  private volatile long      lateFrames_;
+  private volatile boolean   ended_;
+  private volatile Exception error_;
+  
+  
+  
+  public static void main(String[] args)
+  {
+    SoakTest test = new SoakTest();
+    
+    try
+    {
+      test.parseArguments(args);
+    }
+    catch (IllegalArgumentException e)
+    {
+      System.err.println(e.getMessage());
+      System.err.println(USAGE);
+      System.exit(2);
+    }
+    
+    try
+    {
+      System.exit(test.run() ? 0 : 1);
+    }
+    catch (Exception e)
+    {
+      System.err.println("The soak test failed: " + e);
+      e.printStackTrace();
+      System.exit(3);
+    }
+  }
+  
+  
+  
+  private void parseArguments(String[] args)
+  {
+    for (int i = 0; i < args.length; i++)
+    {
+      String arg = args[i];
+      
+      if (arg.equals("-stream"))
+        stream_ = true;
+      else if (arg.equals("-noVerify"))
+        verify_ = false;
+      else if (arg.equals("-noVelocities"))
+        profile_ = profile_.without(CaptureProfile.VELOCITIES);
+      else if (i + 1 >= args.length)
+        throw new IllegalArgumentException("Unknown option or missing value: " + arg);
+      else if (arg.equals("-replay"))
+        replay_ = new File(args[++i]);
+      else if (arg.equals("-dir"))
+        directory_ = new File(args[++i]);
+      else if (arg.equals("-profile"))
+        profile_ = CommandLineRecorder.parseProfile(args[++i], profile_.captures(CaptureProfile.VELOCITIES));
+      else if (arg.equals("-format"))
+        format_ = CommandLineRecorder.parseFormat(args[++i]);
+      else if (arg.equals("-fps"))
+        fps_ = CommandLineRecorder.parseNumber(arg, args[++i]);
+      else if (arg.equals("-hands"))
+        handCount_ = (int) CommandLineRecorder.parseNumber(arg, args[++i]);
+      else if (arg.equals("-speed"))
+        speed_ = CommandLineRecorder.parseNumber(arg, args[++i]);
+      else if (arg.equals("-duration"))
+        duration_ = CommandLineRecorder.parseNumber(arg, args[++i]);
+      else if (arg.equals("-report"))
+        reportEvery_ = CommandLineRecorder.parseNumber(arg, args[++i]);
+      else if (arg.equals("-maxHeapMb"))
+        maxHeapMb_ = CommandLineRecorder.parseNumber(arg, args[++i]);
+      else if (arg.equals("-maxPauseMs"))
+        maxPauseMs_ = CommandLineRecorder.parseNumber(arg, args[++i]);
+      else if (arg.equals("-maxLagMs"))
+        maxLagMs_ = CommandLineRecorder.parseNumber(arg, args[++i]);
+      else if (arg.equals("-maxDropped"))
+        maxDropped_ = CommandLineRecorder.parseNumber(arg, args[++i]);
+      else if (arg.equals("-maxSaveMs"))
+        maxSaveMs_ = CommandLineRecorder.parseNumber(arg, args[++i]);
+      else if (arg.equals("-maxFileMb"))
+        maxFileMb_ = CommandLineRecorder.parseNumber(arg, args[++i]);
+      else
+        throw new IllegalArgumentException("Unknown option: " + arg);
+    }
+    
+    if (replay_ == null && fps_ == 0)
+      throw new IllegalArgumentException("The synthetic source needs a frame rate above 0.");
+  }
+  
+  
+  
+  /** @return <code>true</code> if the run kept within its budgets. */
+  private boolean run() throws Exception
+  {
+    FrameSource source = (replay_ != null ? new ReplayFrameSource(replay_, speed_) : new SyntheticFrameSource(fps_, handCount_, true));
+    File        file   = createFile();
+    FrameStore  store  = new FrameStore();
+    FrameSink   writer = (stream_ ? format_.createWriter(file, profile_) : null);
+    
+    watchGarbageCollections();
+    
+    pipeline_ = new RecordingPipeline();
+    source.open(listener_);
+    pipeline_.start(stream_ ? writer : store);
+    
+    long start = System.nanoTime();
+    source.start(profile_);
+    
+    waitForEnd(start);
+    
+    source.stop();
+    long recordNanos = System.nanoTime() - start;
+    long saveStart   = System.nanoTime();
+    long written     = pipeline_.stop();
+    
+    if (!stream_)
+      written = save(store, file);
+    
+    long saveNanos = System.nanoTime() - saveStart;
+    source.close();
+    pipeline_.shutdown();
+    sampleHeap();
+    
+    if (error_ != null)
+      throw error_;
+    
+    long persisted = (verify_ ? countFrames(file) : written);
+    long fileSize  = file.length();
+    
+    if (directory_ == null)
+      file.delete();
+    
+    return report(recordNanos, written, persisted, saveNanos, fileSize);
+  }
+  
+  
+  
+  private File createFile() throws IOException
+  {
+    String name = "soak-" + System.currentTimeMillis();
+    
+    if (directory_ == null)
+    {
+      File file = File.createTempFile(name, "." + format_.getExtension());
+      file.deleteOnExit();
+      return file;
+    }
+    
+    directory_.mkdirs();
+    return new File(directory_, name + "." + format_.getExtension());
+  }
+  
+  
+  
+  /** Waits until the duration has passed or the source has ended, sampling the heap and reporting progress. */
+  private void waitForEnd(long start) throws InterruptedException
+  {
+    long end        = start + (long) (duration_ * 1e9);
+    long nextReport = start + (long) (reportEvery_ * 1e9);
+    long now;
+    
+    while (!ended_ && (now = System.nanoTime()) < end)
+    {
+      sampleHeap();
+      
+      if (reportEvery_ > 0 && now >= nextReport)
+      {
+        System.out.printf(Locale.ROOT, "%6.0f s: delivered %d, captured %d, dropped %d, queued %d, heap %.1f MB%n",
+            (now - start) / 1e9, delivered_, pipeline_.getFramesCaptured(), pipeline_.getFramesDropped(),
+            pipeline_.getQueueSize(), heapUsed() / 1048576.0);
+        nextReport += (long) (reportEvery_ * 1e9);
+      }
+      
+      Thread.sleep(Math.min(SAMPLE_MILLIS, Math.max(1, (end - now) / 1000000)));
+    }
+  }
+  
+  
+  
+  /** Saves the store to the file like "Save All" does. */
+  private long save(FrameStore store, File file) throws IOException
+  {
+    FrameSink writer = format_.createWriter(file, profile_);
+    
+    try
+    {
+      for (int i = 0; i < store.size(); i++)
+      {
+        writer.write(store.get(i));
+        if ((i & 1023) == 0)
+          sampleHeap();
+      }
+    }
+    finally
+    {
+      writer.close();
+    }
+    
+    return store.size();
+  }
+  
+  
+  
+  private long countFrames(File file) throws IOException
+  {
+    FrameReader reader = format_.createReader(file);
+    long        count  = 0;
+    
+    try
+    {
+      while (reader.next() != null)
+        count++;
+    }
+    finally
+    {
+      reader.close();
+    }
+    
+    return count;
+  }
+  
+  
+  
+  private FrameSource.Listener listener_ = new FrameSource.Listener()
+  {
+    @Override
+    public void onStatus(String message)
+    {
+      System.out.println(message);
+    }
+    
+    @Override
+    public void onFrame(FrameData frame)
+    {
+      long now = System.nanoTime();
+      
+      if (delivered_ > 0)
+      {
+        long interval = now - lastDelivery_;
+        if (interval > maxInterval_)
+          maxInterval_ = interval;
+        if (expectedInterval() > 0 && interval > 2 * expectedInterval())
+          lateFrames_++;
+      }
+      
+      lastDelivery_ = now;
+      delivered_++;
+      pipeline_.publish(frame);
+    }
+    
+    @Override
+    public void onEnd()
+    {
+      System.out.println("The source has no more frames.");
+      ended_ = true;
+    }
+    
+    @Override
+    public void onError(Exception e)
+    {
+      error_ = e;
+      ended_ = true;
+    }
+  };
+  
+  
+  
+  /** @return The nanoseconds between two frames of the synthetic source, or 0 for a replay. */
+  private long expectedInterval()
+  {
+    return (replay_ == null ? (long) (1e9 / fps_) : 0);
+  }
+  
+  
+  
+  private void watchGarbageCollections()
+  {
+    heapPools_ = new HashSet<String>();
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+    {
+      if (pool.getType() == MemoryType.HEAP)
+        heapPools_.add(pool.getName());
+    }
+    
+    for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans())
+    {
+      if (collector instanceof NotificationEmitter)
+        ((NotificationEmitter) collector).addNotificationListener(gcListener_, null, null);
+    }
+  }
+  
+  
+  
+  /**
+   * Records the duration of each stop-the-world collection and the heap that
+   * was still in use after it.
+   */
+  private NotificationListener gcListener_ = new NotificationListener()
+  {
+    @Override
+    public void handleNotification(Notification notification, Object handback)
+    {
+      if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION))
+        return;
+      
+      GarbageCollectionNotificationInfo info =
+          GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+      GcInfo gcInfo = info.getGcInfo();
+      
+      // Concurrent cycles run alongside the application and do not pause it.
+      if (info.getGcAction().contains("concurrent") || info.getGcName().contains("Concurrent"))
+        return;
+      
+      long live = 0;
+      for (String pool : heapPools_)
+      {
+        MemoryUsage usage = gcInfo.getMemoryUsageAfterGc().get(pool);
+        if (usage != null)
+          live += usage.getUsed();
+      }
+      
+      synchronized (pauses_)
+      {
+        pauses_.add(gcInfo.getDuration());
+        if (live > liveHighWater_)
+          liveHighWater_ = live;
+      }
+    }
+  };
+  
+  
+  
+  private void sampleHeap()
+  {
+    long used = heapUsed();
+    if (used > heapHighWater_)
+      heapHighWater_ = used;
+  }
+  
+  
+  
+  private static long heapUsed()
+  {
+    return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+  }
+  
+  
+  
+  /** Prints the results. @return <code>true</code> if they were within the budgets. */
+  private boolean report(long recordNanos, long written, long persisted, long saveNanos, long fileSize)
+  {
+    long[] pauses;
+    synchronized (pauses_)
+    {
+      pauses = new long[pauses_.size()];
+      for (int i = 0; i < pauses.length; i++)
+        pauses[i] = pauses_.get(i);
+    }
+    Arrays.sort(pauses);
+    
+    long   delivered = delivered_;
+    long   captured  = pipeline_.getFramesCaptured();
+    long   lost      = delivered - persisted;
+    double heapMb    = heapHighWater_ / 1048576.0;
+    double lagMs     = Math.max(0, maxInterval_ - expectedInterval()) / 1e6;
+    double saveMs    = saveNanos / 1e6;
+    double fileMb    = fileSize / 1048576.0;
+    long   maxPause  = (pauses.length > 0 ? pauses[pauses.length - 1] : 0);
+    long   total     = 0;
+    
+    for (long pause : pauses)
+      total += pause;
+    
+    System.out.println();
+    System.out.printf(Locale.ROOT, "source:          %s%n", (replay_ != null ? "replay of " + replay_.getName() + " at " + speed_ + "x" : "synthetic, " + fps_ + " fps, " + handCount_ + " hands"));
+    System.out.printf(Locale.ROOT, "profile:         %s%n", profile_);
+    System.out.printf(Locale.ROOT, "format:          %s%s%n", format_.name().toLowerCase(Locale.ROOT), (stream_ ? ", streamed" : ", saved from memory"));
+    System.out.printf(Locale.ROOT, "recorded:        %.1f s (%.1f frames/s)%n", recordNanos / 1e9, delivered * 1e9 / recordNanos);
+    System.out.printf(Locale.ROOT, "frames:          delivered %d, captured %d, dropped %d, written %d, persisted %d%n",
+        delivered, captured, pipeline_.getFramesDropped(), written, persisted);
+    System.out.printf(Locale.ROOT, "heap high-water: %.1f MB used, %.1f MB live after GC, %.1f MB max%n",
+        heapMb, liveHighWater_ / 1048576.0, Runtime.getRuntime().maxMemory() / 1048576.0);
+    System.out.printf(Locale.ROOT, "gc pauses:       %d, total %d ms, p50 %d ms, p90 %d ms, p99 %d ms, max %d ms%n",
+        pauses.length, total, percentile(pauses, 50), percentile(pauses, 90), percentile(pauses, 99), maxPause);
+    System.out.printf(Locale.ROOT, "frame lag:       max %.1f ms, %d frames more than twice their interval late%n", lagMs, lateFrames_);
+    System.out.printf(Locale.ROOT, "save:            %.1f ms%n", saveMs);
+    System.out.printf(Locale.ROOT, "file:            %.2f MB (%.0f bytes/frame)%n", fileMb, (persisted > 0 ? (double) fileSize / persisted : 0));
+    
+    boolean passed = true;
+    passed &= check("heap", heapMb, maxHeapMb_, "MB");
+    passed &= check("gc pause", maxPause, maxPauseMs_, "ms");
+    passed &= check("frame lag", lagMs, maxLagMs_, "ms");
+    passed &= check("dropped frames", lost, maxDropped_, "");
+    passed &= check("save time", saveMs, maxSaveMs_, "ms");
+    passed &= check("file size", fileMb, maxFileMb_, "MB");
+    
+    System.out.println(passed ? "PASSED" : "FAILED");
+    return passed;
+  }
+  
+  
+  
+  /** @return The value below which <code>percent</code> percent of the sorted values lie. */
+  private static long percentile(long[] sorted, int percent)
+  {
+    if (sorted.length == 0)
+      return 0;
+    return sorted[Math.min(sorted.length - 1, (int) Math.ceil(sorted.length * percent / 100.0) - 1)];
+  }
+  
+  
+  
+  /** @return <code>false</code> (after printing why) if <code>value</code> exceeds a given budget. */
+  private static boolean check(String name, double value, double budget, String unit)
+  {
+    if (Double.isNaN(budget) || value <= budget)
+      return true;
+    
+    System.out.printf(Locale.ROOT, "Budget exceeded: %s %.1f%s > %.1f%s%n", name, value, unit, budget, unit);
+    return false;
+  }
+}
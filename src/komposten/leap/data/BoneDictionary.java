@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The lengths and widths of the bones of each tracked finger, for binary
+ * recordings with FLAG_BONE_DICTIONARY (see {@link LrecFormat}).
+ * <br />The dimensions of a finger's bones hardly ever change while its
+ * hand is tracked, so instead of storing them in every frame they are
+ * written as a dictionary entry (RECORD_BONE_DICTIONARY) when a finger is
+ * first seen, and again only if they change. Readers keep the entries they
+ * have read so far and use them to fill in the frames that follow.
+ * <br />Entries are keyed by hand and finger id, and are only considered
+ * unchanged if every value has exactly the same bits, so nothing is lost.
+ * @author Komposten (aka Jakob Hjelm)
+ */
+class BoneDictionary
+{
+  /** The size of an entry: hand id, finger id and the length and width of 4 bones. */
+  public static final int ENTRY_SIZE = 4 + 4 + 4 * 8;
+  
+  private Map<Long, float[]> entries_;
+  
+  
+  
+  public BoneDictionary()
+  {
+    entries_ = new HashMap<Long, float[]>();
+  }
+  
+  
+  
+  /**
+   * Stores the dimensions of <code>finger</code>'s bones if they differ from
+   * the stored ones.
+   * @return <code>true</code> if the entry was added or changed and has to
+   *         be written.
+   */
+  public boolean update(int handId, Finger finger)
+  {
+    if (finger.bones == null)
+      return false;
+    
+    Long    key     = key(handId, finger.id);
+    float[] entry   = entries_.get(key);
+    boolean changed = (entry == null);
+    
+    if (entry == null)
+      entry = new float[8];
+    
+    for (int i = 0; i < 4; i++)
+    {
+      Bone  bone   = (i < finger.bones.length ? finger.bones[i] : null);
+      float length = (bone != null ? bone.length : 0);
+      float width  = (bone != null ? bone.width  : 0);
+      
+      changed |= Float.floatToRawIntBits(entry[i * 2])     != Float.floatToRawIntBits(length);
+      changed |= Float.floatToRawIntBits(entry[i * 2 + 1]) != Float.floatToRawIntBits(width);
+      entry[i * 2]     = length;
+      entry[i * 2 + 1] = width;
+    }
+    
+    entries_.put(key, entry);
+    return changed;
+  }
+  
+  
+  
+  /** Writes the stored entry for a finger. */
+  public void put(ByteBuffer buffer, int handId, int fingerId)
+  {
+    float[] entry = entries_.get(key(handId, fingerId));
+    
+    buffer.putInt(handId);
+    buffer.putInt(fingerId);
+    for (int i = 0; i < 8; i++)
+      buffer.putFloat(entry != null ? entry[i] : 0);
+  }
+  
+  
+  
+  /**
+   * Reads an entry and stores it, replacing any earlier entry for the same
+   * finger.
+   * @return <code>true</code> if the entry was new or differs from the
+   *         earlier one (compared like in {@link #update(int, Finger)}).
+   */
+  public boolean get(ByteBuffer buffer)
+  {
+    int     handId   = buffer.getInt();
+    int     fingerId = buffer.getInt();
+    float[] entry    = new float[8];
+    
+    for (int i = 0; i < 8; i++)
+      entry[i] = buffer.getFloat();
+    
+    float[] previous = entries_.put(key(handId, fingerId), entry);
+    boolean changed  = (previous == null);
+    
+    for (int i = 0; i < 8 && !changed; i++)
+      changed = Float.floatToRawIntBits(previous[i]) != Float.floatToRawIntBits(entry[i]);
+    
+    return changed;
+  }
+  
+  
+  
+  /**
+   * Sets the length and width of every bone in <code>frame</code> from the
+   * stored entries. Bones of fingers without an entry get 0.
+   */
+  public void apply(FrameData frame)
+  {
+    for (Hand hand : frame.hands)
+    {
+      if (hand.fingers == null)
+        continue;
+      
+      for (Finger finger : hand.fingers)
+      {
+        if (finger.bones == null)
+          continue;
+        
+        float[] entry = entries_.get(key(hand.id, finger.id));
+        
+        for (int i = 0; i < finger.bones.length; i++)
+        {
+          finger.bones[i].length = (entry != null ? entry[i * 2]     : 0);
+          finger.bones[i].width  = (entry != null ? entry[i * 2 + 1] : 0);
+        }
+      }
+    }
+  }
+  
+  
+  
+  public void clear()
+  {
+    entries_.clear();
+  }
+  
+  
+  
+  private static Long key(int handId, int fingerId)
+  {
+    return ((long) handId << 32) | (fingerId & 0xFFFFFFFFL);
+  }
+}
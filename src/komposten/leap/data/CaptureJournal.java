@@ -0,0 +1,416 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.zip.CRC32;
+
+import komposten.utilities.tools.LogUtils;
+import komposten.utilities.tools.Logger;
+
+/**
+ * An append-only journal of the frames of a recording that is kept in
+ * memory, so that the recording can be rebuilt if the program dies before
+ * it has been saved.
+ * <br />The journal is written by the recording thread next to the
+ * {@link FrameStore}. Frames are encoded into a buffer, which is written to
+ * the file whenever the recording thread has caught up (so a crash of the
+ * JVM only loses the frames that were still queued), and the file is forced
+ * to the disk at most once per sync interval (so a crash of the machine
+ * loses at most that much). Many frames thus share each write and each
+ * sync.
+ * <br />The file starts with a 16 byte header:
+ * <pre>
+ * 0   4  magic, "LJNL"
+ * 4   2  version
+ * 6   2  {@link LrecFormat} flags of the frames
+ * 8   4  parts of the {@link CaptureProfile}
+ * 12  4  reserved, 0
+ * </pre>
+ * followed by records, each of which is a 4 byte payload length and a 4
+ * byte CRC-32 of the payload followed by the payload, a frame encoded like
+ * in {@link LrecFormat}. All values are little-endian.
+ * <br />{@link #recover(File, RecordingFormat, File)} reads the records up to
+ * the first one that is cut off or corrupt, and writes them as a normal
+ * recording. A journal is deleted once its recording has been saved or
+ * discarded, so any journal left in the directory at startup belongs to a
+ * recording that was lost.
+ * <br />If the journal can not be written, the error is logged and the
+ * journal stops, without affecting the recording.
+ * @author Komposten (aka Jakob Hjelm)
+ */
+class CaptureJournal implements FrameSink
+{
+  /** The extension of journal files. */
+  public static final String EXTENSION = "journal";
+  
+  private static final byte[] MAGIC              = { 'L', 'J', 'N', 'L' };
+  private static final int    VERSION            = 1;
+  private static final int    HEADER_SIZE        = 16;
+  private static final int    RECORD_HEADER_SIZE = 8;
+  /** Records longer than this are considered corrupt. */
+  private static final int    MAX_RECORD_SIZE    = 1 << 24;
+  private static final int    BUFFER_SIZE        = 256 * 1024;
+  
+  private File        file_;
+  private FileChannel channel_;
+  private FileLock    lock_;
+  private ByteBuffer  buffer_;
+  private CRC32       crc_;
+  private int         flags_;
+  private long        syncNanos_;
+  private long        lastSync_;
+  private long        framesWritten_;
+  private boolean     failed_;
+  
+  
+  
+  /**
+   * Creates the journal file and writes the header. The file is locked
+   * until the journal is closed, so it is not recovered while in use.
+   * @param syncMillis The longest time between forcing the file to the
+   *          disk, or 0 to force it whenever it is written.
+   * @throws IOException If the file could not be created, or is locked by
+   *           another journal.
+   */
+  public CaptureJournal(File file, CaptureProfile profile, long syncMillis) throws IOException
+  {
+    int flags = LrecFormat.profileFlags(profile);
+    
+    file_      = file;
+    flags_     = flags;
+    syncNanos_ = syncMillis * 1000000;
+    crc_       = new CRC32();
+    buffer_    = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    channel_   = new RandomAccessFile(file, "rw").getChannel();
+    
+    try
+    {
+      try
+      {
+        lock_ = channel_.tryLock();
+      }
+      catch (OverlappingFileLockException e)
+      {
+        lock_ = null;
+      }
+      
+      if (lock_ == null)
+        throw new IOException("The journal is in use: " + file);
+      
+      channel_.truncate(0);
+      
+      buffer_.put(MAGIC);
+      buffer_.putShort((short) VERSION);
+      buffer_.putShort((short) flags);
+      buffer_.putInt(profile.getParts());
+      buffer_.putInt(0);
+      drain();
+    }
+    catch (IOException e)
+    {
+      closeChannel();
+      throw e;
+    }
+    
+    lastSync_ = System.nanoTime();
+  }
+  
+  
+  
+  @Override
+  public void write(FrameData frame)
+  {
+    if (failed_)
+      return;
+    
+    int size = LrecFormat.frameSize(frame, flags_);
+    
+    try
+    {
+      if (buffer_.remaining() < RECORD_HEADER_SIZE + size)
+        drain();
+      if (buffer_.capacity() < RECORD_HEADER_SIZE + size)
+        buffer_ = ByteBuffer.allocate(RECORD_HEADER_SIZE + size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+    catch (IOException e)
+    {
+      fail(e);
+      return;
+    }
+    
+    int start = buffer_.position() + RECORD_HEADER_SIZE;
+    
+    buffer_.putInt(size);
+    buffer_.putInt(0);
+    LrecFormat.putFrame(buffer_, frame, flags_);
+    
+    crc_.reset();
+    crc_.update(buffer_.array(), buffer_.arrayOffset() + start, size);
+    buffer_.putInt(start - 4, (int) crc_.getValue());
+    framesWritten_++;
+  }
+  
+  
+  
+  /** Writes the buffered frames to the file, and forces it to the disk if the sync interval has passed. */
+  @Override
+  public void flush()
+  {
+    if (failed_)
+      return;
+    
+    try
+    {
+      drain();
+      
+      long now = System.nanoTime();
+      if (now - lastSync_ >= syncNanos_)
+      {
+        channel_.force(false);
+        lastSync_ = now;
+      }
+    }
+    catch (IOException e)
+    {
+      fail(e);
+    }
+  }
+  
+  
+  
+  /** Writes the remaining frames, forces the file to the disk and closes it. The file is kept. */
+  @Override
+  public void close()
+  {
+    try
+    {
+      if (!failed_)
+      {
+        drain();
+        channel_.force(false);
+      }
+    }
+    catch (IOException e)
+    {
+      fail(e);
+    }
+    finally
+    {
+      closeChannel();
+    }
+  }
+  
+  
+  
+  private void drain() throws IOException
+  {
+    buffer_.flip();
+    while (buffer_.hasRemaining())
+      channel_.write(buffer_);
+    buffer_.clear();
+  }
+  
+  
+  
+  private void fail(IOException e)
+  {
+    failed_ = true;
+    LogUtils.log(Logger.WRITEERROR, "CaptureJournal", "Could not write the journal, it has been stopped: " + file_, e, false);
+    closeChannel();
+  }
+  
+  
+  
+  private void closeChannel()
+  {
+    try
+    {
+      if (lock_ != null && lock_.isValid())
+        lock_.release();
+      channel_.close();
+    }
+    catch (IOException e)
+    {
+      LogUtils.log("ERROR", "CaptureJournal", "Could not close the journal: " + file_, e, false);
+    }
+  }
+  
+  
+  
+  /** @return The journal file. */
+  public File getFile()
+  {
+    return file_;
+  }
+  
+  
+  
+  public long getFramesWritten()
+  {
+    return framesWritten_;
+  }
+  
+  
+  
+  /** @return <code>true</code> if writing the journal failed, so it is incomplete. */
+  public boolean hasFailed()
+  {
+    return failed_;
+  }
+  
+  
+  
+  /** @return The journals in <code>directory</code>. */
+  public static File[] find(File directory)
+  {
+    File[] files = directory.listFiles();
+    int    count = 0;
+    
+    if (files == null)
+      return new File[0];
+    
+    for (File file : files)
+    {
+      if (file.isFile() && file.getName().endsWith("." + EXTENSION))
+        files[count++] = file;
+    }
+    
+    File[] journals = new File[count];
+    System.arraycopy(files, 0, journals, 0, count);
+    return journals;
+  }
+  
+  
+  
+  /**
+   * Writes the frames of a journal to a new recording. Frames after a
+   * record that is cut off or corrupt are lost.
+   * @param output The recording to write. It is not created if the journal
+   *          has no frames.
+   * @return The number of frames recovered, or -1 if the journal is in use
+   *         (locked by a recording in progress).
+   * @throws IOException If the journal could not be read or is not a
+   *           journal, or the recording could not be written.
+   */
+  public static long recover(File journal, RecordingFormat format, File output) throws IOException
+  {
+    if (isLocked(journal))
+      return -1;
+    if (journal.length() < HEADER_SIZE)
+      return 0;
+    
+    DataInputStream input  = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)));
+    FrameSink       writer = null;
+    long            frames = 0;
+    
+    try
+    {
+      byte[] header = new byte[HEADER_SIZE];
+      
+      input.readFully(header);
+      
+      ByteBuffer headerBuffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+      for (byte magic : MAGIC)
+      {
+        if (headerBuffer.get() != magic)
+          throw new IOException("Not a journal: " + journal);
+      }
+      if (headerBuffer.getShort() > VERSION)
+        throw new IOException("The journal was written by a newer version: " + journal);
+      
+      int            flags   = headerBuffer.getShort();
+      CaptureProfile profile = new CaptureProfile("Recovered", headerBuffer.getInt());
+      CRC32          crc     = new CRC32();
+      byte[]         payload = new byte[0];
+      
+      while (true)
+      {
+        int size;
+        int checksum;
+        
+        try
+        {
+          size     = Integer.reverseBytes(input.readInt());
+          checksum = Integer.reverseBytes(input.readInt());
+          if (size <= 0 || size > MAX_RECORD_SIZE)
+            break;
+          
+          if (payload.length < size)
+            payload = new byte[size];
+          input.readFully(payload, 0, size);
+        }
+        catch (EOFException e)
+        {
+          break;
+        }
+        
+        crc.reset();
+        crc.update(payload, 0, size);
+        if ((int) crc.getValue() != checksum)
+          break;
+        
+        FrameData frame = LrecFormat.getFrame(ByteBuffer.wrap(payload, 0, size).order(ByteOrder.LITTLE_ENDIAN), flags);
+        profile.apply(frame);
+        
+        if (writer == null)
+          writer = format.createWriter(output, profile);
+        writer.write(frame);
+        frames++;
+      }
+      
+      if (writer != null)
+      {
+        FrameSink closing = writer;
+        writer = null;
+        closing.close();
+      }
+    }
+    finally
+    {
+      input.close();
+      if (writer != null)
+        writer.close();
+    }
+    
+    return frames;
+  }
+  
+  
+  
+  /** @return <code>true</code> if the journal is locked by a recording in progress. */
+  private static boolean isLocked(File journal) throws IOException
+  {
+    RandomAccessFile file = new RandomAccessFile(journal, "rw");
+    
+    try
+    {
+      FileLock lock = file.getChannel().tryLock();
+      
+      if (lock == null)
+        return true;
+      lock.release();
+      return false;
+    }
+    catch (OverlappingFileLockException e)
+    {
+      return true;
+    }
+    finally
+    {
+      file.close();
+    }
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+/**
+ * Decides which parts of a Leap frame are captured by a {@link FrameCapture}.
+ * <br />Parts that are not part of the profile are never read from the
+ * <code>com.leapmotion.leap</code> objects, so they cost neither native
+ * calls nor memory; they are left <code>null</code> in the captured frame,
+ * which the file formats already handle (JSON leaves them out, the binary
+ * format writes zeros).
+ * <br />The hand id, direction, palm position, palm normal and side are
+ * always captured. The presets build on each other, from {@link #PALM} to
+ * {@link #FULL}, and parts can be left out of any of them with
+ * {@link #without(int)}, e.g. to record without velocities.
+ * @author Komposten (aka Jakob Hjelm)
+ */
+final class CaptureProfile
+{
+  /** Fingers: id, direction and tip position. */
+  public static final int FINGERS    = 1 << 0;
+  /** The four bones of each finger. Requires {@link #FINGERS}. */
+  public static final int BONES      = 1 << 1;
+  /** The basis of each hand, and of each bone if bones are captured. */
+  public static final int BASES      = 1 << 2;
+  /** Palm and tip velocities. */
+  public static final int VELOCITIES = 1 << 3;
+  
+  /** Only the palm of each hand. */
+  public static final CaptureProfile PALM       = new CaptureProfile("Palm only", VELOCITIES);
+  /** The palm and the finger tips. */
+  public static final CaptureProfile FINGERTIPS = new CaptureProfile("Fingertips", FINGERS | VELOCITIES);
+  /** Everything except the hand and bone bases. */
+  public static final CaptureProfile SKELETON   = new CaptureProfile("Fingers without bases", FINGERS | BONES | VELOCITIES);
+  /** Everything, as captured before there were profiles. */
+  public static final CaptureProfile FULL       = new CaptureProfile("Full skeleton", FINGERS | BONES | BASES | VELOCITIES);
+  
+  private static final CaptureProfile[] PRESETS = { PALM, FINGERTIPS, SKELETON, FULL };
+  
+  private String name_;
+  private int    parts_;
+  
+  
+  
+  /**
+   * @param parts The parts to capture (see the class constants). Bones are
+   *          dropped if fingers are not captured.
+   */
+  public CaptureProfile(String name, int parts)
+  {
+    if ((parts & FINGERS) == 0)
+      parts &= ~BONES;
+    
+    name_  = name;
+    parts_ = parts;
+  }
+  
+  
+  
+  /** @return The presets, from the least to the most captured. */
+  public static CaptureProfile[] presets()
+  {
+    return PRESETS.clone();
+  }
+  
+  
+  
+  public String getName()
+  {
+    return name_;
+  }
+  
+  
+  
+  public int getParts()
+  {
+    return parts_;
+  }
+  
+  
+  
+  /** @return <code>true</code> if all of the given parts are captured. */
+  public boolean captures(int parts)
+  {
+    return (parts_ & parts) == parts;
+  }
+  
+  
+  
+  /** @return A profile with the same name and parts, except <code>parts</code>. */
+  public CaptureProfile without(int parts)
+  {
+    if ((parts_ & parts) == 0)
+      return this;
+    return new CaptureProfile(name_, parts_ & ~parts);
+  }
+  
+  
+  
+  /**
+   * Removes the parts of an already captured frame that are not in this
+   * profile, e.g. when replaying a recording.
+   */
+  public void apply(FrameData frame)
+  {
+    for (Hand hand : frame.hands)
+    {
+      if (!captures(VELOCITIES))
+        hand.palmVelocity = null;
+      if (!captures(BASES))
+        hand.basis = null;
+      if (!captures(FINGERS))
+        hand.fingers = null;
+      if (hand.fingers == null)
+        continue;
+      
+      for (Finger finger : hand.fingers)
+      {
+        if (!captures(VELOCITIES))
+          finger.tipVelocity = null;
+        if (!captures(BONES))
+          finger.bones = null;
+        if (finger.bones == null || captures(BASES))
+          continue;
+        
+        for (Bone bone : finger.bones)
+          bone.basis = null;
+      }
+    }
+  }
+  
+  
+  
+  /**
+   * Returns the name shown in the GUI.
+   */
+  @Override
+  public String toString()
+  {
+    return name_;
+  }
+}
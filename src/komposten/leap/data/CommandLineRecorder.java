@@ -0,0 +1,560 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import komposten.utilities.tools.LogUtils;
+import komposten.utilities.tools.Logger;
+
+/**
+ * Records from the command line, for machines without a display. It uses the
+ * same {@link Recorder} as the window, but never loads AWT or Swing.
+ * <br />With a duration or a frame limit it records a single take as soon as
+ * it starts, saves it and exits. Without one it reads commands from the
+ * standard input: <code>start</code>, <code>stop</code> (which saves the
+ * take), <code>snapshot</code> (which saves the take so far),
+ * <code>status</code> and <code>quit</code>.
+ * <br />With a checkpoint interval, a snapshot of the take is saved at that
+ * interval while recording. Each snapshot only appends the new frames to the
+ * file, which the final save then completes.
+ * <br />When the JVM is shut down (e.g. by SIGTERM or Ctrl+C) the current
+ * take is stopped and saved, or its stream flushed and closed, before the
+ * program exits.
+ * <br />The exit code is 0 on success, 1 if recording or saving failed and 2
+ * for bad arguments.
+ * @author Komposten (aka Jakob Hjelm)
+ */
+public class CommandLineRecorder
+{
+  static final String USAGE = "Usage: CommandLineRecorder [options]\n"
+      + "  -dir path        Where to save the recordings (default \"" + Recorder.DEFAULT_DIRECTORY + "\").\n"
+      + "  -format name     json, lrec or lrec_compact (default json).\n"
+      + "  -profile name    palm, fingertips, skeleton or full (default full).\n"
+      + "  -noVelocities    Leave out palm and tip velocities.\n"
+      + "  -noBones         Save without bones (like \"Save w/o bones\").\n"
+      + "  -stream          Write the frames to a session of segment files while recording.\n"
+      + "  -segmentMb n     Start a new segment after this many megabytes, 0 for no limit (default "
+      + Recorder.DEFAULT_SEGMENT_BYTES / 1048576 + ").\n"
+      + "  -segmentS s      Start a new segment after this many seconds, 0 for no limit (default "
+      + (int) Recorder.DEFAULT_SEGMENT_SECONDS + ").\n"
+      + "  -journalMs n     Force the journal of a take to the disk at least this often, -1 for no journal (default "
+      + Recorder.DEFAULT_JOURNAL_SYNC_MILLIS + ").\n"
+      + "  -overload name   What to do when frames arrive faster than they are written: block, drop_newest,\n"
+      + "                   drop_oldest or adaptive (default drop_newest).\n"
+      + "  -maxFps f        Record at most this many frames per second.\n"
+      + "  -dropEmpty       Leave out frames without hands (except the first one after the hands have gone).\n"
+      + "  -motionMm d      Leave out frames in which no palm or tip has moved d mm since the last frame kept.\n"
+      + "  -motionSpeed v   ... unless a palm or tip moves faster than v mm/s (default "
+      + (int) FrameReducer.DEFAULT_SPEED_THRESHOLD + ", 0 for no limit).\n"
+      + "  -memoryMb n      Memory a take may use before it spills to a temporary file, 0 to keep it on the heap (default "
+      + Recorder.DEFAULT_MEMORY_BUDGET / 1048576 + ").\n"
+      + "  -metrics file    Append the recorder metrics to this file as a line of JSON per sample.\n"
+      + "  -metricsMs n     Sample the metrics (also shown over JMX) this often (default "
+      + RecorderMetrics.DEFAULT_PERIOD_MILLIS + ").\n"
+      + "  -checkpoint s    Save a snapshot of the take every s seconds while recording.\n"
+      + "  -duration s      Record one take for this many seconds, then save and exit.\n"
+      + "  -frames n        Record one take of this many frames, then save and exit.\n"
+      + "  -synthetic fps   Record synthetic frames instead of the controller.\n"
+      + "  -replay file     Record a replay of a recording instead of the controller.\n"
+      + "  -speed x         Replay speed, 0 for max speed (default 1).\n"
+      + "Without -duration or -frames, type start, stop, snapshot, status or quit.";
+  
+  private File            directory_      = new File(Recorder.DEFAULT_DIRECTORY);
+  private RecordingFormat format_         = RecordingFormat.JSON;
+  private CaptureProfile  profile_        = CaptureProfile.FULL;
+  private boolean         excludeBones_;
+  private boolean         stream_;
+  private double          duration_;
+  private long            frameLimit_;
+  private double          syntheticFps_;
+  private File            replay_;
+  private double          speed_          = 1;
+  private long            segmentBytes_   = Recorder.DEFAULT_SEGMENT_BYTES;
+  private double          segmentSeconds_ = Recorder.DEFAULT_SEGMENT_SECONDS;
+  private long            journalSync_    = Recorder.DEFAULT_JOURNAL_SYNC_MILLIS;
+  private long            memoryBudget_   = Recorder.DEFAULT_MEMORY_BUDGET;
+  private OverloadPolicy  overload_       = OverloadPolicy.DROP_NEWEST;
+  private double          maxFps_;
+  private boolean         dropEmpty_;
+  private float           motionThreshold_;
+  private float           speedThreshold_ = FrameReducer.DEFAULT_SPEED_THRESHOLD;
+  private double          checkpoint_;
+  private File            metricsFile_;
+  private long            metricsPeriod_  = RecorderMetrics.DEFAULT_PERIOD_MILLIS;
+  
+  private Recorder       recorder_;
+  private CountDownLatch ended_ = new CountDownLatch(1);
+  private boolean        closed_;
+  private Timer          checkpointTimer_;
+  
+  private volatile boolean failed_;
+  
+  
+  
+  public static void main(String[] args)
+  {
+    CommandLineRecorder recorder = new CommandLineRecorder();
+    
+    try
+    {
+      recorder.parseArguments(args);
+    }
+    catch (IllegalArgumentException e)
+    {
+      System.err.println(e.getMessage());
+      System.err.println(USAGE);
+      System.exit(2);
+    }
+    
+    System.exit(recorder.run() ? 0 : 1);
+  }
+  
+  
+  
+  private void parseArguments(String[] args)
+  {
+    for (int i = 0; i < args.length; i++)
+    {
+      String arg = args[i];
+      
+      if (arg.equals("-stream"))
+        stream_ = true;
+      else if (arg.equals("-noBones"))
+        excludeBones_ = true;
+      else if (arg.equals("-dropEmpty"))
+        dropEmpty_ = true;
+      else if (arg.equals("-noVelocities"))
+        profile_ = profile_.without(CaptureProfile.VELOCITIES);
+      else if (i + 1 >= args.length)
+        throw new IllegalArgumentException("Unknown option or missing value: " + arg);
+      else if (arg.equals("-dir"))
+        directory_ = new File(args[++i]);
+      else if (arg.equals("-replay"))
+        replay_ = new File(args[++i]);
+      else if (arg.equals("-profile"))
+        profile_ = parseProfile(args[++i], profile_.captures(CaptureProfile.VELOCITIES));
+      else if (arg.equals("-format"))
+        format_ = parseFormat(args[++i]);
+      else if (arg.equals("-duration"))
+        duration_ = parseNumber(arg, args[++i]);
+      else if (arg.equals("-frames"))
+        frameLimit_ = (long) parseNumber(arg, args[++i]);
+      else if (arg.equals("-synthetic"))
+        syntheticFps_ = parseNumber(arg, args[++i]);
+      else if (arg.equals("-speed"))
+        speed_ = parseNumber(arg, args[++i]);
+      else if (arg.equals("-segmentMb"))
+        segmentBytes_ = (long) (parseNumber(arg, args[++i]) * 1048576);
+      else if (arg.equals("-segmentS"))
+        segmentSeconds_ = parseNumber(arg, args[++i]);
+      else if (arg.equals("-checkpoint"))
+        checkpoint_ = parseNumber(arg, args[++i]);
+      else if (arg.equals("-journalMs"))
+        journalSync_ = (args[++i].equals("-1") ? -1 : (long) parseNumber(arg, args[i]));
+      else if (arg.equals("-maxFps"))
+        maxFps_ = parseNumber(arg, args[++i]);
+      else if (arg.equals("-motionMm"))
+        motionThreshold_ = (float) parseNumber(arg, args[++i]);
+      else if (arg.equals("-motionSpeed"))
+        speedThreshold_ = (float) parseNumber(arg, args[++i]);
+      else if (arg.equals("-overload"))
+        overload_ = parseOverloadPolicy(args[++i]);
+      else if (arg.equals("-memoryMb"))
+        memoryBudget_ = (long) (parseNumber(arg, args[++i]) * 1048576);
+      else if (arg.equals("-metrics"))
+        metricsFile_ = new File(args[++i]);
+      else if (arg.equals("-metricsMs"))
+        metricsPeriod_ = Math.max(1, (long) parseNumber(arg, args[++i]));
+      else
+        throw new IllegalArgumentException("Unknown option: " + arg);
+    }
+  }
+  
+  
+  
+  /**
+   * @return A non-negative number.
+   * @throws IllegalArgumentException If <code>value</code> is not one.
+   */
+  static double parseNumber(String option, String value)
+  {
+    try
+    {
+      double number = Double.parseDouble(value);
+      if (number < 0 || Double.isNaN(number) || Double.isInfinite(number))
+        throw new IllegalArgumentException("Value out of range for " + option + ": " + value);
+      return number;
+    }
+    catch (NumberFormatException e)
+    {
+      throw new IllegalArgumentException("Not a number for " + option + ": " + value);
+    }
+  }
+  
+  
+  
+  /**
+   * @param name palm, fingertips, skeleton or full.
+   * @param velocities If the profile should include velocities.
+   * @throws IllegalArgumentException If the name is unknown.
+   */
+  static CaptureProfile parseProfile(String name, boolean velocities)
+  {
+    String[]         names   = { "palm", "fingertips", "skeleton", "full" };
+    CaptureProfile[] presets = CaptureProfile.presets();
+    
+    for (int i = 0; i < names.length; i++)
+    {
+      if (names[i].equalsIgnoreCase(name))
+        return (velocities ? presets[i] : presets[i].without(CaptureProfile.VELOCITIES));
+    }
+    
+    throw new IllegalArgumentException("Unknown profile: " + name);
+  }
+  
+  
+  
+  /** @throws IllegalArgumentException If the name is unknown. */
+  static RecordingFormat parseFormat(String name)
+  {
+    RecordingFormat format = RecordingFormat.forName(name);
+    
+    if (format == null)
+      throw new IllegalArgumentException("Unknown format: " + name);
+    return format;
+  }
+  
+  
+  
+  static OverloadPolicy parseOverloadPolicy(String name)
+  {
+    OverloadPolicy policy = OverloadPolicy.forName(name);
+    
+    if (policy == null)
+      throw new IllegalArgumentException("Unknown overload policy: " + name);
+    return policy;
+  }
+  
+  
+  
+  /** @return <code>true</code> if everything was recorded and saved. */
+  private boolean run()
+  {
+    FrameSource source;
+    
+    try
+    {
+      if (replay_ != null)
+        source = new ReplayFrameSource(replay_, speed_);
+      else if (syntheticFps_ > 0)
+        source = new SyntheticFrameSource(syntheticFps_, 2, true);
+      else
+        source = new LeapFrameSource();
+    }
+    catch (IOException e)
+    {
+      System.err.println(e.getMessage());
+      return false;
+    }
+    
+    recorder_ = new Recorder(source, directory_);
+    recorder_.setFrameLimit(frameLimit_);
+    recorder_.setSegmentLimits(segmentBytes_, segmentSeconds_);
+    recorder_.setJournalSync(journalSync_);
+    recorder_.setMemoryBudget(memoryBudget_);
+    recorder_.setOverloadPolicy(overload_);
+    recorder_.setReduction(maxFps_, dropEmpty_, motionThreshold_, speedThreshold_);
+    recorder_.setMetrics(metricsPeriod_, metricsFile_);
+    recorder_.open(listener_);
+    
+    try
+    {
+      for (File file : recorder_.recoverJournals(format_))
+        System.out.println("Recovered an unsaved recording to " + file.getPath());
+    }
+    catch (IOException e)
+    {
+      report("Could not recover an unsaved recording!", e);
+    }
+    
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        close();
+      }
+    }, "CommandLineRecorder shutdown"));
+    
+    try
+    {
+      if (duration_ > 0 || frameLimit_ > 0)
+        recordTake();
+      else
+        readCommands();
+    }
+    catch (IOException e)
+    {
+      LogUtils.log(Logger.READERROR, "CommandLineRecorder", "Could not read the commands!", e, false);
+      failed_ = true;
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+    
+    close();
+    return !failed_;
+  }
+  
+  
+  
+  /** Records a single take until the duration has passed or the frame limit has been reached. */
+  private void recordTake() throws InterruptedException
+  {
+    if (!start())
+      return;
+    
+    if (duration_ > 0)
+      ended_.await((long) (duration_ * 1000), TimeUnit.MILLISECONDS);
+    else
+      ended_.await();
+    
+    stop();
+  }
+  
+  
+  
+  private void readCommands() throws IOException
+  {
+    BufferedReader input = new BufferedReader(new InputStreamReader(System.in));
+    String         line;
+    
+    System.out.println("Type start, stop, snapshot, status or quit.");
+    
+    while ((line = input.readLine()) != null)
+    {
+      String command = line.trim();
+      
+      if (command.equals("start"))
+        start();
+      else if (command.equals("stop"))
+        stop();
+      else if (command.equals("snapshot"))
+        snapshot(false);
+      else if (command.equals("status"))
+        printStatus();
+      else if (command.equals("quit"))
+        break;
+      else if (command.length() > 0)
+        System.out.println("Unknown command: " + command + ". Type start, stop, snapshot, status or quit.");
+    }
+  }
+  
+  
+  
+  private synchronized boolean start()
+  {
+    if (closed_)
+      return false;
+    
+    stop();
+    
+    try
+    {
+      recorder_.start(profile_, stream_ ? format_ : null);
+      System.out.println("Recording...");
+      
+      if (checkpoint_ > 0 && !stream_)
+      {
+        long period = (long) (checkpoint_ * 1000);
+        
+        checkpointTimer_ = new Timer("CommandLineRecorder checkpoints", true);
+        checkpointTimer_.schedule(new TimerTask()
+        {
+          @Override
+          public void run()
+          {
+            snapshot(true);
+          }
+        }, period, period);
+      }
+      return true;
+    }
+    catch (IOException e)
+    {
+      report("Could not open the stream file!", e);
+      return false;
+    }
+  }
+  
+  
+  
+  /** Stops the current take, if there is one, and saves it. */
+  private synchronized void stop()
+  {
+    if (checkpointTimer_ != null)
+      checkpointTimer_.cancel();
+    checkpointTimer_ = null;
+    
+    if (closed_ || !recorder_.isCapturing())
+      return;
+    
+    try
+    {
+      long   frames = recorder_.stop();
+      String text   = "Stopped recording. Frames: " + frames;
+      
+      text += "\n" + recorder_.describeFrames();
+      if (recorder_.describeCost().length() > 0)
+        text += "\n" + recorder_.describeCost();
+      System.out.println(text);
+    }
+    catch (IOException e)
+    {
+      report("An exception occured when writing the recorded frames!", e);
+      return;
+    }
+    
+    try
+    {
+      if (recorder_.getStreamFile() != null)
+      {
+        System.out.println("Saved to " + recorder_.getStreamFile().getPath() + recorder_.getErrors());
+      }
+      else
+      {
+        SaveTask save = recorder_.createSave(format_, excludeBones_);
+        
+        save.run();
+        System.out.println(save.describeProgress() + "\nSaved to " + save.getFile().getPath() + save.getErrors());
+      }
+    }
+    catch (IOException e)
+    {
+      report("An exception occured when saving!", e);
+    }
+  }
+  
+  
+  
+  /**
+   * Saves a snapshot of the current take while it is recorded, appending the
+   * frames recorded since the previous snapshot.
+   * @param periodic If this is a checkpoint, which is skipped quietly when
+   *          not recording.
+   */
+  private synchronized void snapshot(boolean periodic)
+  {
+    if (closed_ || !recorder_.isCapturing())
+    {
+      if (!periodic)
+        System.out.println("Not recording.");
+      return;
+    }
+    
+    if (stream_)
+    {
+      System.out.println("The take is already being written to " + recorder_.getStreamFile().getPath());
+      return;
+    }
+    
+    try
+    {
+      SaveTask save = recorder_.createSave(format_, excludeBones_);
+      
+      save.run();
+      System.out.println("Snapshot: " + save.describeProgress());
+    }
+    catch (IOException e)
+    {
+      report("An exception occured when saving a snapshot!", e);
+    }
+  }
+  
+  
+  
+  /** Stops and saves the current take and closes the recorder. Called on exit and by the shutdown hook. */
+  private synchronized void close()
+  {
+    if (closed_)
+      return;
+    
+    stop();
+    closed_ = true;
+    
+    try
+    {
+      recorder_.close();
+    }
+    catch (IOException e)
+    {
+      LogUtils.log("ERROR", "CommandLineRecorder", "Could not close the recorder!", e, false);
+    }
+  }
+  
+  
+  
+  private synchronized void printStatus()
+  {
+    if (recorder_.isCapturing())
+      System.out.println("Recording. " + recorder_.describeFrames());
+    else
+      System.out.println("Not recording.");
+  }
+  
+  
+  
+  private void report(String message, Exception e)
+  {
+    failed_ = true;
+    System.err.println(message + " " + e.getMessage());
+    LogUtils.log(Logger.WRITEERROR, "CommandLineRecorder", message, e, false);
+  }
+  
+  
+  
+  private FrameSource.Listener listener_ = new FrameSource.Listener()
+  {
+    @Override
+    public void onStatus(String message)
+    {
+      System.out.println(message);
+    }
+    
+    @Override
+    public void onFrame(FrameData frame)
+    {
+    }
+    
+    @Override
+    public void onEnd()
+    {
+      if (duration_ > 0 || frameLimit_ > 0)
+        System.out.println("No more frames.");
+      else
+        System.out.println("No more frames, type stop to finish the recording.");
+      ended_.countDown();
+    }
+    
+    @Override
+    public void onError(Exception e)
+    {
+      String msg = "An exception occured while processing a frame, stopped capturing!";
+      
+      failed_ = true;
+      System.err.println(msg + " " + e);
+      LogUtils.log("EXCEPTION", "CommandLineRecorder", msg, e, false);
+      ended_.countDown();
+    }
+  };
+}
@@ -3,37 +3,39 @@
  */
 package komposten.leap.data;
 
+import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Desktop;
 import java.awt.GridLayout;
 import java.awt.Insets;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
 
 import javax.swing.BorderFactory;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JFrame;
+import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
 import javax.swing.border.EmptyBorder;
 import javax.swing.border.MatteBorder;
 
 import komposten.utilities.tools.LogUtils;
 import komposten.utilities.tools.Logger;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.reflect.TypeToken;
-import com.leapmotion.leap.Controller;
-import com.leapmotion.leap.Listener;
-
 /**
  * A utility program to record and save hand and finger information from a 
  * Leap Motion Controller in JSON format. The following data will be saved:
@@ -44,6 +46,19 @@ import com.leapmotion.leap.Listener;
  * <li>Bone information (type, length, width, direction, center, next joint, previous joint, basis)</li>
  * </ul>
  * <br />Since bone information requires a lot of space, it can be excluded from the save file.
+ * <br />The capture profile decides which of this is recorded at all (see
+ * {@link CaptureProfile}); what it leaves out is never read from the
+ * controller.
+ * <br />In streaming mode the frames are written to the file while recording,
+ * instead of being kept in memory until the data is saved.
+ * <br />The frames normally come from the controller, but any
+ * {@link FrameSource} can be recorded from instead.
+ * <br />The recording itself is done by a {@link Recorder}, which is shared
+ * with the command line version ({@link CommandLineRecorder}).
+ * <br />The threads that deliver the frames never touch the window. While
+ * recording, the frame rate, dropped frames and memory used are read from
+ * the recorder's counters by a timer on the Swing thread, ten times a
+ * second, and the other events are passed to the Swing thread.
  * @author Komposten (aka Jakob Hjelm)
  * @version 1.2.2
  * <br />Latest additions:
@@ -57,32 +72,79 @@ import com.leapmotion.leap.Listener;
  */
 public class DataRecorder extends JFrame implements ActionListener
 {
-  private static final String DIRECTORY = "data";
-  private static final Color  GRAY      = new Color(230, 230, 230);
+  private static final Color GRAY           = new Color(230, 230, 230);
+  /** How often the progress of a save is shown, in milliseconds. */
+  private static final int   PROGRESS_DELAY = 250;
+  /** How often the status of a recording is shown, in milliseconds. */
+  private static final int   STATUS_DELAY   = 100;
+  /** The time the frame rate is averaged over, in nanoseconds. */
+  private static final long  FPS_WINDOW     = 1000000000L;
   
   private JButton   buttonStart_;
   private JButton   buttonStop_;
   private JButton   buttonSave_;
   private JButton   buttonSave2_;
   private JButton   buttonOpen_;
+  private JButton   buttonCancel_;
+  private JCheckBox checkStream_;
+  private JCheckBox checkVelocities_;
+  private JCheckBox checkSkipIdle_;
   private JTextArea areaInfo_;
+  private JLabel    labelSave_;
+  
+  private JComboBox<RecordingFormat> comboFormat_;
+  private JComboBox<CaptureProfile>  comboProfile_;
+  private JComboBox<OverloadPolicy>  comboOverload_;
+  
+  private Recorder recorder_;
   
-  private Controller            controller_;
-  private LinkedList<FrameData> frameData_;
-  private boolean               collectData_;
+  private SaveTask                   saveTask_;
+  private SwingWorker<Boolean, Void> saveWorker_;
+  private Timer                      saveTimer_;
+  private Timer                      statusTimer_;
+  
+  /** The frames captured at the start of the frame rate window, and when it started. */
+  private long   fpsFrames_;
+  private long   fpsNanos_;
+  private double fps_;
   
   public DataRecorder()
+  {
+    this(new LeapFrameSource());
+  }
+  
+  
+  
+  /** Creates the recorder and records from <code>source</code>. */
+  public DataRecorder(FrameSource source)
   {
     super("LeapRecorder");
 
-    buttonStart_ = createButton("Start/Reset");
-    buttonStop_  = createButton("Stop");
-    buttonSave_  = createButton("Save All");
-    buttonSave2_ = createButton("Save w/o bones");
-    buttonOpen_  = createButton("Open directory");
-    areaInfo_    = createTextArea();
-    
-    JPanel buttons = new JPanel(new GridLayout(5, 1, 2, 2));
+    buttonStart_  = createButton("Start/Reset");
+    buttonStop_   = createButton("Stop");
+    buttonSave_   = createButton("Save All");
+    buttonSave2_  = createButton("Save w/o bones");
+    buttonOpen_   = createButton("Open directory");
+    buttonCancel_ = createButton("Cancel save");
+    checkStream_  = createCheckBox("Stream to disk");
+    comboFormat_  = createComboBox(RecordingFormat.values());
+    areaInfo_     = createTextArea();
+    labelSave_    = createLabel();
+    saveTimer_    = new Timer(PROGRESS_DELAY, this);
+    statusTimer_  = new Timer(STATUS_DELAY, this);
+    
+    buttonCancel_.setEnabled(false);
+    
+    comboProfile_    = createComboBox(CaptureProfile.presets());
+    checkVelocities_ = createCheckBox("Velocities");
+    comboProfile_   .setSelectedItem(CaptureProfile.FULL);
+    checkVelocities_.setSelected(true);
+    
+    comboOverload_ = createComboBox(OverloadPolicy.values());
+    comboOverload_.setSelectedItem(OverloadPolicy.DROP_NEWEST);
+    checkSkipIdle_ = createCheckBox("Skip idle frames");
+    
+    JPanel buttons = new JPanel(new GridLayout(12, 1, 2, 2));
     buttons.setBackground(GRAY);
     buttons.setFocusable(false);
     buttons.setBorder(BorderFactory.createCompoundBorder(new MatteBorder(0, 0, 0, 1, Color.GRAY), new EmptyBorder(2, 2, 2, 2)));
@@ -91,17 +153,49 @@ public class DataRecorder extends JFrame implements ActionListener
     buttons.add(buttonSave_);
     buttons.add(buttonSave2_);
     buttons.add(buttonOpen_);
+    buttons.add(buttonCancel_);
+    buttons.add(checkStream_);
+    buttons.add(comboFormat_);
+    buttons.add(comboProfile_);
+    buttons.add(checkVelocities_);
+    buttons.add(comboOverload_);
+    buttons.add(checkSkipIdle_);
+    
+    JPanel info = new JPanel(new BorderLayout());
+    info.setBackground(GRAY);
+    info.add(areaInfo_, BorderLayout.CENTER);
+    info.add(labelSave_, BorderLayout.SOUTH);
     
     setLayout(new GridLayout(1, 2));
     add(buttons);
-    add(areaInfo_);
+    add(info);
     pack();
     
-    createController();
+    recorder_ = new Recorder(source, new File(Recorder.DEFAULT_DIRECTORY));
+    recorder_.open(sourceListener_);
+    recoverJournals();
     
     getContentPane().setBackground(GRAY);
     setLocationRelativeTo(null);
     setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+    addWindowListener(new WindowAdapter()
+    {
+      @Override
+      public void windowClosing(WindowEvent e)
+      {
+        stopRecording();
+        waitForSave();
+        
+        try
+        {
+          recorder_.close();
+        }
+        catch (IOException ex)
+        {
+          LogUtils.log("ERROR", "DataRecorder", "Could not close the recorder!", ex, false);
+        }
+      }
+    });
     setResizable(false);
     setAlwaysOnTop(true);
     setVisible(true);
@@ -121,6 +215,42 @@ public class DataRecorder extends JFrame implements ActionListener
   
   
   
+  private JCheckBox createCheckBox(String label)
+  {
+    JCheckBox checkBox = new JCheckBox(label);
+    
+    checkBox.setFocusable(false);
+    checkBox.setBackground(GRAY);
+    
+    return checkBox;
+  }
+  
+  
+  
+  private <T> JComboBox<T> createComboBox(T[] items)
+  {
+    JComboBox<T> comboBox = new JComboBox<T>(items);
+    
+    comboBox.setFocusable(false);
+    comboBox.setBackground(GRAY);
+    
+    return comboBox;
+  }
+  
+  
+  
+  private JLabel createLabel()
+  {
+    JLabel label = new JLabel(" ");
+    
+    label.setBorder(new EmptyBorder(3, 5, 3, 3));
+    label.setBackground(GRAY);
+    
+    return label;
+  }
+  
+  
+  
   private JTextArea createTextArea()
   {
     JTextArea area = new JTextArea();
@@ -136,54 +266,100 @@ public class DataRecorder extends JFrame implements ActionListener
   
   
   
-  private void createController()
-  {
-    controller_ = new Controller();
-    frameData_  = new LinkedList<FrameData>();
-    
-    areaInfo_.setText("Connecting to Leap Motion Controller...");
-    controller_.addListener(leapListener_);
-    
-    if (controller_.isConnected())
-      leapListener_.onConnect(controller_);
-  }
-
-
-
   @Override
   public void actionPerformed(ActionEvent event)
   {
-    if (event.getSource() == buttonStart_)
+    if (event.getSource() == saveTimer_)
+    {
+      if (saveTask_ != null)
+        labelSave_.setText(saveTask_.describeProgress());
+    }
+    else if (event.getSource() == statusTimer_)
+    {
+      showStatus();
+    }
+    else if (event.getSource() == buttonStart_)
     {
-      collectData_ = true;
-      frameData_.clear();
-      areaInfo_ .setText("Recording...");
+      statusTimer_.stop();
+      stopRecording();
+      
+      try
+      {
+        recorder_.setOverloadPolicy((OverloadPolicy) comboOverload_.getSelectedItem());
+        if (checkSkipIdle_.isSelected())
+          recorder_.setReduction(0, true, FrameReducer.DEFAULT_MOTION_THRESHOLD, FrameReducer.DEFAULT_SPEED_THRESHOLD);
+        else
+          recorder_.setReduction(0, false, 0, 0);
+        recorder_.start(getProfile(), checkStream_.isSelected() ? getFormat() : null);
+      }
+      catch (IOException e)
+      {
+        JOptionPane.showMessageDialog(this, e.getMessage(), "An exception occured!", JOptionPane.ERROR_MESSAGE);
+        LogUtils.log(Logger.WRITEERROR, "DataRecorder", "Could not open the stream file!", e, false);
+        return;
+      }
+      
+      fpsFrames_ = 0;
+      fpsNanos_  = System.nanoTime();
+      fps_       = 0;
+      
+      areaInfo_   .setText("Recording...");
+      statusTimer_.start();
     }
     else if (event.getSource() == buttonStop_)
     {
-      if (collectData_)
+      if (recorder_.isCapturing())
       {
-        collectData_ = false;
-        areaInfo_ .setText("Stopped recording.\nFrames: " + frameData_.size());
+        statusTimer_.stop();
+        
+        long frames = stopRecording();
+        
+        if (frames >= 0)
+        {
+          String text = "Stopped recording.\nFrames: " + frames;
+          
+          text += "\n" + recorder_.describeFrames();
+          if (recorder_.describeCost().length() > 0)
+            text += "\n" + recorder_.describeCost();
+          if (recorder_.getStreamFile() != null)
+            text += "\nSaved to " + recorder_.getStreamFile().getName() + recorder_.getErrors();
+          else
+            text += "\nMemory: " + (recorder_.getFrameStore().memoryUsage() >> 10) + " kB";
+          if (recorder_.getFrameStore() instanceof SlabFrameStore
+              && ((SlabFrameStore) recorder_.getFrameStore()).getSpilledBytes() > 0)
+            text += " (+" + (((SlabFrameStore) recorder_.getFrameStore()).getSpilledBytes() >> 10) + " kB on disk)";
+          
+          areaInfo_ .setText(text);
+        }
       }
     }
+    else if ((event.getSource() == buttonSave_ || event.getSource() == buttonSave2_) && recorder_.isCapturing()
+        && recorder_.getStreamFile() != null)
+    {
+      areaInfo_ .setText("The recording is already being written to " + recorder_.getStreamFile().getName() + ".");
+    }
+    else if ((event.getSource() == buttonSave_ || event.getSource() == buttonSave2_) && saveTask_ != null)
+    {
+      areaInfo_ .setText("Wait for the previous recording to be saved, or cancel it.");
+    }
     else if (event.getSource() == buttonSave_)
     {
-      areaInfo_ .setText("Saving data...");
       saveData(false);
-      areaInfo_ .append("\nData saved.");
     }
     else if (event.getSource() == buttonSave2_)
     {
-      areaInfo_ .setText("Saving data...");
       saveData(true);
-      areaInfo_ .append("\nData saved.");
+    }
+    else if (event.getSource() == buttonCancel_)
+    {
+      if (saveTask_ != null)
+        saveTask_.cancel();
     }
     else if (event.getSource() == buttonOpen_)
     {
       try
       {
-        Desktop.getDesktop().open(new File(DIRECTORY));
+        Desktop.getDesktop().open(recorder_.getDirectory());
       }
       catch (IOException e)
       {
@@ -195,103 +371,272 @@ public class DataRecorder extends JFrame implements ActionListener
   
   
   
-  private Listener leapListener_ = new Listener()
+  private FrameSource.Listener sourceListener_ = new FrameSource.Listener()
   {
     @Override
-    public void onConnect(Controller controller)
+    public void onStatus(final String message)
     {
-      areaInfo_.setText("Leap Motion Controller connected!");
-    };
-
-    @Override
-    public void onDisconnect(Controller controller)
-    {
-      areaInfo_.setText("Controller disconnected!");
-    };
+      SwingUtilities.invokeLater(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          areaInfo_.setText(message);
+        }
+      });
+    }
     
     @Override
-    public void onServiceConnect(Controller arg0)
+    public void onFrame(FrameData frame)
     {
-      areaInfo_.setText("Leap Service started!");
+      // Shown by the status timer.
     }
     
     @Override
-    public void onServiceDisconnect(Controller arg0)
+    public void onEnd()
     {
-      areaInfo_.setText("Leap Service stopped!");
+      SwingUtilities.invokeLater(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          // The recording may have been stopped in the meantime.
+          if (!statusTimer_.isRunning())
+            return;
+          
+          statusTimer_.stop();
+          showStatus();
+          areaInfo_.append("\nNo more frames, press Stop to finish the recording.");
+        }
+      });
     }
     
     @Override
-    public void onFrame(Controller controller)
+    public void onError(final Exception e)
     {
-      try
+      SwingUtilities.invokeLater(new Runnable()
       {
-        if (collectData_)
+        @Override
+        public void run()
         {
-          areaInfo_.setText("Recording...\nFrames: " + frameData_.size());
-          frameData_.add(new FrameData(controller.frame()));
+          String msg = "An exception occured while processing a frame, terminating program!"
+              + "\nAn unsaved recording will be recovered the next time the program starts.";
+          LogUtils.log("EXCEPTION", "DataRecorder", msg, e, false);
+          JOptionPane.showMessageDialog(DataRecorder.this, msg, "An exception occured!", JOptionPane.ERROR_MESSAGE);
+          
+          try
+          {
+            recorder_.stop();
+          }
+          catch (IOException ex)
+          {
+            LogUtils.log(Logger.WRITEERROR, "DataRecorder", "An exception occured when writing the recorded frames!", ex, false);
+          }
+          
+          System.exit(1);
         }
-      }
-      catch (Exception e)
-      {
-        String msg = "An exception occured while processing a frame, terminating program!";
-        JOptionPane.showMessageDialog(DataRecorder.this, msg, "An exception occured!", JOptionPane.ERROR_MESSAGE);
-        LogUtils.log("EXCEPTION", "DataRecorder", msg, e, false);
-        
-        System.exit(1);
-      }
-    };
+      });
+    }
   };
   
   
   
-  private void saveData(boolean excludeBones)
+  /** Shows the frames, frame rate, dropped frames and memory used of the current recording. */
+  private void showStatus()
   {
-    Calendar c = Calendar.getInstance();
-  
-    c.setTime(new Date(System.currentTimeMillis()));
-  
-    String time = c.get(Calendar.YEAR) + "-" + c.get(Calendar.MONTH) + "-" + 
-            c.get(Calendar.DATE) + " " + c.get(Calendar.HOUR_OF_DAY) + "." + 
-            c.get(Calendar.MINUTE) + "." + c.get(Calendar.SECOND);
+    long frames = recorder_.getFramesCaptured();
+    long now    = System.nanoTime();
+    
+    if (frames < fpsFrames_)
+      fpsFrames_ = 0;
     
-    File       file   = new File(DIRECTORY + "/leapdata" + time + ".json");
-    Gson       gson   = new GsonBuilder().setExclusionStrategies(new BoneExcludor()).create();
-    FileWriter writer = null;
+    if (now - fpsNanos_ >= FPS_WINDOW)
+    {
+      fps_       = (frames - fpsFrames_) * 1e9 / (now - fpsNanos_);
+      fpsFrames_ = frames;
+      fpsNanos_  = now;
+    }
+    
+    String text = String.format(Locale.ROOT, "Recording...\nFrames: %d (%.0f fps)\nDropped: %d", frames, fps_,
+        recorder_.getFramesDropped());
     
-    BoneExcludor.shouldExclude = excludeBones;
+    if (recorder_.getLatestSession() != null)
+      text += "\nWritten: " + (recorder_.getLatestSession().getBytesWritten() >> 10) + " kB";
+    else
+      text += "\nMemory: " + (recorder_.getFrameStore().memoryUsage() >> 10) + " kB";
     
+    areaInfo_.setText(text);
+  }
+  
+  
+  
+  /**
+   * Recovers the recordings that were lost when the program last died, from
+   * their journals, and tells the user about them.
+   */
+  private void recoverJournals()
+  {
     try
     {
-      if (!file.exists())
-      {
-        if (file.getParentFile() != null)
-          file.getParentFile().mkdirs();
-        file.createNewFile();
-      }
-      writer = new FileWriter(file, true);
+      List<File> files = recorder_.recoverJournals(getFormat());
+      
+      if (files.isEmpty())
+        return;
       
-      gson.toJson(frameData_, new TypeToken<LinkedList<FrameData>>(){}.getType(), writer);
+      String msg = "Recovered " + files.size() + " unsaved recording(s):";
+      for (File file : files)
+        msg += "\n" + file.getName();
+      JOptionPane.showMessageDialog(this, msg, "Recordings recovered", JOptionPane.INFORMATION_MESSAGE);
     }
     catch (IOException e)
     {
       JOptionPane.showMessageDialog(this, e.getMessage(), "An exception occured!", JOptionPane.ERROR_MESSAGE);
-      LogUtils.log(Logger.WRITEERROR, "DataRecorder", "An exception occured when saving!", e, false);
+      LogUtils.log(Logger.READERROR, "DataRecorder", "Could not recover an unsaved recording!", e, false);
     }
+  }
+  
+  
+  
+  /**
+   * Stops the current recording, if there is one, after all captured frames
+   * have been written to the memory or the stream file.
+   * @return The number of frames recorded, or -1 if writing them failed.
+   */
+  private long stopRecording()
+  {
+    try
+    {
+      return recorder_.stop();
+    }
+    catch (IOException e)
+    {
+      JOptionPane.showMessageDialog(this, e.getMessage(), "An exception occured!", JOptionPane.ERROR_MESSAGE);
+      LogUtils.log(Logger.WRITEERROR, "DataRecorder", "An exception occured when writing the recorded frames!", e, false);
+      return -1;
+    }
+  }
+  
+  
+  
+  private RecordingFormat getFormat()
+  {
+    return (RecordingFormat) comboFormat_.getSelectedItem();
+  }
+  
+  
+  
+  /** @return The selected capture profile, without velocities unless they are selected. */
+  private CaptureProfile getProfile()
+  {
+    CaptureProfile profile = (CaptureProfile) comboProfile_.getSelectedItem();
+    
+    if (!checkVelocities_.isSelected())
+      profile = profile.without(CaptureProfile.VELOCITIES);
+    
+    return profile;
+  }
+  
+  
+  
+  /**
+   * Saves the recording in memory on a worker thread, showing its progress
+   * until it is done. A new recording can be started in the meantime.
+   * <br />While recording this saves a snapshot, and pressing save again
+   * appends the frames recorded since then to the same file.
+   */
+  private void saveData(boolean excludeBones)
+  {
+    final SaveTask task;
     
     try
     {
-      if (writer != null)
-        writer.close();
+      task = recorder_.createSave(getFormat(), excludeBones);
     }
     catch (IOException e)
     {
-      LogUtils.log("ERROR", "DataRecorder", "Could not close the writer!", e, false);
+      JOptionPane.showMessageDialog(this, e.getMessage(), "An exception occured!", JOptionPane.ERROR_MESSAGE);
+      LogUtils.log(Logger.WRITEERROR, "DataRecorder", "Could not create the file!", e, false);
+      return;
     }
+    
+    saveTask_   = task;
+    saveWorker_ = new SwingWorker<Boolean, Void>()
+    {
+      @Override
+      protected Boolean doInBackground() throws IOException
+      {
+        return task.run();
+      }
+      
+      @Override
+      protected void done()
+      {
+        saveTimer_   .stop();
+        buttonCancel_.setEnabled(false);
+        saveTask_   = null;
+        saveWorker_ = null;
+        
+        try
+        {
+          if (task.isSnapshot())
+          {
+            labelSave_.setText(get() ? "Snapshot: " + task.describeProgress() : "Snapshot cancelled.");
+          }
+          else if (get())
+          {
+            labelSave_.setText(task.describeProgress());
+            areaInfo_ .append("\nData saved." + task.getErrors());
+          }
+          else
+          {
+            labelSave_.setText("Save cancelled.");
+          }
+        }
+        catch (ExecutionException e)
+        {
+          Exception cause = (e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+          
+          labelSave_.setText("Save failed.");
+          JOptionPane.showMessageDialog(DataRecorder.this, cause.getMessage(), "An exception occured!", JOptionPane.ERROR_MESSAGE);
+          LogUtils.log(Logger.WRITEERROR, "DataRecorder", "An exception occured when saving!", cause, false);
+        }
+        catch (InterruptedException e)
+        {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+    
+    labelSave_   .setText(task.describeProgress());
+    buttonCancel_.setEnabled(true);
+    saveTimer_   .start();
+    saveWorker_  .execute();
   }
   
   
-
+  
+  /** Blocks until the current save (if any) has finished, so that its file is complete. */
+  private void waitForSave()
+  {
+    if (saveWorker_ == null)
+      return;
+    
+    try
+    {
+      saveWorker_.get();
+    }
+    catch (ExecutionException e)
+    {
+      LogUtils.log(Logger.WRITEERROR, "DataRecorder", "An exception occured when saving!", e, false);
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+  
+  
+  
   public static void main(String[] args)
   {
     DataRecorder recorder = null;
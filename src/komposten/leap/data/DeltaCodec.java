@@ -0,0 +1,702 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import com.leapmotion.leap.Bone.Type;
+
+/**
+ * Encodes frames as the difference from the previous frame, for the
+ * delta-encoded variant of the binary format (see {@link LrecFormat}).
+ * <br />Every value is first quantised to an integer as set by a
+ * {@link DeltaConfig}: either rounded to a fixed-point step, or (for lossless
+ * storage) replaced by its bit pattern. The difference from the same value
+ * in the previous frame is then written as a zig-zag varint, which is a
+ * single byte for small changes. Hands are tracked by their id and fingers
+ * by their hand and finger id, so a hand that comes into view only differs
+ * from zero, and the order of the hands does not matter.
+ * <br />{@link #reset()} forgets all tracks. The writer does this at every
+ * keyframe, so reading can start at any keyframe.
+ * <br />While encoding, the largest difference between an original value
+ * and the value a reader will get back is tracked for each class of value.
+ * <br />With FLAG_QUATERNIONS a basis is encoded as the fields of its
+ * {@link PackedBasis}, which are exact integers, followed by its origin if
+ * that has to be stored explicitly (zeros otherwise). The error of the
+ * unpacked axes is tracked as a direction error.
+ * @author Komposten (aka Jakob Hjelm)
+ */
+class DeltaCodec
+{
+  private static final Type[] TYPES = Type.values();
+  
+  /** The value class of integers that are stored exactly, like packed bases. */
+  private static final int INTEGER = DeltaConfig.CLASS_COUNT;
+  
+  private DeltaConfig config_;
+  private int         flags_;
+  private float[]     steps_;
+  private int[]       handClasses_;
+  private int[]       fingerClasses_;
+  private double[]    maxErrors_;
+  private float[]     values_;
+  
+  private long   lastFrameId_;
+  private long   lastTimestamp_;
+  private Tracks hands_;
+  private Tracks fingers_;
+  
+  
+  
+  /**
+   * @param flags The {@link LrecFormat} header flags, which decide whether
+   *          fingers, bones, bases and velocities are encoded.
+   */
+  public DeltaCodec(DeltaConfig config, int flags)
+  {
+    config_        = config;
+    flags_         = flags;
+    steps_         = new float[DeltaConfig.CLASS_COUNT + 1];
+    handClasses_   = createHandClasses(flags);
+    fingerClasses_ = createFingerClasses(flags);
+    maxErrors_     = new double[DeltaConfig.CLASS_COUNT + 1];
+    values_        = new float[Math.max(handClasses_.length, fingerClasses_.length)];
+    hands_         = new Tracks(handClasses_.length);
+    fingers_       = new Tracks(fingerClasses_.length);
+    
+    for (int i = 0; i < DeltaConfig.CLASS_COUNT; i++)
+      steps_[i] = config.getStep(i);
+    steps_[INTEGER] = 1;
+  }
+  
+  
+  
+  private static int[] createHandClasses(int flags)
+  {
+    ClassList list = new ClassList();
+    
+    list.add(DeltaConfig.DIRECTION, 3);
+    list.add(DeltaConfig.POSITION, 3);
+    list.add(DeltaConfig.DIRECTION, 3);
+    if ((flags & LrecFormat.FLAG_VELOCITIES) != 0)
+      list.add(DeltaConfig.VELOCITY, 3);
+    if ((flags & LrecFormat.FLAG_BASES) != 0)
+      addBasisClasses(list, flags);
+    
+    return list.toArray();
+  }
+  
+  
+  
+  private static int[] createFingerClasses(int flags)
+  {
+    ClassList list = new ClassList();
+    
+    list.add(DeltaConfig.DIRECTION, 3);
+    list.add(DeltaConfig.POSITION, 3);
+    if ((flags & LrecFormat.FLAG_VELOCITIES) != 0)
+      list.add(DeltaConfig.VELOCITY, 3);
+    
+    if ((flags & LrecFormat.FLAG_BONES) != 0)
+    {
+      for (int i = 0; i < 4; i++)
+      {
+        if ((flags & LrecFormat.FLAG_BONE_DICTIONARY) == 0)
+          list.add(DeltaConfig.LENGTH, 2);
+        list.add(DeltaConfig.DIRECTION, 3);
+        list.add(DeltaConfig.POSITION, 9);
+        if ((flags & LrecFormat.FLAG_BASES) != 0)
+          addBasisClasses(list, flags);
+      }
+    }
+    
+    return list.toArray();
+  }
+  
+  
+  
+  private static void addBasisClasses(ClassList list, int flags)
+  {
+    if ((flags & LrecFormat.FLAG_QUATERNIONS) != 0)
+    {
+      list.add(INTEGER, 4);
+      list.add(DeltaConfig.POSITION, 3);
+    }
+    else
+    {
+      list.add(DeltaConfig.POSITION, 3);
+      list.add(DeltaConfig.DIRECTION, 9);
+    }
+  }
+  
+  
+  
+  /** @return The number of values a basis is encoded as. */
+  private int basisValues()
+  {
+    return ((flags_ & LrecFormat.FLAG_QUATERNIONS) != 0 ? 7 : 12);
+  }
+  
+  
+  
+  public DeltaConfig getConfig()
+  {
+    return config_;
+  }
+  
+  
+  
+  /** Forgets all previous frames, so the next frame is encoded as a keyframe. */
+  public void reset()
+  {
+    lastFrameId_   = 0;
+    lastTimestamp_ = 0;
+    hands_  .clear();
+    fingers_.clear();
+  }
+  
+  
+  
+  /**
+   * @return The largest difference so far between an encoded value of the
+   *         given class and the value that will be decoded.
+   */
+  public double getMaxError(int valueClass)
+  {
+    return maxErrors_[valueClass];
+  }
+  
+  
+  
+  /**
+   * Raises the largest errors to those of <code>codec</code>, e.g. when parts
+   * of a recording were encoded by separate codecs.
+   */
+  public void mergeErrors(DeltaCodec codec)
+  {
+    for (int i = 0; i < maxErrors_.length; i++)
+      maxErrors_[i] = Math.max(maxErrors_[i], codec.maxErrors_[i]);
+  }
+  
+  
+  
+  /** @return A short description of the largest errors, for display. */
+  public String describeErrors()
+  {
+    StringBuilder builder = new StringBuilder("Max error:");
+    
+    for (int i = 0; i < DeltaConfig.CLASS_COUNT; i++)
+      builder.append(' ').append(DeltaConfig.getClassName(i)).append(' ').append((float) maxErrors_[i]);
+    
+    return builder.toString();
+  }
+  
+  
+  
+  /** @return An upper bound for the number of bytes needed to encode <code>frame</code>. */
+  public int maxSize(FrameData frame)
+  {
+    return 2 * LrecFormat.frameSize(frame, flags_) + 32;
+  }
+  
+  
+  
+  public void encode(FrameData frame, ByteBuffer out)
+  {
+    int handCount = (frame.hands != null ? frame.hands.size() : 0);
+    
+    putVarlong(out, zigzag(frame.frameId - lastFrameId_));
+    putVarlong(out, zigzag(frame.timestamp - lastTimestamp_));
+    putVarint(out, handCount);
+    lastFrameId_   = frame.frameId;
+    lastTimestamp_ = frame.timestamp;
+    
+    for (int i = 0; i < handCount; i++)
+      encodeHand(frame.hands.get(i), out);
+  }
+  
+  
+  
+  private void encodeHand(Hand hand, ByteBuffer out)
+  {
+    int handFlags   = 0;
+    int fingerCount = LrecFormat.fingerCount(hand, flags_);
+    
+    handFlags |= (hand.isLeft        ? LrecFormat.HAND_LEFT  : 0);
+    handFlags |= (hand.isRight       ? LrecFormat.HAND_RIGHT : 0);
+    handFlags |= (hand.basis != null ? LrecFormat.HAND_BASIS : 0);
+    
+    putVarint(out, zigzag(hand.id));
+    out.put((byte) handFlags);
+    
+    int count = 0;
+    count = gather(hand.direction, count);
+    count = gather(hand.palmPosition, count);
+    count = gather(hand.palmNormal, count);
+    if ((flags_ & LrecFormat.FLAG_VELOCITIES) != 0)
+      count = gather(hand.palmVelocity, count);
+    if ((flags_ & LrecFormat.FLAG_BASES) != 0)
+      count = gather(hand.basis, hand.palmPosition, count);
+    
+    encodeValues(out, handClasses_, hands_.get(hand.id));
+    if ((flags_ & LrecFormat.FLAG_FINGERS) != 0)
+      putVarint(out, fingerCount);
+    
+    for (int i = 0; i < fingerCount; i++)
+      encodeFinger(hand, hand.fingers.get(i), out);
+  }
+  
+  
+  
+  private void encodeFinger(Hand hand, Finger finger, ByteBuffer out)
+  {
+    putVarint(out, zigzag(finger.id - hand.id * 10));
+    out.put((byte) (finger.bones != null ? LrecFormat.FINGER_BONES : 0));
+    
+    int count = 0;
+    count = gather(finger.direction, count);
+    count = gather(finger.tipPosition, count);
+    if ((flags_ & LrecFormat.FLAG_VELOCITIES) != 0)
+      count = gather(finger.tipVelocity, count);
+    
+    if ((flags_ & LrecFormat.FLAG_BONES) != 0)
+    {
+      for (int i = 0; i < 4; i++)
+      {
+        Bone bone = (finger.bones != null && i < finger.bones.length ? finger.bones[i] : null);
+        
+        if ((flags_ & LrecFormat.FLAG_BONE_DICTIONARY) == 0)
+        {
+          values_[count++] = (bone != null ? bone.length : 0);
+          values_[count++] = (bone != null ? bone.width  : 0);
+        }
+        count = gather(bone != null ? bone.direction : null, count);
+        count = gather(bone != null ? bone.center    : null, count);
+        count = gather(bone != null ? bone.nextJoint : null, count);
+        count = gather(bone != null ? bone.prevJoint : null, count);
+        if ((flags_ & LrecFormat.FLAG_BASES) != 0)
+          count = gather(bone != null ? bone.basis : null, bone != null ? bone.center : null, count);
+      }
+    }
+    
+    encodeValues(out, fingerClasses_, fingers_.get(trackKey(hand.id, finger.id)));
+  }
+  
+  
+  
+  private int gather(float[] vector, int index)
+  {
+    for (int i = 0; i < 3; i++)
+      values_[index + i] = (vector != null ? vector[i] : 0);
+    return index + 3;
+  }
+  
+  
+  
+  private int gather(Basis basis, float[] reference, int index)
+  {
+    if ((flags_ & LrecFormat.FLAG_QUATERNIONS) != 0)
+    {
+      long packed = PackedBasis.pack(basis, reference);
+      
+      values_[index++] = (int) (packed & ((1 << PackedBasis.HEADER_BITS) - 1));
+      for (int i = 0; i < 3; i++)
+        values_[index++] = (int) (packed >>> (PackedBasis.HEADER_BITS + i * PackedBasis.COMPONENT_BITS)) & ((1 << PackedBasis.COMPONENT_BITS) - 1);
+      
+      trackBasisError(basis, PackedBasis.unpack(packed, reference, null));
+      return gather(PackedBasis.hasExplicitOrigin(packed) ? basis.origin : null, index);
+    }
+    
+    index = gather(basis != null ? basis.origin : null, index);
+    index = gather(basis != null ? basis.xBasis : null, index);
+    index = gather(basis != null ? basis.yBasis : null, index);
+    return gather(basis != null ? basis.zBasis : null, index);
+  }
+  
+  
+  
+  private void trackBasisError(Basis basis, Basis unpacked)
+  {
+    if (basis == null)
+      return;
+    
+    trackError(basis.xBasis, unpacked.xBasis);
+    trackError(basis.yBasis, unpacked.yBasis);
+    trackError(basis.zBasis, unpacked.zBasis);
+  }
+  
+  
+  
+  private void trackError(float[] vector, float[] unpacked)
+  {
+    for (int i = 0; vector != null && i < 3; i++)
+    {
+      double error = Math.abs(vector[i] - unpacked[i]);
+      
+      if (error > maxErrors_[DeltaConfig.DIRECTION])
+        maxErrors_[DeltaConfig.DIRECTION] = error;
+    }
+  }
+  
+  
+  
+  private void encodeValues(ByteBuffer out, int[] classes, int[] state)
+  {
+    for (int i = 0; i < classes.length; i++)
+    {
+      int value = quantise(values_[i], classes[i]);
+      
+      putVarint(out, zigzag(value - state[i]));
+      state[i] = value;
+    }
+  }
+  
+  
+  
+  private int quantise(float value, int valueClass)
+  {
+    float step = steps_[valueClass];
+    
+    if (step == 0)
+      return Float.floatToRawIntBits(value);
+    
+    long   quantised = Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, Math.round(value / (double) step)));
+    double error     = Math.abs(value - (float) (quantised * (double) step));
+    
+    if (error > maxErrors_[valueClass])
+      maxErrors_[valueClass] = error;
+    
+    return (int) quantised;
+  }
+  
+  
+  
+  private float dequantise(int value, int valueClass)
+  {
+    float step = steps_[valueClass];
+    
+    if (step == 0)
+      return Float.intBitsToFloat(value);
+    return (float) (value * (double) step);
+  }
+  
+  
+  
+  public FrameData decode(ByteBuffer in)
+  {
+    FrameData frame = new FrameData();
+    
+    frame.frameId   = lastFrameId_   += unzigzag(getVarlong(in));
+    frame.timestamp = lastTimestamp_ += unzigzag(getVarlong(in));
+    
+    int handCount = getVarint(in);
+    for (int i = 0; i < handCount; i++)
+      frame.hands.add(decodeHand(in));
+    
+    return frame;
+  }
+  
+  
+  
+  private Hand decodeHand(ByteBuffer in)
+  {
+    Hand hand = new Hand();
+    
+    hand.id = unzigzag(getVarint(in));
+    
+    int handFlags = in.get();
+    
+    hand.isLeft  = (handFlags & LrecFormat.HAND_LEFT)  != 0;
+    hand.isRight = (handFlags & LrecFormat.HAND_RIGHT) != 0;
+    
+    decodeValues(in, handClasses_, hands_.get(hand.id));
+    
+    int index = 0;
+    hand.direction    = scatter(index);
+    hand.palmPosition = scatter(index += 3);
+    hand.palmNormal   = scatter(index += 3);
+    index += 3;
+    if ((flags_ & LrecFormat.FLAG_VELOCITIES) != 0)
+    {
+      hand.palmVelocity = scatter(index);
+      index += 3;
+    }
+    if ((flags_ & LrecFormat.FLAG_BASES) != 0 && (handFlags & LrecFormat.HAND_BASIS) != 0)
+      hand.basis = scatterBasis(index, hand.palmPosition);
+    
+    if ((flags_ & LrecFormat.FLAG_FINGERS) != 0)
+    {
+      int fingerCount = getVarint(in);
+      
+      hand.fingers = new ArrayList<Finger>(fingerCount);
+      for (int i = 0; i < fingerCount; i++)
+        hand.fingers.add(decodeFinger(hand, in));
+    }
+    
+    return hand;
+  }
+  
+  
+  
+  private Finger decodeFinger(Hand hand, ByteBuffer in)
+  {
+    Finger finger = new Finger();
+    
+    finger.id = unzigzag(getVarint(in)) + hand.id * 10;
+    
+    int fingerFlags = in.get();
+    
+    decodeValues(in, fingerClasses_, fingers_.get(trackKey(hand.id, finger.id)));
+    
+    int index = 0;
+    finger.direction   = scatter(index);
+    finger.tipPosition = scatter(index += 3);
+    index += 3;
+    if ((flags_ & LrecFormat.FLAG_VELOCITIES) != 0)
+    {
+      finger.tipVelocity = scatter(index);
+      index += 3;
+    }
+    
+    if ((flags_ & LrecFormat.FLAG_BONES) != 0 && (fingerFlags & LrecFormat.FINGER_BONES) != 0)
+    {
+      finger.bones = new Bone[4];
+      for (int i = 0; i < 4; i++)
+      {
+        Bone bone = new Bone();
+        
+        bone.type = TYPES[i];
+        if ((flags_ & LrecFormat.FLAG_BONE_DICTIONARY) == 0)
+        {
+          bone.length = values_[index++];
+          bone.width  = values_[index++];
+        }
+        bone.direction = scatter(index);
+        bone.center    = scatter(index += 3);
+        bone.nextJoint = scatter(index += 3);
+        bone.prevJoint = scatter(index += 3);
+        index += 3;
+        if ((flags_ & LrecFormat.FLAG_BASES) != 0)
+        {
+          bone.basis = scatterBasis(index, bone.center);
+          index += basisValues();
+        }
+        
+        finger.bones[i] = bone;
+      }
+    }
+    
+    return finger;
+  }
+  
+  
+  
+  private void decodeValues(ByteBuffer in, int[] classes, int[] state)
+  {
+    for (int i = 0; i < classes.length; i++)
+    {
+      state[i] += unzigzag(getVarint(in));
+      values_[i] = dequantise(state[i], classes[i]);
+    }
+  }
+  
+  
+  
+  private float[] scatter(int index)
+  {
+    return new float[] { values_[index], values_[index + 1], values_[index + 2] };
+  }
+  
+  
+  
+  private Basis scatterBasis(int index, float[] reference)
+  {
+    if ((flags_ & LrecFormat.FLAG_QUATERNIONS) != 0)
+    {
+      long packed = (long) values_[index];
+      
+      for (int i = 0; i < 3; i++)
+        packed |= (long) values_[index + 1 + i] << (PackedBasis.HEADER_BITS + i * PackedBasis.COMPONENT_BITS);
+      
+      return PackedBasis.unpack(packed, reference, PackedBasis.hasExplicitOrigin(packed) ? scatter(index + 4) : null);
+    }
+    
+    Basis basis = new Basis();
+    
+    basis.origin = scatter(index);
+    basis.xBasis = scatter(index + 3);
+    basis.yBasis = scatter(index + 6);
+    basis.zBasis = scatter(index + 9);
+    
+    return basis;
+  }
+  
+  
+  
+  private static long trackKey(int handId, int fingerId)
+  {
+    return ((long) handId << 32) | (fingerId & 0xFFFFFFFFL);
+  }
+  
+  
+  
+  static int zigzag(int value)
+  {
+    return (value << 1) ^ (value >> 31);
+  }
+  
+  
+  
+  static long zigzag(long value)
+  {
+    return (value << 1) ^ (value >> 63);
+  }
+  
+  
+  
+  static int unzigzag(int value)
+  {
+    return (value >>> 1) ^ -(value & 1);
+  }
+  
+  
+  
+  static long unzigzag(long value)
+  {
+    return (value >>> 1) ^ -(value & 1);
+  }
+  
+  
+  
+  static void putVarint(ByteBuffer out, int value)
+  {
+    while ((value & ~0x7F) != 0)
+    {
+      out.put((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.put((byte) value);
+  }
+  
+  
+  
+  static void putVarlong(ByteBuffer out, long value)
+  {
+    while ((value & ~0x7FL) != 0)
+    {
+      out.put((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.put((byte) value);
+  }
+  
+  
+  
+  static int getVarint(ByteBuffer in)
+  {
+    int  value = 0;
+    int  shift = 0;
+    byte b;
+    
+    do
+    {
+      b      = in.get();
+      value |= (b & 0x7F) << shift;
+      shift += 7;
+    }
+    while (b < 0);
+    
+    return value;
+  }
+  
+  
+  
+  static long getVarlong(ByteBuffer in)
+  {
+    long value = 0;
+    int  shift = 0;
+    byte b;
+    
+    do
+    {
+      b      = in.get();
+      value |= (long) (b & 0x7F) << shift;
+      shift += 7;
+    }
+    while (b < 0);
+    
+    return value;
+  }
+  
+  
+  
+  /**
+   * The last quantised values of each tracked hand or finger. Tracks are
+   * found by a linear search, since there are rarely more than a handful,
+   * and their arrays are reused after a reset.
+   */
+  private static class Tracks
+  {
+    private int     stateSize_;
+    private long[]  keys_;
+    private int[][] states_;
+    private int     size_;
+    
+    public Tracks(int stateSize)
+    {
+      stateSize_ = stateSize;
+      keys_      = new long[16];
+      states_    = new int[16][];
+    }
+    
+    public int[] get(long key)
+    {
+      for (int i = 0; i < size_; i++)
+      {
+        if (keys_[i] == key)
+          return states_[i];
+      }
+      
+      if (size_ == keys_.length)
+      {
+        keys_   = Arrays.copyOf(keys_, size_ * 2);
+        states_ = Arrays.copyOf(states_, size_ * 2);
+      }
+      
+      if (states_[size_] == null)
+        states_[size_] = new int[stateSize_];
+      else
+        Arrays.fill(states_[size_], 0);
+      
+      keys_[size_] = key;
+      return states_[size_++];
+    }
+    
+    public void clear()
+    {
+      size_ = 0;
+    }
+  }
+  
+  
+  
+  private static class ClassList
+  {
+    private int[] classes_ = new int[128];
+    private int   size_;
+    
+    public void add(int valueClass, int count)
+    {
+      for (int i = 0; i < count; i++)
+        classes_[size_++] = valueClass;
+    }
+    
+    public int[] toArray()
+    {
+      return Arrays.copyOf(classes_, size_);
+    }
+  }
+}
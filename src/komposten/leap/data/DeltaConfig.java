@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The settings of the delta encoding done by {@link DeltaCodec}: the
+ * quantisation step for each class of value, and how often a keyframe is
+ * written.
+ * <br />A step of 0 means that values of that class are stored losslessly.
+ * Otherwise values are rounded to the nearest multiple of the step, so the
+ * error for a value is never more than half a step.
+ * @author Komposten (aka Jakob Hjelm)
+ */
+class DeltaConfig
+{
+  /** Positions, joints and basis origins, in millimetres. */
+  public static final int POSITION  = 0;
+  /** Unit vectors: directions, palm normals and basis axes. */
+  public static final int DIRECTION = 1;
+  /** Palm and tip velocities, in millimetres per second. */
+  public static final int VELOCITY  = 2;
+  /** Bone lengths and widths, in millimetres. */
+  public static final int LENGTH    = 3;
+  
+  public static final int CLASS_COUNT  = 4;
+  /** The size of a config when written with {@link #put(ByteBuffer)}. */
+  public static final int ENCODED_SIZE = CLASS_COUNT * 4 + 4;
+  
+  private static final String[] CLASS_NAMES = { "position", "direction", "velocity", "length" };
+  
+  /** 0.01 mm for positions, lengths and velocities and 1e-4 for unit vectors. */
+  public static final DeltaConfig DEFAULT  = new DeltaConfig(new float[] { 0.01f, 1e-4f, 0.01f, 0.01f }, 64);
+  /** Stores all values exactly. */
+  public static final DeltaConfig LOSSLESS = new DeltaConfig(new float[CLASS_COUNT], 64);
+  
+  private float[] steps_;
+  private int     keyframeInterval_;
+  
+  
+  
+  /**
+   * @param steps The quantisation step for each class (see the class
+   *          constants), or 0 for lossless storage.
+   * @param keyframeInterval The number of frames from one keyframe to the
+   *          next. Readers have to decode up to this many frames to reach a
+   *          random frame.
+   */
+  public DeltaConfig(float[] steps, int keyframeInterval)
+  {
+    if (steps.length != CLASS_COUNT)
+      throw new IllegalArgumentException("Expected " + CLASS_COUNT + " steps, got " + steps.length + "!");
+    if (keyframeInterval < 1)
+      throw new IllegalArgumentException("The keyframe interval must be positive!");
+    
+    steps_            = steps.clone();
+    keyframeInterval_ = keyframeInterval;
+  }
+  
+  
+  
+  public float getStep(int valueClass)
+  {
+    return steps_[valueClass];
+  }
+  
+  
+  
+  public int getKeyframeInterval()
+  {
+    return keyframeInterval_;
+  }
+  
+  
+  
+  public static String getClassName(int valueClass)
+  {
+    return CLASS_NAMES[valueClass];
+  }
+  
+  
+  
+  public void put(ByteBuffer buffer)
+  {
+    for (float step : steps_)
+      buffer.putFloat(step);
+    buffer.putInt(keyframeInterval_);
+  }
+  
+  
+  
+  public static DeltaConfig get(ByteBuffer buffer)
+  {
+    float[] steps = new float[CLASS_COUNT];
+    
+    for (int i = 0; i < CLASS_COUNT; i++)
+      steps[i] = buffer.getFloat();
+    
+    return new DeltaConfig(steps, buffer.getInt());
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+import java.util.Arrays;
+
+/**
+ * A growable column of <code>float</code> rows, where each row holds a fixed
+ * number of values (e.g. three for a vector).
+ * <br />The values are stored in fixed-size chunks of primitive arrays, so
+ * adding rows never copies the existing data, and rows that have been added
+ * never move.
+ * <br />Rows may be read by other threads while rows are added, as long as
+ * they only read rows that were added before a point where the threads
+ * synchronise (e.g. a volatile count of the rows, see {@link FrameStore}).
+ * @author Komposten (aka Jakob Hjelm)
+ */
+class FloatColumn
+{
+  private static final int CHUNK_BITS = 12;
+  private static final int CHUNK_ROWS = 1 << CHUNK_BITS;
+  private static final int CHUNK_MASK = CHUNK_ROWS - 1;
+  
+  private int                width_;
+  private volatile float[][] chunks_;
+  private int                size_;
+  
+  
+  
+  /**
+   * @param width The number of values in each row.
+   */
+  public FloatColumn(int width)
+  {
+    width_  = width;
+    chunks_ = new float[4][];
+  }
+  
+  
+  
+  /**
+   * Adds a row. Missing values (or all values if <code>values</code> is
+   * <code>null</code>) are stored as 0, and extra values are ignored.
+   * @return The index of the new row.
+   */
+  public int add(float[] values)
+  {
+    int     row    = size_;
+    float[] chunk  = chunkFor(row);
+    int     offset = (row & CHUNK_MASK) * width_;
+    
+    if (values != null)
+      System.arraycopy(values, 0, chunk, offset, Math.min(values.length, width_));
+    
+    size_++;
+    return row;
+  }
+  
+  
+  
+  /**
+   * Adds a row of a single value.
+   * @return The index of the new row.
+   */
+  public int add(float value)
+  {
+    int row = size_;
+    
+    chunkFor(row)[(row & CHUNK_MASK) * width_] = value;
+    size_++;
+    return row;
+  }
+  
+  
+  
+  public float get(int row, int component)
+  {
+    return chunks_[row >>> CHUNK_BITS][(row & CHUNK_MASK) * width_ + component];
+  }
+  
+  
+  
+  /** Copies a row into <code>dest</code>. */
+  public void get(int row, float[] dest)
+  {
+    System.arraycopy(chunks_[row >>> CHUNK_BITS], (row & CHUNK_MASK) * width_, dest, 0, width_);
+  }
+  
+  
+  
+  /** @return A new array holding the values of a row. */
+  public float[] get(int row)
+  {
+    float[] values = new float[width_];
+    get(row, values);
+    return values;
+  }
+  
+  
+  
+  public int size()
+  {
+    return size_;
+  }
+  
+  
+  
+  /** Removes all rows and releases the memory they used. */
+  public void clear()
+  {
+    chunks_ = new float[4][];
+    size_   = 0;
+  }
+  
+  
+  
+  /** @return The number of bytes allocated for the values in this column. */
+  public long memoryUsage()
+  {
+    long chunks = (size_ + CHUNK_MASK) >>> CHUNK_BITS;
+    return chunks * CHUNK_ROWS * width_ * 4;
+  }
+  
+  
+  
+  private float[] chunkFor(int row)
+  {
+    int index = row >>> CHUNK_BITS;
+    
+    if (index == chunks_.length)
+      chunks_ = Arrays.copyOf(chunks_, index * 2);
+    if (chunks_[index] == null)
+      chunks_[index] = new float[CHUNK_ROWS * width_];
+    
+    return chunks_[index];
+  }
+}
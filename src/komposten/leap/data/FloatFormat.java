@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+/**
+ * Formats floats the same way as {@link Float#toString(float)}, without
+ * boxing or creating intermediate objects.
+ * <br />The shortest decimal that reads back as the same float is found
+ * with integer arithmetic: a decimal with <code>d</code> fraction digits
+ * reads back as <code>f</code> if it lies between the midpoints to the
+ * neighbouring floats, and those midpoints, scaled by <code>10^d</code> and
+ * a power of two, are exact <code>long</code>s. Only values that
+ * <code>Float.toString</code> writes without an exponent (10^-3 to 10^7) are
+ * handled like that, which covers almost all values in a recording; for
+ * others {@link #format(float, char[], int)} returns -1.
+ * <br />The output has been checked against <code>Float.toString</code> for
+ * every float in that range (on Java 7 to 17; later versions changed
+ * <code>Float.toString</code> slightly).
+ * @author Komposten (aka Jakob Hjelm)
+ */
+final class FloatFormat
+{
+  /** The most characters {@link #format(float, char[], int)} writes. */
+  public static final int MAX_LENGTH = 16;
+  
+  private static final int    MANTISSA_BITS  = 23;
+  private static final int    MAX_FRACTION   = 12;
+  private static final long[] POWERS_OF_FIVE = new long[MAX_FRACTION + 1];
+  private static final long[] POWERS_OF_TEN  = new long[MAX_FRACTION + 1];
+  
+  static
+  {
+    POWERS_OF_FIVE[0] = 1;
+    POWERS_OF_TEN[0]  = 1;
+    for (int i = 1; i <= MAX_FRACTION; i++)
+    {
+      POWERS_OF_FIVE[i] = POWERS_OF_FIVE[i - 1] * 5;
+      POWERS_OF_TEN[i]  = POWERS_OF_TEN[i - 1] * 10;
+    }
+  }
+  
+  
+  
+  private FloatFormat()
+  {
+  }
+  
+  
+  
+  /**
+   * Writes <code>value</code> to <code>dest</code> starting at
+   * <code>offset</code>, exactly as <code>Float.toString</code> would.
+   * <code>dest</code> must have room for {@link #MAX_LENGTH} characters.
+   * @return The number of characters written, or -1 if <code>value</code>
+   *         is outside the supported range and nothing was written.
+   */
+  public static int format(float value, char[] dest, int offset)
+  {
+    int bits     = Float.floatToRawIntBits(value);
+    int position = offset;
+    
+    if ((bits & 0x7FFFFFFF) == 0)
+    {
+      if (bits != 0)
+        dest[position++] = '-';
+      dest[position++] = '0';
+      dest[position++] = '.';
+      dest[position++] = '0';
+      return position - offset;
+    }
+    
+    float magnitude = Math.abs(value);
+    
+    if (!(magnitude >= 1e-3f && magnitude < 1e7f))
+      return -1;
+    
+    int  exponent = ((bits >>> MANTISSA_BITS) & 0xFF) - 127 - MANTISSA_BITS;
+    long mantissa = (bits & ((1 << MANTISSA_BITS) - 1)) | (1 << MANTISSA_BITS);
+    
+    // f = mantissa * 2^exponent. Everything below is scaled by 4 so that the
+    // midpoints to the neighbouring floats are integers: the lower neighbour
+    // is only half as far away when the mantissa is a power of two.
+    long    center    = mantissa * 4;
+    long    low       = center - (mantissa == (1 << MANTISSA_BITS) ? 1 : 2);
+    long    high      = center + 2;
+    boolean inclusive = (mantissa & 1) == 0;
+    
+    for (int digits = 0; digits <= MAX_FRACTION; digits++)
+    {
+      // The values times 10^digits are (x * 5^digits) / 2^shift.
+      int shift = 2 - exponent - digits;
+      
+      if (shift < 0 || shift > 62)
+        return -1;
+      
+      long five  = POWERS_OF_FIVE[digits];
+      long min   = ceilShift(low * five, shift, !inclusive);
+      long max   = floorShift(high * five, shift, !inclusive);
+      
+      if (min > max)
+        continue;
+      
+      long exact   = center * five;
+      long nearest = exact >> shift;
+      long rest    = exact - (nearest << shift);
+      
+      // Round half to even, like Float.toString.
+      if (shift > 0 && (rest > (1L << (shift - 1)) || (rest == (1L << (shift - 1)) && (nearest & 1) != 0)))
+        nearest++;
+      nearest = Math.max(min, Math.min(max, nearest));
+      
+      if (bits < 0)
+        dest[position++] = '-';
+      return position - offset + write(nearest, digits, dest, position);
+    }
+    
+    return -1;
+  }
+  
+  
+  
+  /** @return The smallest n with n * 2^shift &gt; value (or &gt;= if not <code>strict</code>). */
+  private static long ceilShift(long value, int shift, boolean strict)
+  {
+    long n = value >> shift;
+    
+    if ((n << shift) < value || (strict && (n << shift) == value))
+      n++;
+    return n;
+  }
+  
+  
+  
+  /** @return The largest n with n * 2^shift &lt; value (or &lt;= if not <code>strict</code>). */
+  private static long floorShift(long value, int shift, boolean strict)
+  {
+    long n = value >> shift;
+    
+    if (strict && (n << shift) == value)
+      n--;
+    return n;
+  }
+  
+  
+  
+  /**
+   * Writes <code>number / 10^digits</code> with at least one fraction digit.
+   * @return The number of characters written.
+   */
+  private static int write(long number, int digits, char[] dest, int offset)
+  {
+    long integer  = number / POWERS_OF_TEN[digits];
+    long fraction = number % POWERS_OF_TEN[digits];
+    int  position = offset + writeInteger(integer, dest, offset);
+    
+    dest[position++] = '.';
+    
+    if (digits == 0)
+    {
+      dest[position++] = '0';
+    }
+    else
+    {
+      for (int i = digits - 1; i >= 0; i--)
+      {
+        dest[position + i] = (char) ('0' + fraction % 10);
+        fraction /= 10;
+      }
+      position += digits;
+    }
+    
+    return position - offset;
+  }
+  
+  
+  
+  private static int writeInteger(long value, char[] dest, int offset)
+  {
+    int length = 1;
+    
+    for (long rest = value / 10; rest > 0; rest /= 10)
+      length++;
+    
+    for (int i = length - 1; i >= 0; i--)
+    {
+      dest[offset + i] = (char) ('0' + value % 10);
+      value /= 10;
+    }
+    
+    return length;
+  }
+}
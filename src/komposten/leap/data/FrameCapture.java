@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+import java.util.ArrayList;
+
+import com.leapmotion.leap.Bone.Type;
+import com.leapmotion.leap.FingerList;
+import com.leapmotion.leap.Frame;
+import com.leapmotion.leap.HandList;
+import com.leapmotion.leap.Matrix;
+import com.leapmotion.leap.Vector;
+
+/**
+ * Copies Leap frames into {@link FrameData} objects on the capture thread,
+ * reading only the parts in a {@link CaptureProfile}.
+ * <br />Every method of the <code>com.leapmotion.leap</code> classes is a
+ * native call, and those that return objects also create a new wrapper
+ * (with a finalizer) each time. So every hand list, finger list and bone is
+ * fetched once and kept while it is read, the list sizes are read once and
+ * used to size the lists of the frame, vectors are copied component by
+ * component straight into the frame's arrays, and bone types are taken from
+ * the type that was asked for instead of being read back.
+ * <br />The number of native calls and the time spent capturing are counted,
+ * so that the cost of a profile can be shown after a recording. The counters
+ * are only written by the capture thread, but can be read from any thread.
+ * @author Komposten (aka Jakob Hjelm)
+ */
+class FrameCapture
+{
+  private static final Type[] BONE_TYPES = Type.values();
+  
+  private CaptureProfile profile_;
+  private boolean        velocities_;
+  private boolean        bases_;
+  /** The native calls made for the frame being captured. */
+  private int            calls_;
+  
+  private volatile long frames_;
+  private volatile long nativeCalls_;
+  private volatile long nanos_;
+  
+  
+  
+  public FrameCapture(CaptureProfile profile)
+  {
+    profile_    = profile;
+    velocities_ = profile.captures(CaptureProfile.VELOCITIES);
+    bases_      = profile.captures(CaptureProfile.BASES);
+  }
+  
+  
+  
+  public CaptureProfile getProfile()
+  {
+    return profile_;
+  }
+  
+  
+  
+  /** Captures the parts of <code>frame</code> that are in the profile. */
+  public FrameData capture(Frame frame)
+  {
+    long      start = System.nanoTime();
+    FrameData data  = new FrameData();
+    
+    calls_ = 0;
+    data.frameId       = frame.id();
+    data.timestamp     = frame.timestamp();
+    data.receivedNanos = start;
+    
+    HandList hands = frame.hands();
+    int      count = hands.count();
+    
+    calls_ += 4;
+    data.hands = new ArrayList<Hand>(count);
+    for (int i = 0; i < count; i++)
+    {
+      calls_++;
+      data.hands.add(captureHand(hands.get(i)));
+    }
+    
+    nativeCalls_ += calls_;
+    nanos_       += System.nanoTime() - start;
+    frames_++;
+    
+    return data;
+  }
+  
+  
+  
+  private Hand captureHand(com.leapmotion.leap.Hand leapHand)
+  {
+    Hand hand = new Hand();
+    
+    hand.id           = leapHand.id();
+    hand.isLeft       = leapHand.isLeft();
+    hand.isRight      = leapHand.isRight();
+    hand.direction    = copy(leapHand.direction());
+    hand.palmPosition = copy(leapHand.palmPosition());
+    hand.palmNormal   = copy(leapHand.palmNormal());
+    calls_ += 3;
+    
+    if (velocities_)
+      hand.palmVelocity = copy(leapHand.palmVelocity());
+    if (bases_)
+      hand.basis = copy(leapHand.basis());
+    
+    if (profile_.captures(CaptureProfile.FINGERS))
+    {
+      FingerList fingers = leapHand.fingers();
+      int        count   = fingers.count();
+      
+      calls_ += 2;
+      hand.fingers = new ArrayList<Finger>(count);
+      for (int i = 0; i < count; i++)
+      {
+        calls_++;
+        hand.fingers.add(captureFinger(fingers.get(i)));
+      }
+    }
+    
+    return hand;
+  }
+  
+  
+  
+  private Finger captureFinger(com.leapmotion.leap.Finger leapFinger)
+  {
+    Finger finger = new Finger();
+    
+    finger.id          = leapFinger.id();
+    finger.direction   = copy(leapFinger.direction());
+    finger.tipPosition = copy(leapFinger.tipPosition());
+    calls_++;
+    
+    if (velocities_)
+      finger.tipVelocity = copy(leapFinger.tipVelocity());
+    
+    if (profile_.captures(CaptureProfile.BONES))
+    {
+      finger.bones = new Bone[BONE_TYPES.length];
+      for (int i = 0; i < BONE_TYPES.length; i++)
+      {
+        calls_++;
+        finger.bones[i] = captureBone(leapFinger.bone(BONE_TYPES[i]), BONE_TYPES[i]);
+      }
+    }
+    
+    return finger;
+  }
+  
+  
+  
+  private Bone captureBone(com.leapmotion.leap.Bone leapBone, Type type)
+  {
+    Bone bone = new Bone();
+    
+    bone.type      = type;
+    bone.length    = leapBone.length();
+    bone.width     = leapBone.width();
+    bone.direction = copy(leapBone.direction());
+    bone.center    = copy(leapBone.center());
+    bone.nextJoint = copy(leapBone.nextJoint());
+    bone.prevJoint = copy(leapBone.prevJoint());
+    calls_ += 2;
+    
+    if (bases_)
+      bone.basis = copy(leapBone.basis());
+    
+    return bone;
+  }
+  
+  
+  
+  /**
+   * Copies the components of a vector into a new array. Counts the call
+   * that returned the vector as well.
+   */
+  private float[] copy(Vector vector)
+  {
+    calls_ += 4;
+    return new float[] { vector.getX(), vector.getY(), vector.getZ() };
+  }
+  
+  
+  
+  /**
+   * Copies the axes and origin of a matrix. Counts the call that returned
+   * the matrix as well.
+   */
+  private Basis copy(Matrix matrix)
+  {
+    Basis basis = new Basis();
+    
+    calls_++;
+    basis.origin = copy(matrix.getOrigin());
+    basis.xBasis = copy(matrix.getXBasis());
+    basis.yBasis = copy(matrix.getYBasis());
+    basis.zBasis = copy(matrix.getZBasis());
+    
+    return basis;
+  }
+  
+  
+  
+  /** @return The number of frames captured. */
+  public long getFrames()
+  {
+    return frames_;
+  }
+  
+  
+  
+  /** @return The average number of native calls made per frame. */
+  public double getCallsPerFrame()
+  {
+    long frames = frames_;
+    return (frames > 0 ? (double) nativeCalls_ / frames : 0);
+  }
+  
+  
+  
+  /** @return The average time spent capturing a frame, in nanoseconds. */
+  public double getNanosPerFrame()
+  {
+    long frames = frames_;
+    return (frames > 0 ? (double) nanos_ / frames : 0);
+  }
+  
+  
+  
+  /** @return The capture cost per frame, for showing to the user. */
+  public String describeCost()
+  {
+    return "Capture: " + Math.round(getCallsPerFrame()) + " native calls, "
+        + Math.round(getNanosPerFrame() / 1000) + " \u00B5s per frame";
+  }
+}
@@ -7,21 +7,23 @@ import java.util.ArrayList;
 import java.util.List;
 
 import com.leapmotion.leap.Bone.Type;
-import com.leapmotion.leap.Frame;
-import com.leapmotion.leap.Matrix;
 
 class FrameData
 {
   long          frameId;
   List<Hand>    hands;
+  /** The capture time in microseconds. Not part of the JSON files. */
+  transient long timestamp;
+  /**
+   * The {@link System#nanoTime()} at which the frame arrived from the source,
+   * set by the source or else by the {@link RecordingPipeline}. Not part of
+   * the JSON files.
+   */
+  transient long receivedNanos;
   
-  public FrameData(Frame frame)
+  FrameData()
   {
-    frameId = frame.id();
-    hands   = new ArrayList<Hand>();
-    
-    for (int i = 0; i < frame.hands().count(); i++)
-      hands.add(new Hand(frame.hands().get(i)));
+    hands = new ArrayList<Hand>();
   }
   
   
@@ -47,20 +49,8 @@ class Hand
   public boolean isRight;
   List<Finger>   fingers;
   
-  public Hand(com.leapmotion.leap.Hand hand)
+  Hand()
   {
-    id           = hand.id();
-    direction    = hand.direction   ().toFloatArray();
-    palmPosition = hand.palmPosition().toFloatArray();
-    palmNormal   = hand.palmNormal  ().toFloatArray();
-    palmVelocity = hand.palmVelocity().toFloatArray();
-    basis        = new Basis(hand.basis());
-    isLeft       = hand.isLeft();
-    isRight      = hand.isRight();
-    fingers      = new ArrayList<Finger>();
-    
-    for (int i = 0; i < hand.fingers().count(); i++)
-      fingers.add(new Finger(hand.fingers().get(i)));
   }
 }
 
@@ -73,17 +63,8 @@ class Finger
   public float[] tipVelocity;
   public Bone [] bones;
   
-  public Finger(com.leapmotion.leap.Finger finger)
+  Finger()
   {
-    id          = finger.id();
-    direction   = finger.direction()  .toFloatArray();
-    tipPosition = finger.tipPosition().toFloatArray();
-    tipVelocity = finger.tipVelocity().toFloatArray();
-    bones       = new Bone[4];
-    bones[0]    = new Bone(finger.bone(Type.TYPE_METACARPAL));
-    bones[1]    = new Bone(finger.bone(Type.TYPE_PROXIMAL));
-    bones[2]    = new Bone(finger.bone(Type.TYPE_INTERMEDIATE));
-    bones[3]    = new Bone(finger.bone(Type.TYPE_DISTAL));
   }
 }
 
@@ -101,16 +82,8 @@ class Bone
   
   
   
-  public Bone(com.leapmotion.leap.Bone bone)
+  Bone()
   {
-    type      = bone.type();
-    length    = bone.length();
-    width     = bone.width();
-    direction = bone.direction().toFloatArray();
-    center    = bone.center()   .toFloatArray();
-    nextJoint = bone.nextJoint().toFloatArray();
-    prevJoint = bone.prevJoint().toFloatArray();
-    basis     = new Basis(bone.basis());
   }
 }
 
@@ -122,11 +95,7 @@ class Basis
   public float[] yBasis;
   public float[] zBasis;
   
-  public Basis(Matrix matrix)
+  Basis()
   {
-    origin = matrix.getOrigin().toFloatArray();
-    xBasis = matrix.getXBasis().toFloatArray();
-    yBasis = matrix.getYBasis().toFloatArray();
-    zBasis = matrix.getZBasis().toFloatArray();
   }
 }
\ No newline at end of file
@@ -0,0 +1,387 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.leapmotion.leap.Bone.Type;
+
+/**
+ * Handwritten Gson type adapters for reading the frame classes, which read
+ * the same JSON as Gson's reflection-based deserialisation without the
+ * reflection. Frames are written by {@link JsonFrameWriter}.
+ * <br />Which fields are read is decided per instance by a field projection
+ * (see the field constants, which {@link JsonFrameWriter} uses for writing
+ * as well); the other fields are skipped.
+ * @author Komposten (aka Jakob Hjelm)
+ */
+class FrameJson
+{
+  /** The finger bones. */
+  public static final int BONES = 1 << 0;
+  /** All fields; the layout of "Save All". */
+  public static final int ALL   = BONES;
+  
+  private static final Map<String, Type> TYPES = new HashMap<String, Type>();
+  
+  static
+  {
+    for (Type type : Type.values())
+      TYPES.put(type.name(), type);
+  }
+  
+  private int  fields_;
+  private Gson gson_;
+  
+  private TypeAdapter<FrameData> frameAdapter_;
+  private TypeAdapter<Hand>      handAdapter_;
+  private TypeAdapter<Finger>    fingerAdapter_;
+  private TypeAdapter<Bone>      boneAdapter_;
+  private TypeAdapter<Basis>     basisAdapter_;
+  
+  
+  
+  /**
+   * @param fields The fields to read (see the field constants). Fields
+   *          that are not part of the projection are skipped.
+   */
+  public FrameJson(int fields)
+  {
+    fields_        = fields;
+    frameAdapter_  = new FrameAdapter();
+    handAdapter_   = new HandAdapter();
+    fingerAdapter_ = new FingerAdapter();
+    boneAdapter_   = new BoneAdapter();
+    basisAdapter_  = new BasisAdapter();
+    gson_          = new GsonBuilder()
+        .registerTypeAdapter(FrameData.class, frameAdapter_)
+        .registerTypeAdapter(Hand.class, handAdapter_)
+        .registerTypeAdapter(Finger.class, fingerAdapter_)
+        .registerTypeAdapter(Bone.class, boneAdapter_)
+        .registerTypeAdapter(Basis.class, basisAdapter_)
+        .create();
+  }
+  
+  
+  
+  /** @return The projection as {@link #FrameJson(int)} was given it. */
+  public int getFields()
+  {
+    return fields_;
+  }
+  
+  
+  
+  /** @return A Gson instance that uses these adapters for reading the frame classes. */
+  public Gson getGson()
+  {
+    return gson_;
+  }
+  
+  
+  
+  /** Reads a frame from a JSON object. */
+  public FrameData read(JsonReader in) throws IOException
+  {
+    return frameAdapter_.read(in);
+  }
+  
+  
+  
+  private boolean includes(int field)
+  {
+    return (fields_ & field) != 0;
+  }
+  
+  
+  
+  private static float[] readVector(JsonReader in) throws IOException
+  {
+    if (in.peek() == JsonToken.NULL)
+    {
+      in.nextNull();
+      return null;
+    }
+    
+    float[] vector = new float[3];
+    int     size   = 0;
+    
+    in.beginArray();
+    while (in.hasNext())
+    {
+      if (size == vector.length)
+        vector = Arrays.copyOf(vector, size * 2);
+      vector[size++] = (float) in.nextDouble();
+    }
+    in.endArray();
+    
+    return (size == vector.length ? vector : Arrays.copyOf(vector, size));
+  }
+  
+  
+  
+  /** @return <code>true</code> if the next value is <code>null</code>, which is then skipped. */
+  private static boolean skipNull(JsonReader in) throws IOException
+  {
+    if (in.peek() != JsonToken.NULL)
+      return false;
+    
+    in.nextNull();
+    return true;
+  }
+  
+  
+  
+  private class FrameAdapter extends ReadAdapter<FrameData>
+  {
+    @Override
+    public FrameData read(JsonReader in) throws IOException
+    {
+      if (skipNull(in))
+        return null;
+      
+      FrameData frame = new FrameData();
+      
+      in.beginObject();
+      while (in.hasNext())
+      {
+        String name = in.nextName();
+        
+        if (name.equals("frameId"))
+          frame.frameId = in.nextLong();
+        else if (name.equals("hands"))
+          frame.hands = readHands(in);
+        else
+          in.skipValue();
+      }
+      in.endObject();
+      
+      return frame;
+    }
+    
+    private List<Hand> readHands(JsonReader in) throws IOException
+    {
+      if (skipNull(in))
+        return null;
+      
+      List<Hand> hands = new ArrayList<Hand>();
+      
+      in.beginArray();
+      while (in.hasNext())
+        hands.add(handAdapter_.read(in));
+      in.endArray();
+      
+      return hands;
+    }
+  }
+  
+  
+  
+  private class HandAdapter extends ReadAdapter<Hand>
+  {
+    @Override
+    public Hand read(JsonReader in) throws IOException
+    {
+      if (skipNull(in))
+        return null;
+      
+      Hand hand = new Hand();
+      
+      in.beginObject();
+      while (in.hasNext())
+      {
+        String name = in.nextName();
+        
+        if (name.equals("id"))
+          hand.id = in.nextInt();
+        else if (name.equals("direction"))
+          hand.direction = readVector(in);
+        else if (name.equals("palmPosition"))
+          hand.palmPosition = readVector(in);
+        else if (name.equals("palmNormal"))
+          hand.palmNormal = readVector(in);
+        else if (name.equals("palmVelocity"))
+          hand.palmVelocity = readVector(in);
+        else if (name.equals("basis"))
+          hand.basis = basisAdapter_.read(in);
+        else if (name.equals("isLeft"))
+          hand.isLeft = in.nextBoolean();
+        else if (name.equals("isRight"))
+          hand.isRight = in.nextBoolean();
+        else if (name.equals("fingers"))
+          hand.fingers = readFingers(in);
+        else
+          in.skipValue();
+      }
+      in.endObject();
+      
+      return hand;
+    }
+    
+    private List<Finger> readFingers(JsonReader in) throws IOException
+    {
+      if (skipNull(in))
+        return null;
+      
+      List<Finger> fingers = new ArrayList<Finger>();
+      
+      in.beginArray();
+      while (in.hasNext())
+        fingers.add(fingerAdapter_.read(in));
+      in.endArray();
+      
+      return fingers;
+    }
+  }
+  
+  
+  
+  private class FingerAdapter extends ReadAdapter<Finger>
+  {
+    @Override
+    public Finger read(JsonReader in) throws IOException
+    {
+      if (skipNull(in))
+        return null;
+      
+      Finger finger = new Finger();
+      
+      in.beginObject();
+      while (in.hasNext())
+      {
+        String name = in.nextName();
+        
+        if (name.equals("id"))
+          finger.id = in.nextInt();
+        else if (name.equals("direction"))
+          finger.direction = readVector(in);
+        else if (name.equals("tipPosition"))
+          finger.tipPosition = readVector(in);
+        else if (name.equals("tipVelocity"))
+          finger.tipVelocity = readVector(in);
+        else if (name.equals("bones") && includes(BONES))
+          finger.bones = readBones(in);
+        else
+          in.skipValue();
+      }
+      in.endObject();
+      
+      return finger;
+    }
+    
+    private Bone[] readBones(JsonReader in) throws IOException
+    {
+      if (skipNull(in))
+        return null;
+      
+      List<Bone> bones = new ArrayList<Bone>(4);
+      
+      in.beginArray();
+      while (in.hasNext())
+        bones.add(boneAdapter_.read(in));
+      in.endArray();
+      
+      return bones.toArray(new Bone[bones.size()]);
+    }
+  }
+  
+  
+  
+  private class BoneAdapter extends ReadAdapter<Bone>
+  {
+    @Override
+    public Bone read(JsonReader in) throws IOException
+    {
+      if (skipNull(in))
+        return null;
+      
+      Bone bone = new Bone();
+      
+      in.beginObject();
+      while (in.hasNext())
+      {
+        String name = in.nextName();
+        
+        if (name.equals("type"))
+          bone.type = (skipNull(in) ? null : TYPES.get(in.nextString()));
+        else if (name.equals("length"))
+          bone.length = (float) in.nextDouble();
+        else if (name.equals("width"))
+          bone.width = (float) in.nextDouble();
+        else if (name.equals("direction"))
+          bone.direction = readVector(in);
+        else if (name.equals("center"))
+          bone.center = readVector(in);
+        else if (name.equals("nextJoint"))
+          bone.nextJoint = readVector(in);
+        else if (name.equals("prevJoint"))
+          bone.prevJoint = readVector(in);
+        else if (name.equals("basis"))
+          bone.basis = basisAdapter_.read(in);
+        else
+          in.skipValue();
+      }
+      in.endObject();
+      
+      return bone;
+    }
+  }
+  
+  
+  
+  private class BasisAdapter extends ReadAdapter<Basis>
+  {
+    @Override
+    public Basis read(JsonReader in) throws IOException
+    {
+      if (skipNull(in))
+        return null;
+      
+      Basis basis = new Basis();
+      
+      in.beginObject();
+      while (in.hasNext())
+      {
+        String name = in.nextName();
+        
+        if (name.equals("origin"))
+          basis.origin = readVector(in);
+        else if (name.equals("xBasis"))
+          basis.xBasis = readVector(in);
+        else if (name.equals("yBasis"))
+          basis.yBasis = readVector(in);
+        else if (name.equals("zBasis"))
+          basis.zBasis = readVector(in);
+        else
+          in.skipValue();
+      }
+      in.endObject();
+      
+      return basis;
+    }
+  }
+  
+  
+  
+  /** A type adapter that only reads; frames are written by {@link JsonFrameWriter}. */
+  private static abstract class ReadAdapter<T> extends TypeAdapter<T>
+  {
+    @Override
+    public void write(JsonWriter out, T value)
+    {
+      throw new UnsupportedOperationException("Frames are written by JsonFrameWriter.");
+    }
+  }
+}
@@ -0,0 +1,21 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+import java.io.IOException;
+
+/**
+ * Reads the frames of a recording one at a time.
+ * @author Komposten (aka Jakob Hjelm)
+ */
+interface FrameReader
+{
+  /**
+   * @return The next frame, or <code>null</code> if there are no more
+   *         frames.
+   */
+  FrameData next() throws IOException;
+  
+  void close() throws IOException;
+}
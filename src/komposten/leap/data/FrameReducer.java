@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Decides which of the delivered frames are recorded, to save storage and
+ * serialisation on recordings that are mostly idle. Each reduction is
+ * optional:
+ * <ul>
+ * <li>a maximum frame rate, by the frame timestamps (or by the time of
+ * arrival until a frame with a timestamp arrives, e.g. for JSON replays).
+ * Frames are kept evenly, without drifting, and a pause does not make up
+ * for itself with a burst of frames.</li>
+ * <li>dropping frames without hands. The first one after a frame with hands
+ * is kept, to mark that the hands have gone.</li>
+ * <li>a motion threshold: a frame is left out if it has the same hands and
+ * fingers as the last frame that was kept, no palm or tip has moved more
+ * than a distance from where it was in that frame, and no palm or tip
+ * velocity is above a speed. Still stretches are thus collapsed into the
+ * frame they started with, and slow drifts still show up once they add up
+ * to the distance.</li>
+ * </ul>
+ * The checks are made in that order, and each frame left out is counted
+ * under the first one that rejected it.
+ * <br />A reducer is used by the capture thread only, for one recording.
+ * Its settings and counters may be read by other threads.
+ * @author Komposten (aka Jakob Hjelm)
+ */
+class FrameReducer
+{
+  /** A distance in millimetres that a steady hand does not drift by between frames. */
+  public static final float DEFAULT_MOTION_THRESHOLD = 2;
+  /** A speed in millimetres per second that a steady hand stays below. */
+  public static final float DEFAULT_SPEED_THRESHOLD  = 50;
+  
+  private double  maxFps_;
+  private boolean dropEmpty_;
+  private float   motionThreshold_;
+  private float   speedThreshold_;
+  
+  private long      interval_;
+  private long      nextDue_;
+  private boolean   hasTimestamps_;
+  private FrameData lastKept_;
+  
+  private volatile long framesKept_;
+  private volatile long skippedRate_;
+  private volatile long skippedEmpty_;
+  private volatile long skippedStill_;
+  
+  
+  
+  /**
+   * @param maxFps The highest frame rate to record, or 0 for no limit.
+   * @param dropEmpty If frames without hands should be dropped.
+   * @param motionThreshold The distance in millimetres that a palm or tip
+   *          must move for a frame to be kept, or 0 to keep still frames.
+   * @param speedThreshold The speed in millimetres per second above which a
+   *          frame is kept even if nothing has moved that far yet, or 0 to
+   *          only look at the distance.
+   */
+  public FrameReducer(double maxFps, boolean dropEmpty, float motionThreshold, float speedThreshold)
+  {
+    maxFps_          = maxFps;
+    dropEmpty_       = dropEmpty;
+    motionThreshold_ = motionThreshold;
+    speedThreshold_  = speedThreshold;
+    interval_        = (maxFps > 0 ? Math.round(1e6 / maxFps) : 0);
+  }
+  
+  
+  
+  /** @return <code>true</code> if the frame should be recorded. */
+  public boolean accept(FrameData frame)
+  {
+    boolean empty = (frame.hands == null || frame.hands.isEmpty());
+    
+    if (dropEmpty_ && empty && (lastKept_ == null || lastKept_.hands == null || lastKept_.hands.isEmpty()))
+    {
+      skippedEmpty_++;
+      return false;
+    }
+    
+    if (!hasTimestamps_ && frame.timestamp != 0)
+    {
+      hasTimestamps_ = true;
+      nextDue_       = 0;
+    }
+    
+    long time = (hasTimestamps_ ? frame.timestamp : System.nanoTime() / 1000);
+    
+    // A clock that jumps back (e.g. a replay that starts over) starts over.
+    if (time < nextDue_ - 2 * interval_)
+      nextDue_ = 0;
+    
+    if (interval_ > 0 && lastKept_ != null && time < nextDue_)
+    {
+      skippedRate_++;
+      return false;
+    }
+    
+    if (motionThreshold_ > 0 && lastKept_ != null && isStill(frame.hands, lastKept_.hands))
+    {
+      skippedStill_++;
+      return false;
+    }
+    
+    nextDue_  = Math.max(nextDue_, time - interval_) + interval_;
+    lastKept_ = frame;
+    framesKept_++;
+    return true;
+  }
+  
+  
+  
+  private boolean isStill(List<Hand> hands, List<Hand> lastHands)
+  {
+    int count = (hands != null ? hands.size() : 0);
+    
+    if (count != (lastHands != null ? lastHands.size() : 0))
+      return false;
+    
+    for (int i = 0; i < count; i++)
+    {
+      Hand hand = hands.get(i);
+      Hand last = lastHands.get(i);
+      
+      if (hand.id != last.id || hasMoved(hand.palmPosition, last.palmPosition) || isFast(hand.palmVelocity))
+        return false;
+      
+      int fingers = (hand.fingers != null ? hand.fingers.size() : 0);
+      
+      if (fingers != (last.fingers != null ? last.fingers.size() : 0))
+        return false;
+      
+      for (int j = 0; j < fingers; j++)
+      {
+        Finger finger     = hand.fingers.get(j);
+        Finger lastFinger = last.fingers.get(j);
+        
+        if (finger.id != lastFinger.id || hasMoved(finger.tipPosition, lastFinger.tipPosition)
+            || isFast(finger.tipVelocity))
+          return false;
+      }
+    }
+    
+    return true;
+  }
+  
+  
+  
+  private boolean hasMoved(float[] position, float[] lastPosition)
+  {
+    if (position == null || lastPosition == null)
+      return (position != lastPosition);
+    
+    float dx = position[0] - lastPosition[0];
+    float dy = position[1] - lastPosition[1];
+    float dz = position[2] - lastPosition[2];
+    
+    return dx * dx + dy * dy + dz * dz > motionThreshold_ * motionThreshold_;
+  }
+  
+  
+  
+  private boolean isFast(float[] velocity)
+  {
+    if (speedThreshold_ <= 0 || velocity == null)
+      return false;
+    
+    return velocity[0] * velocity[0] + velocity[1] * velocity[1] + velocity[2] * velocity[2]
+        > speedThreshold_ * speedThreshold_;
+  }
+  
+  
+  
+  /** @return <code>true</code> if any of the reductions are turned on. */
+  public boolean isActive()
+  {
+    return maxFps_ > 0 || dropEmpty_ || motionThreshold_ > 0;
+  }
+  
+  
+  
+  public double getMaxFps()
+  {
+    return maxFps_;
+  }
+  
+  
+  
+  public boolean dropsEmptyFrames()
+  {
+    return dropEmpty_;
+  }
+  
+  
+  
+  public float getMotionThreshold()
+  {
+    return motionThreshold_;
+  }
+  
+  
+  
+  public float getSpeedThreshold()
+  {
+    return speedThreshold_;
+  }
+  
+  
+  
+  /** @return The number of frames that have been kept. */
+  public long getFramesKept()
+  {
+    return framesKept_;
+  }
+  
+  
+  
+  /** @return The number of frames left out by the maximum frame rate. */
+  public long getSkippedByRate()
+  {
+    return skippedRate_;
+  }
+  
+  
+  
+  /** @return The number of frames without hands that were left out. */
+  public long getSkippedEmpty()
+  {
+    return skippedEmpty_;
+  }
+  
+  
+  
+  /** @return The number of frames left out because nothing had moved. */
+  public long getSkippedStill()
+  {
+    return skippedStill_;
+  }
+  
+  
+  
+  /** @return A line with the settings and the frames left out, for showing to the user. */
+  public String describe()
+  {
+    return String.format(Locale.ROOT, "Skipped: %d over %.0f fps, %d without hands, %d still (%.1f mm, %.0f mm/s)",
+        skippedRate_, maxFps_, skippedEmpty_, skippedStill_, motionThreshold_, speedThreshold_);
+  }
+}
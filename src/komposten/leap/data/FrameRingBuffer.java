@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded ring buffer that hands frames from exactly one producer thread
+ * (the Leap callback) to exactly one consumer thread (the recording thread).
+ * <br />All slots are allocated up front and neither end ever blocks, locks
+ * or allocates: {@link #offer(FrameData)} fails if the buffer is full and
+ * {@link #poll()} returns <code>null</code> if it is empty.
+ * <br />The producer may also make room by removing the oldest frame (see
+ * {@link #offerOrEvict(FrameData)}), so both ends take a frame by moving the
+ * head with a compare-and-set. The consumer only keeps a frame it has read
+ * if the head has not moved under it, and only clears a slot that still
+ * holds that frame.
+ * @author Komposten (aka Jakob Hjelm)
+ */
+class FrameRingBuffer
+{
+  private final AtomicReferenceArray<FrameData> buffer_;
+  private final int                             mask_;
+  
+  /** The position of the next frame to be read. Moved by the consumer, or by the producer when evicting. */
+  private final AtomicLong head_;
+  /** The position of the next frame to be written. Only written by the producer. */
+  private final AtomicLong tail_;
+  
+  /** The producer's last known value of {@link #head_}. */
+  private long cachedHead_;
+  /** The consumer's last known value of {@link #tail_}. */
+  private long cachedTail_;
+  
+  
+  
+  /**
+   * @param capacity The maximum number of frames in the buffer. Rounded up
+   *          to the nearest power of two.
+   */
+  public FrameRingBuffer(int capacity)
+  {
+    int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+    
+    buffer_ = new AtomicReferenceArray<FrameData>(size);
+    mask_   = size - 1;
+    head_   = new AtomicLong();
+    tail_   = new AtomicLong();
+  }
+  
+  
+  
+  /**
+   * Adds a frame to the buffer. May only be called by the producer thread.
+   * @return <code>true</code> if the frame was added, <code>false</code> if
+   *         the buffer was full.
+   */
+  public boolean offer(FrameData frame)
+  {
+    long tail = tail_.get();
+    
+    if (tail - cachedHead_ >= buffer_.length())
+    {
+      cachedHead_ = head_.get();
+      if (tail - cachedHead_ >= buffer_.length())
+        return false;
+    }
+    
+    buffer_.lazySet((int) tail & mask_, frame);
+    tail_.lazySet(tail + 1);
+    return true;
+  }
+  
+  
+  
+  /**
+   * Adds a frame to the buffer, removing the oldest frame first if the
+   * buffer is full. May only be called by the producer thread.
+   * @return The frame that was removed, or <code>null</code> if there was
+   *         room.
+   */
+  public FrameData offerOrEvict(FrameData frame)
+  {
+    while (!offer(frame))
+    {
+      long head = cachedHead_;
+      
+      // The slot of the oldest frame is the one the new frame goes into.
+      if (head_.compareAndSet(head, head + 1))
+      {
+        FrameData evicted = buffer_.getAndSet((int) head & mask_, frame);
+        
+        cachedHead_ = head + 1;
+        tail_.lazySet(tail_.get() + 1);
+        return evicted;
+      }
+    }
+    
+    return null;
+  }
+  
+  
+  
+  /**
+   * Removes the oldest frame from the buffer. May only be called by the
+   * consumer thread.
+   * @return The frame, or <code>null</code> if the buffer was empty.
+   */
+  public FrameData poll()
+  {
+    while (true)
+    {
+      long head = head_.get();
+      
+      if (head >= cachedTail_)
+      {
+        cachedTail_ = tail_.get();
+        if (head >= cachedTail_)
+          return null;
+      }
+      
+      int       index = (int) head & mask_;
+      FrameData frame = buffer_.get(index);
+      
+      if (head_.compareAndSet(head, head + 1))
+      {
+        buffer_.compareAndSet(index, frame, null);
+        return frame;
+      }
+    }
+  }
+  
+  
+  
+  /** @return The number of frames currently in the buffer. */
+  public int size()
+  {
+    long head = head_.get();
+    return (int) (tail_.get() - head);
+  }
+  
+  
+  
+  public int capacity()
+  {
+    return buffer_.length();
+  }
+}
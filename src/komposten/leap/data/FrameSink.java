@@ -0,0 +1,28 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A destination for recorded frames, e.g. a file or an in-memory list.
+ * <br />A sink is only ever used by the recording thread of a
+ * {@link RecordingPipeline}, so implementations need not be thread-safe.
+ * @author Komposten (aka Jakob Hjelm)
+ */
+interface FrameSink extends Closeable
+{
+  /** Stores or writes a single frame. */
+  void write(FrameData frame) throws IOException;
+  
+  /**
+   * Called when the recording thread has caught up with the capture thread,
+   * to push any buffered frames to their final destination.
+   */
+  void flush() throws IOException;
+  
+  /** Called once when the recording stops. No frames are written after this. */
+  void close() throws IOException;
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+/**
+ * Where recorded frames come from: the Leap Motion Controller
+ * ({@link LeapFrameSource}), a generator ({@link SyntheticFrameSource}) or
+ * a saved recording ({@link ReplayFrameSource}).
+ * <br />A source is opened once, after which it reports its status to the
+ * listener. Frames are only delivered between {@link #start(CaptureProfile)}
+ * and {@link #stop()}, one at a time from a single thread (the capture
+ * thread), so the listener may hand them straight to
+ * {@link RecordingPipeline#publish(FrameData)}.
+ * @author Komposten (aka Jakob Hjelm)
+ */
+interface FrameSource
+{
+  /**
+   * Connects the source and starts reporting its status to
+   * <code>listener</code>.
+   */
+  void open(Listener listener);
+  
+  /**
+   * Starts delivering frames, capturing only the parts in
+   * <code>profile</code>. Does nothing if frames are already being
+   * delivered.
+   */
+  void start(CaptureProfile profile);
+  
+  /**
+   * Stops delivering frames. Once this returns, no more frames are delivered
+   * until the source is started again.
+   */
+  void stop();
+  
+  /** Stops the source and releases its resources. It can not be used after this. */
+  void close();
+  
+  /**
+   * @return The cost of capturing the frames of the latest start, for
+   *         showing to the user, or an empty string if the source does not
+   *         measure it.
+   */
+  String describeCost();
+  
+  
+  
+  /**
+   * Receives the frames and status changes of a source. The frame and error
+   * callbacks are made on the capture thread, status changes may come from
+   * any thread.
+   */
+  interface Listener
+  {
+    void onFrame(FrameData frame);
+    
+    /** Called when the state of the source changes, with a message for the user. */
+    void onStatus(String message);
+    
+    /**
+     * Called on the capture thread when a source that can run out of frames
+     * (like a replay) has delivered its last frame.
+     */
+    void onEnd();
+    
+    /** Called on the capture thread if capturing failed. No more frames are delivered. */
+    void onError(Exception e);
+  }
+}
@@ -0,0 +1,698 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.leapmotion.leap.Bone.Type;
+
+/**
+ * An in-memory recording, stored as columns of primitive values instead of
+ * as {@link FrameData} objects.
+ * <br />Each kind of object (frame, hand, finger, bone and basis) is a table
+ * with one {@link FloatColumn}, {@link IntColumn} or {@link LongColumn} per
+ * field, and rows that refer to their children by index. This leaves out the
+ * object headers, references and list overhead of the object graph, which
+ * take up most of its size: a frame with two hands and all bones takes about
+ * 5 kB here instead of about 16 kB, and without bones about 0.7 kB instead
+ * of 2.2 kB.
+ * <br />Frames can be read back either through the reusable views returned
+ * by {@link #view()}, which do not allocate anything, or as new
+ * <code>FrameData</code> objects through {@link #get(int)} and
+ * {@link #asList()}.
+ * <br />Null fields are recorded in the flags of each row, so reading a frame
+ * back gives the same result as the frame that was stored. The vectors are
+ * assumed to hold three values, bone arrays not to contain nulls, and bases
+ * to either be null or have all four vectors.
+ * <br />Frames are added by a single thread, but other threads may read the
+ * frames below {@link #size()} at the same time, e.g. to save a snapshot of
+ * a recording in progress. The size is only increased once a frame has been
+ * added completely, and added frames never move, so those frames are a
+ * consistent prefix of the recording that is read without copying.
+ * <br />The columns are on the Java heap, so there is nothing to release.
+ * See {@link SlabFrameStore} for a recording kept outside of the heap.
+ * @author Komposten (aka Jakob Hjelm)
+ */
+class FrameStore implements RecordedFrames
+{
+  static final int HAND_LEFT          = 1 << 0;
+  static final int HAND_RIGHT         = 1 << 1;
+  static final int HAND_DIRECTION     = 1 << 2;
+  static final int HAND_PALM_POSITION = 1 << 3;
+  static final int HAND_PALM_NORMAL   = 1 << 4;
+  static final int HAND_PALM_VELOCITY = 1 << 5;
+  static final int HAND_FINGERS       = 1 << 6;
+  
+  static final int FINGER_DIRECTION    = 1 << 0;
+  static final int FINGER_TIP_POSITION = 1 << 1;
+  static final int FINGER_TIP_VELOCITY = 1 << 2;
+  static final int FINGER_BONES        = 1 << 3;
+  
+  static final int BONE_DIRECTION  = 1 << 0;
+  static final int BONE_CENTER     = 1 << 1;
+  static final int BONE_NEXT_JOINT = 1 << 2;
+  static final int BONE_PREV_JOINT = 1 << 3;
+  static final int BONE_TYPE       = 1 << 4;
+  
+  /** Hand and finger flags keep the number of children above this shift. */
+  private static final int COUNT_SHIFT = 8;
+  /** Bone flags keep the type's ordinal above this shift. */
+  private static final int TYPE_SHIFT  = 8;
+  private static final int NO_BASIS    = -1;
+  
+  private static final Type[] TYPES = Type.values();
+  
+  private LongColumn frameIds_;
+  private LongColumn timestamps_;
+  private IntColumn  frameFirstHand_;
+  private IntColumn  frameHandCount_;
+  
+  private IntColumn   handIds_;
+  private IntColumn   handFlags_;
+  private IntColumn   handFirstFinger_;
+  private IntColumn   handBasis_;
+  private FloatColumn handDirection_;
+  private FloatColumn palmPosition_;
+  private FloatColumn palmNormal_;
+  private FloatColumn palmVelocity_;
+  
+  private IntColumn   fingerIds_;
+  private IntColumn   fingerFlags_;
+  private IntColumn   fingerFirstBone_;
+  private FloatColumn fingerDirection_;
+  private FloatColumn tipPosition_;
+  private FloatColumn tipVelocity_;
+  
+  private IntColumn   boneFlags_;
+  private IntColumn   boneBasis_;
+  private FloatColumn boneSize_;
+  private FloatColumn boneDirection_;
+  private FloatColumn boneCenter_;
+  private FloatColumn nextJoint_;
+  private FloatColumn prevJoint_;
+  
+  private FloatColumn bases_;
+  private float[]     scratch_;
+  
+  /** The number of frames that have been added completely, which other threads may read. */
+  private volatile int size_;
+  
+  
+  
+  public FrameStore()
+  {
+    frameIds_       = new LongColumn();
+    timestamps_     = new LongColumn();
+    frameFirstHand_ = new IntColumn();
+    frameHandCount_ = new IntColumn();
+    
+    handIds_         = new IntColumn();
+    handFlags_       = new IntColumn();
+    handFirstFinger_ = new IntColumn();
+    handBasis_       = new IntColumn();
+    handDirection_   = new FloatColumn(3);
+    palmPosition_    = new FloatColumn(3);
+    palmNormal_      = new FloatColumn(3);
+    palmVelocity_    = new FloatColumn(3);
+    
+    fingerIds_       = new IntColumn();
+    fingerFlags_     = new IntColumn();
+    fingerFirstBone_ = new IntColumn();
+    fingerDirection_ = new FloatColumn(3);
+    tipPosition_     = new FloatColumn(3);
+    tipVelocity_     = new FloatColumn(3);
+    
+    boneFlags_     = new IntColumn();
+    boneBasis_     = new IntColumn();
+    boneSize_      = new FloatColumn(2);
+    boneDirection_ = new FloatColumn(3);
+    boneCenter_    = new FloatColumn(3);
+    nextJoint_     = new FloatColumn(3);
+    prevJoint_     = new FloatColumn(3);
+    
+    bases_   = new FloatColumn(12);
+    scratch_ = new float[12];
+  }
+  
+  
+  
+  @Override
+  public void write(FrameData frame)
+  {
+    add(frame);
+  }
+  
+  
+  
+  @Override
+  public void flush()
+  {
+  }
+  
+  
+  
+  @Override
+  public void close()
+  {
+  }
+  
+  
+  
+  @Override
+  public void retain()
+  {
+  }
+  
+  
+  
+  @Override
+  public void release()
+  {
+  }
+  
+  
+  
+  /**
+   * Copies a frame into the store. The frame object itself is not kept.
+   * @return The index of the frame.
+   */
+  public int add(FrameData frame)
+  {
+    int handCount = (frame.hands != null ? frame.hands.size() : 0);
+    
+    frameFirstHand_.add(handIds_.size());
+    frameHandCount_.add(handCount);
+    
+    for (int i = 0; i < handCount; i++)
+      addHand(frame.hands.get(i));
+    
+    timestamps_.add(frame.timestamp);
+    
+    int index = frameIds_.add(frame.frameId);
+    size_ = index + 1;
+    return index;
+  }
+  
+  
+  
+  private void addHand(Hand hand)
+  {
+    int fingerCount = (hand.fingers != null ? hand.fingers.size() : 0);
+    int flags       = fingerCount << COUNT_SHIFT;
+    
+    flags |= (hand.isLeft               ? HAND_LEFT          : 0);
+    flags |= (hand.isRight              ? HAND_RIGHT         : 0);
+    flags |= (hand.direction    != null ? HAND_DIRECTION     : 0);
+    flags |= (hand.palmPosition != null ? HAND_PALM_POSITION : 0);
+    flags |= (hand.palmNormal   != null ? HAND_PALM_NORMAL   : 0);
+    flags |= (hand.palmVelocity != null ? HAND_PALM_VELOCITY : 0);
+    flags |= (hand.fingers      != null ? HAND_FINGERS       : 0);
+    
+    handIds_        .add(hand.id);
+    handFlags_      .add(flags);
+    handFirstFinger_.add(fingerIds_.size());
+    handBasis_      .add(addBasis(hand.basis));
+    handDirection_  .add(hand.direction);
+    palmPosition_   .add(hand.palmPosition);
+    palmNormal_     .add(hand.palmNormal);
+    palmVelocity_   .add(hand.palmVelocity);
+    
+    for (int i = 0; i < fingerCount; i++)
+      addFinger(hand.fingers.get(i));
+  }
+  
+  
+  
+  private void addFinger(Finger finger)
+  {
+    int boneCount = (finger.bones != null ? finger.bones.length : 0);
+    int flags     = boneCount << COUNT_SHIFT;
+    
+    flags |= (finger.direction   != null ? FINGER_DIRECTION    : 0);
+    flags |= (finger.tipPosition != null ? FINGER_TIP_POSITION : 0);
+    flags |= (finger.tipVelocity != null ? FINGER_TIP_VELOCITY : 0);
+    flags |= (finger.bones       != null ? FINGER_BONES        : 0);
+    
+    fingerIds_      .add(finger.id);
+    fingerFlags_    .add(flags);
+    fingerFirstBone_.add(boneFlags_.size());
+    fingerDirection_.add(finger.direction);
+    tipPosition_    .add(finger.tipPosition);
+    tipVelocity_    .add(finger.tipVelocity);
+    
+    for (int i = 0; i < boneCount; i++)
+      addBone(finger.bones[i]);
+  }
+  
+  
+  
+  private void addBone(Bone bone)
+  {
+    int flags = 0;
+    
+    flags |= (bone.direction != null ? BONE_DIRECTION  : 0);
+    flags |= (bone.center    != null ? BONE_CENTER     : 0);
+    flags |= (bone.nextJoint != null ? BONE_NEXT_JOINT : 0);
+    flags |= (bone.prevJoint != null ? BONE_PREV_JOINT : 0);
+    if (bone.type != null)
+      flags |= BONE_TYPE | (bone.type.ordinal() << TYPE_SHIFT);
+    
+    boneFlags_    .add(flags);
+    boneBasis_    .add(addBasis(bone.basis));
+    boneDirection_.add(bone.direction);
+    boneCenter_   .add(bone.center);
+    nextJoint_    .add(bone.nextJoint);
+    prevJoint_    .add(bone.prevJoint);
+    
+    scratch_[0] = bone.length;
+    scratch_[1] = bone.width;
+    boneSize_.add(scratch_);
+  }
+  
+  
+  
+  private int addBasis(Basis basis)
+  {
+    if (basis == null)
+      return NO_BASIS;
+    
+    System.arraycopy(basis.origin, 0, scratch_, 0, 3);
+    System.arraycopy(basis.xBasis, 0, scratch_, 3, 3);
+    System.arraycopy(basis.yBasis, 0, scratch_, 6, 3);
+    System.arraycopy(basis.zBasis, 0, scratch_, 9, 3);
+    
+    return bases_.add(scratch_);
+  }
+  
+  
+  
+  /** @return The number of frames in the store. May be called from any thread. */
+  @Override
+  public int size()
+  {
+    return size_;
+  }
+  
+  
+  
+  /** @return The approximate number of bytes used by the stored frames. */
+  @Override
+  public long memoryUsage()
+  {
+    return frameIds_.memoryUsage() + timestamps_.memoryUsage() + frameFirstHand_.memoryUsage() + frameHandCount_.memoryUsage()
+        + handIds_.memoryUsage() + handFlags_.memoryUsage() + handFirstFinger_.memoryUsage()
+        + handBasis_.memoryUsage() + handDirection_.memoryUsage() + palmPosition_.memoryUsage()
+        + palmNormal_.memoryUsage() + palmVelocity_.memoryUsage()
+        + fingerIds_.memoryUsage() + fingerFlags_.memoryUsage() + fingerFirstBone_.memoryUsage()
+        + fingerDirection_.memoryUsage() + tipPosition_.memoryUsage() + tipVelocity_.memoryUsage()
+        + boneFlags_.memoryUsage() + boneBasis_.memoryUsage() + boneSize_.memoryUsage()
+        + boneDirection_.memoryUsage() + boneCenter_.memoryUsage() + nextJoint_.memoryUsage()
+        + prevJoint_.memoryUsage() + bases_.memoryUsage();
+  }
+  
+  
+  
+  /**
+   * Recreates a frame as a <code>FrameData</code> object graph.
+   * @param index The index of the frame, in the order the frames were added.
+   */
+  @Override
+  public FrameData get(int index)
+  {
+    FrameData frame = new FrameData();
+    int       first = frameFirstHand_.get(index);
+    int       count = frameHandCount_.get(index);
+    
+    frame.frameId   = frameIds_.get(index);
+    frame.timestamp = timestamps_.get(index);
+    for (int i = 0; i < count; i++)
+      frame.hands.add(getHand(first + i));
+    
+    return frame;
+  }
+  
+  
+  
+  private Hand getHand(int row)
+  {
+    Hand hand  = new Hand();
+    int  flags = handFlags_.get(row);
+    
+    hand.id           = handIds_.get(row);
+    hand.direction    = ((flags & HAND_DIRECTION)     != 0 ? handDirection_.get(row) : null);
+    hand.palmPosition = ((flags & HAND_PALM_POSITION) != 0 ? palmPosition_ .get(row) : null);
+    hand.palmNormal   = ((flags & HAND_PALM_NORMAL)   != 0 ? palmNormal_   .get(row) : null);
+    hand.palmVelocity = ((flags & HAND_PALM_VELOCITY) != 0 ? palmVelocity_ .get(row) : null);
+    hand.basis        = getBasis(handBasis_.get(row));
+    hand.isLeft       = (flags & HAND_LEFT)  != 0;
+    hand.isRight      = (flags & HAND_RIGHT) != 0;
+    
+    if ((flags & HAND_FINGERS) != 0)
+    {
+      int first = handFirstFinger_.get(row);
+      int count = flags >>> COUNT_SHIFT;
+      
+      hand.fingers = new ArrayList<Finger>(count);
+      for (int i = 0; i < count; i++)
+        hand.fingers.add(getFinger(first + i));
+    }
+    
+    return hand;
+  }
+  
+  
+  
+  private Finger getFinger(int row)
+  {
+    Finger finger = new Finger();
+    int    flags  = fingerFlags_.get(row);
+    
+    finger.id          = fingerIds_.get(row);
+    finger.direction   = ((flags & FINGER_DIRECTION)    != 0 ? fingerDirection_.get(row) : null);
+    finger.tipPosition = ((flags & FINGER_TIP_POSITION) != 0 ? tipPosition_    .get(row) : null);
+    finger.tipVelocity = ((flags & FINGER_TIP_VELOCITY) != 0 ? tipVelocity_    .get(row) : null);
+    
+    if ((flags & FINGER_BONES) != 0)
+    {
+      int first = fingerFirstBone_.get(row);
+      int count = flags >>> COUNT_SHIFT;
+      
+      finger.bones = new Bone[count];
+      for (int i = 0; i < count; i++)
+        finger.bones[i] = getBone(first + i);
+    }
+    
+    return finger;
+  }
+  
+  
+  
+  private Bone getBone(int row)
+  {
+    Bone bone  = new Bone();
+    int  flags = boneFlags_.get(row);
+    
+    bone.type      = ((flags & BONE_TYPE)       != 0 ? TYPES[flags >>> TYPE_SHIFT] : null);
+    bone.length    = boneSize_.get(row, 0);
+    bone.width     = boneSize_.get(row, 1);
+    bone.direction = ((flags & BONE_DIRECTION)  != 0 ? boneDirection_.get(row) : null);
+    bone.center    = ((flags & BONE_CENTER)     != 0 ? boneCenter_   .get(row) : null);
+    bone.nextJoint = ((flags & BONE_NEXT_JOINT) != 0 ? nextJoint_    .get(row) : null);
+    bone.prevJoint = ((flags & BONE_PREV_JOINT) != 0 ? prevJoint_    .get(row) : null);
+    bone.basis     = getBasis(boneBasis_.get(row));
+    
+    return bone;
+  }
+  
+  
+  
+  private Basis getBasis(int row)
+  {
+    if (row == NO_BASIS)
+      return null;
+    
+    Basis basis = new Basis();
+    
+    basis.origin = new float[3];
+    basis.xBasis = new float[3];
+    basis.yBasis = new float[3];
+    basis.zBasis = new float[3];
+    for (int i = 0; i < 3; i++)
+    {
+      basis.origin[i] = bases_.get(row, i);
+      basis.xBasis[i] = bases_.get(row, 3 + i);
+      basis.yBasis[i] = bases_.get(row, 6 + i);
+      basis.zBasis[i] = bases_.get(row, 9 + i);
+    }
+    
+    return basis;
+  }
+  
+  
+  
+  /**
+   * @return A read-only list view of the store. Each call to
+   *         <code>get()</code> recreates the frame as a new object, so the
+   *         list can be serialised without holding the whole recording as
+   *         objects.
+   */
+  public List<FrameData> asList()
+  {
+    return new AbstractList<FrameData>()
+    {
+      @Override
+      public FrameData get(int index)
+      {
+        return FrameStore.this.get(index);
+      }
+      
+      @Override
+      public int size()
+      {
+        return FrameStore.this.size();
+      }
+    };
+  }
+  
+  
+  
+  /**
+   * @return A new, reusable view for reading frames without creating any
+   *         objects. Use {@link FrameView#moveTo(int)} to select a frame.
+   */
+  public FrameView view()
+  {
+    return new FrameView();
+  }
+  
+  
+  
+  /**
+   * A flyweight for reading a frame from the store. The hand, finger and
+   * bone views it returns are reused, so they are only valid until the next
+   * call that returns a view of the same kind.
+   */
+  public class FrameView
+  {
+    private int      index_;
+    private HandView hand_ = new HandView();
+    
+    public FrameView moveTo(int index)
+    {
+      index_ = index;
+      return this;
+    }
+    
+    public int index()
+    {
+      return index_;
+    }
+    
+    public long frameId()
+    {
+      return frameIds_.get(index_);
+    }
+    
+    public long timestamp()
+    {
+      return timestamps_.get(index_);
+    }
+    
+    public int handCount()
+    {
+      return frameHandCount_.get(index_);
+    }
+    
+    public HandView hand(int index)
+    {
+      hand_.row_ = frameFirstHand_.get(index_) + index;
+      return hand_;
+    }
+  }
+  
+  
+  
+  /** A flyweight for reading a hand. See {@link FrameView}. */
+  public class HandView
+  {
+    private int        row_;
+    private FingerView finger_ = new FingerView();
+    
+    public int id()
+    {
+      return handIds_.get(row_);
+    }
+    
+    /** @return <code>true</code> if any of the <code>HAND_*</code> flags are set for this hand. */
+    public boolean has(int flags)
+    {
+      return (handFlags_.get(row_) & flags) != 0;
+    }
+    
+    public boolean isLeft()
+    {
+      return has(HAND_LEFT);
+    }
+    
+    public boolean isRight()
+    {
+      return has(HAND_RIGHT);
+    }
+    
+    public float direction(int axis)
+    {
+      return handDirection_.get(row_, axis);
+    }
+    
+    public float palmPosition(int axis)
+    {
+      return palmPosition_.get(row_, axis);
+    }
+    
+    public float palmNormal(int axis)
+    {
+      return palmNormal_.get(row_, axis);
+    }
+    
+    public float palmVelocity(int axis)
+    {
+      return palmVelocity_.get(row_, axis);
+    }
+    
+    public boolean hasBasis()
+    {
+      return handBasis_.get(row_) != NO_BASIS;
+    }
+    
+    /**
+     * Copies the basis into <code>dest</code> as origin, x, y and z, three
+     * values each.
+     */
+    public void basis(float[] dest)
+    {
+      bases_.get(handBasis_.get(row_), dest);
+    }
+    
+    public int fingerCount()
+    {
+      return handFlags_.get(row_) >>> COUNT_SHIFT;
+    }
+    
+    public FingerView finger(int index)
+    {
+      finger_.row_ = handFirstFinger_.get(row_) + index;
+      return finger_;
+    }
+  }
+  
+  
+  
+  /** A flyweight for reading a finger. See {@link FrameView}. */
+  public class FingerView
+  {
+    private int      row_;
+    private BoneView bone_ = new BoneView();
+    
+    public int id()
+    {
+      return fingerIds_.get(row_);
+    }
+    
+    /** @return <code>true</code> if any of the <code>FINGER_*</code> flags are set for this finger. */
+    public boolean has(int flags)
+    {
+      return (fingerFlags_.get(row_) & flags) != 0;
+    }
+    
+    public float direction(int axis)
+    {
+      return fingerDirection_.get(row_, axis);
+    }
+    
+    public float tipPosition(int axis)
+    {
+      return tipPosition_.get(row_, axis);
+    }
+    
+    public float tipVelocity(int axis)
+    {
+      return tipVelocity_.get(row_, axis);
+    }
+    
+    public int boneCount()
+    {
+      return fingerFlags_.get(row_) >>> COUNT_SHIFT;
+    }
+    
+    public BoneView bone(int index)
+    {
+      bone_.row_ = fingerFirstBone_.get(row_) + index;
+      return bone_;
+    }
+  }
+  
+  
+  
+  /** A flyweight for reading a bone. See {@link FrameView}. */
+  public class BoneView
+  {
+    private int row_;
+    
+    /** @return <code>true</code> if any of the <code>BONE_*</code> flags are set for this bone. */
+    public boolean has(int flags)
+    {
+      return (boneFlags_.get(row_) & flags) != 0;
+    }
+    
+    /** @return The type of the bone, or <code>null</code> if it was not recorded. */
+    public Type type()
+    {
+      int flags = boneFlags_.get(row_);
+      return ((flags & BONE_TYPE) != 0 ? TYPES[flags >>> TYPE_SHIFT] : null);
+    }
+    
+    public float length()
+    {
+      return boneSize_.get(row_, 0);
+    }
+    
+    public float width()
+    {
+      return boneSize_.get(row_, 1);
+    }
+    
+    public float direction(int axis)
+    {
+      return boneDirection_.get(row_, axis);
+    }
+    
+    public float center(int axis)
+    {
+      return boneCenter_.get(row_, axis);
+    }
+    
+    public float nextJoint(int axis)
+    {
+      return nextJoint_.get(row_, axis);
+    }
+    
+    public float prevJoint(int axis)
+    {
+      return prevJoint_.get(row_, axis);
+    }
+    
+    public boolean hasBasis()
+    {
+      return boneBasis_.get(row_) != NO_BASIS;
+    }
+    
+    /** See {@link HandView#basis(float[])}. */
+    public void basis(float[] dest)
+    {
+      bases_.get(boneBasis_.get(row_), dest);
+    }
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+
+/**
+ * A {@link FrameSink} that writes frames to a JSON file while they are being
+ * recorded, instead of keeping the whole session in memory until it is saved.
+ * <br />Frames are appended to the file by the recording thread as they
+ * arrive, and the file is flushed whenever that thread has caught up, so a
+ * crash only loses the frames that had not yet been written.
+ * <br />The resulting file has the same layout as the files written by
+ * "Save All". The frames are serialised by a {@link JsonFrameWriter}.
+ * <br />Closing the writer terminates the array and forces the file to the
+ * disk. Any existing file is replaced.
+ * @author Komposten (aka Jakob Hjelm)
+ */
+class FrameStreamWriter implements FrameSink
+{
+  private File             file_;
+  private FileOutputStream stream_;
+  private JsonFrameWriter  writer_;
+  
+  
+  
+  /**
+   * Creates the file (and any missing parent directories) and opens it for
+   * writing.
+   * @param excludeBones If bone information should be left out of the file.
+   * @throws IOException If the file could not be created or opened.
+   */
+  public FrameStreamWriter(File file, boolean excludeBones) throws IOException
+  {
+    if (file.getParentFile() != null)
+      file.getParentFile().mkdirs();
+    
+    file_   = file;
+    stream_ = new FileOutputStream(file);
+    writer_ = new JsonFrameWriter(new BufferedWriter(new OutputStreamWriter(stream_)), excludeBones ? 0 : FrameJson.ALL);
+    writer_.beginArray();
+  }
+  
+  
+  
+  @Override
+  public void write(FrameData frame) throws IOException
+  {
+    writer_.write(frame);
+  }
+  
+  
+  
+  @Override
+  public void flush() throws IOException
+  {
+    writer_.flush();
+  }
+  
+  
+  
+  /**
+   * Terminates the JSON array, forces the file to the disk and closes it.
+   */
+  @Override
+  public void close() throws IOException
+  {
+    try
+    {
+      writer_.endArray();
+      writer_.flush();
+      stream_.getFD().sync();
+    }
+    finally
+    {
+      writer_.close();
+    }
+  }
+  
+  
+  
+  /** @return The file the frames are written to. */
+  public File getFile()
+  {
+    return file_;
+  }
+  
+  
+  
+  /**
+   * Terminates the JSON array and forces the file to the disk, but keeps
+   * writing: the frames that follow replace the end of the array, which is
+   * written again by the next checkpoint or <code>close()</code>.
+   */
+  public void checkpoint() throws IOException
+  {
+    writer_.endArray();
+    writer_.flush();
+    stream_.getFD().sync();
+    stream_.getChannel().position(stream_.getChannel().position() - 1);
+  }
+  
+  
+  
+  /** @return The writer that encodes the frames, e.g. to write frames encoded elsewhere. */
+  JsonFrameWriter getJsonWriter()
+  {
+    return writer_;
+  }
+  
+  
+  
+  /** @return The number of frames that have been written to the file. */
+  public int getFramesWritten()
+  {
+    return (int) writer_.getFramesWritten();
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Reads the frames of a JSON recording one at a time, so that the whole
+ * recording never has to be held in memory.
+ * @author Komposten (aka Jakob Hjelm)
+ */
+class JsonFrameReader implements FrameReader
+{
+  private JsonReader reader_;
+  private FrameJson  json_;
+  private boolean    ended_;
+  
+  
+  
+  /**
+   * Opens the file and reads up to the first frame.
+   * @throws IOException If the file could not be read or does not contain a
+   *           JSON array.
+   */
+  public JsonFrameReader(File file) throws IOException
+  {
+    reader_ = new JsonReader(new BufferedReader(new FileReader(file)));
+    json_   = new FrameJson(FrameJson.ALL);
+    
+    try
+    {
+      reader_.beginArray();
+    }
+    catch (IOException e)
+    {
+      reader_.close();
+      throw e;
+    }
+    catch (IllegalStateException e)
+    {
+      reader_.close();
+      throw new IOException("Not a LeapRecorder JSON file!", e);
+    }
+  }
+  
+  
+  
+  @Override
+  public FrameData next() throws IOException
+  {
+    if (ended_)
+      return null;
+    
+    try
+    {
+      if (reader_.peek() == JsonToken.END_ARRAY)
+      {
+        reader_.endArray();
+        ended_ = true;
+        return null;
+      }
+      
+      return json_.read(reader_);
+    }
+    catch (IllegalStateException e)
+    {
+      throw new IOException(e.getMessage(), e);
+    }
+    catch (NumberFormatException e)
+    {
+      throw new IOException(e.getMessage(), e);
+    }
+  }
+  
+  
+  
+  @Override
+  public void close() throws IOException
+  {
+    reader_.close();
+  }
+}
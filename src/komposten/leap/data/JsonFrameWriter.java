@@ -0,0 +1,404 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+import java.io.CharArrayWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes frames as a JSON array, producing exactly the same text as Gson
+ * does by reflection (and can be read back by the {@link FrameJson}
+ * adapters), but straight into a character buffer instead of through a
+ * <code>JsonWriter</code>.
+ * <br />Floats are formatted into the buffer by {@link FloatFormat}, so
+ * apart from the occasional float outside its range nothing is allocated
+ * per value.
+ * <br />Call {@link #beginArray()}, then {@link #write(FrameData)} for each
+ * frame, then {@link #endArray()}. The underlying writer is only written to
+ * when the buffer fills up or {@link #flush()} is called.
+ * @author Komposten (aka Jakob Hjelm)
+ */
+class JsonFrameWriter implements Closeable
+{
+  private static final int BUFFER_SIZE = 16 * 1024;
+  /** The most characters written by a single append, except for names. */
+  private static final int MAX_VALUE   = 32;
+  
+  private Writer  writer_;
+  private int     fields_;
+  private char[]  buffer_;
+  private int     position_;
+  private long    framesWritten_;
+  
+  
+  
+  /**
+   * @param fields The fields to write (see the {@link FrameJson} field
+   *          constants).
+   */
+  public JsonFrameWriter(Writer writer, int fields)
+  {
+    writer_ = writer;
+    fields_ = fields;
+    buffer_ = new char[BUFFER_SIZE];
+  }
+  
+  
+  
+  public void beginArray() throws IOException
+  {
+    append('[');
+  }
+  
+  
+  
+  /** Writes the JSON object for <code>frame</code> as the next array element. */
+  public void write(FrameData frame) throws IOException
+  {
+    if (framesWritten_ > 0)
+      append(',');
+    writeFrame(frame);
+    framesWritten_++;
+  }
+  
+  
+  
+  /**
+   * Writes frames that were encoded by another writer (which did not begin
+   * an array) into <code>text</code> as the next array elements, exactly as if they had been
+   * written here one by one.
+   * @param text The encoded frames.
+   * @param frames The number of frames in <code>text</code>.
+   */
+  public void writeEncoded(CharArrayWriter text, long frames) throws IOException
+  {
+    if (frames == 0)
+      return;
+    
+    if (framesWritten_ > 0)
+      append(',');
+    
+    drain();
+    text.writeTo(writer_);
+    framesWritten_ += frames;
+  }
+  
+  
+  
+  public void endArray() throws IOException
+  {
+    append(']');
+  }
+  
+  
+  
+  /** Writes the buffered text to the underlying writer and flushes it. */
+  public void flush() throws IOException
+  {
+    drain();
+    writer_.flush();
+  }
+  
+  
+  
+  /** Flushes and closes the underlying writer. */
+  @Override
+  public void close() throws IOException
+  {
+    try
+    {
+      drain();
+    }
+    finally
+    {
+      writer_.close();
+    }
+  }
+  
+  
+  
+  public long getFramesWritten()
+  {
+    return framesWritten_;
+  }
+  
+  
+  
+  private void writeFrame(FrameData frame) throws IOException
+  {
+    if (frame == null)
+    {
+      append("null");
+      return;
+    }
+    
+    append("{\"frameId\":");
+    appendLong(frame.frameId);
+    
+    if (frame.hands != null)
+    {
+      append(",\"hands\":[");
+      for (int i = 0; i < frame.hands.size(); i++)
+      {
+        if (i > 0)
+          append(',');
+        writeHand(frame.hands.get(i));
+      }
+      append(']');
+    }
+    
+    append('}');
+  }
+  
+  
+  
+  private void writeHand(Hand hand) throws IOException
+  {
+    if (hand == null)
+    {
+      append("null");
+      return;
+    }
+    
+    append("{\"id\":");
+    appendLong(hand.id);
+    writeVector(",\"direction\":", hand.direction);
+    writeVector(",\"palmPosition\":", hand.palmPosition);
+    writeVector(",\"palmNormal\":", hand.palmNormal);
+    writeVector(",\"palmVelocity\":", hand.palmVelocity);
+    if (hand.basis != null)
+    {
+      append(",\"basis\":");
+      writeBasis(hand.basis);
+    }
+    append(hand.isLeft  ? ",\"isLeft\":true"  : ",\"isLeft\":false");
+    append(hand.isRight ? ",\"isRight\":true" : ",\"isRight\":false");
+    
+    if (hand.fingers != null)
+    {
+      append(",\"fingers\":[");
+      for (int i = 0; i < hand.fingers.size(); i++)
+      {
+        if (i > 0)
+          append(',');
+        writeFinger(hand.fingers.get(i));
+      }
+      append(']');
+    }
+    
+    append('}');
+  }
+  
+  
+  
+  private void writeFinger(Finger finger) throws IOException
+  {
+    if (finger == null)
+    {
+      append("null");
+      return;
+    }
+    
+    append("{\"id\":");
+    appendLong(finger.id);
+    writeVector(",\"direction\":", finger.direction);
+    writeVector(",\"tipPosition\":", finger.tipPosition);
+    writeVector(",\"tipVelocity\":", finger.tipVelocity);
+    
+    if (finger.bones != null && (fields_ & FrameJson.BONES) != 0)
+    {
+      append(",\"bones\":[");
+      for (int i = 0; i < finger.bones.length; i++)
+      {
+        if (i > 0)
+          append(',');
+        writeBone(finger.bones[i]);
+      }
+      append(']');
+    }
+    
+    append('}');
+  }
+  
+  
+  
+  private void writeBone(Bone bone) throws IOException
+  {
+    if (bone == null)
+    {
+      append("null");
+      return;
+    }
+    
+    if (bone.type != null)
+    {
+      append("{\"type\":\"");
+      append(bone.type.name());
+      append("\",\"length\":");
+    }
+    else
+    {
+      append("{\"length\":");
+    }
+    appendFloat(bone.length);
+    append(",\"width\":");
+    appendFloat(bone.width);
+    writeVector(",\"direction\":", bone.direction);
+    writeVector(",\"center\":", bone.center);
+    writeVector(",\"nextJoint\":", bone.nextJoint);
+    writeVector(",\"prevJoint\":", bone.prevJoint);
+    if (bone.basis != null)
+    {
+      append(",\"basis\":");
+      writeBasis(bone.basis);
+    }
+    append('}');
+  }
+  
+  
+  
+  private void writeBasis(Basis basis) throws IOException
+  {
+    boolean first = true;
+    
+    append('{');
+    first = writeVector(first, "\"origin\":", basis.origin);
+    first = writeVector(first, "\"xBasis\":", basis.xBasis);
+    first = writeVector(first, "\"yBasis\":", basis.yBasis);
+    first = writeVector(first, "\"zBasis\":", basis.zBasis);
+    append('}');
+  }
+  
+  
+  
+  /**
+   * Writes a vector field unless it is <code>null</code>.
+   * @param name The field name, with quotes, colon and any leading comma.
+   */
+  private void writeVector(String name, float[] vector) throws IOException
+  {
+    if (vector == null)
+      return;
+    
+    append(name);
+    append('[');
+    for (int i = 0; i < vector.length; i++)
+    {
+      if (i > 0)
+        append(',');
+      appendFloat(vector[i]);
+    }
+    append(']');
+  }
+  
+  
+  
+  /**
+   * Writes a vector field unless it is <code>null</code>, preceded by a
+   * comma unless it is the <code>first</code> field of its object.
+   * @return <code>true</code> if the next field is still the first one.
+   */
+  private boolean writeVector(boolean first, String name, float[] vector) throws IOException
+  {
+    if (vector == null)
+      return first;
+    
+    if (!first)
+      append(',');
+    writeVector(name, vector);
+    return false;
+  }
+  
+  
+  
+  private void appendFloat(float value) throws IOException
+  {
+    ensure(MAX_VALUE);
+    
+    int length = FloatFormat.format(value, buffer_, position_);
+    
+    if (length >= 0)
+    {
+      position_ += length;
+    }
+    else
+    {
+      if (Float.isNaN(value) || Float.isInfinite(value))
+      {
+        throw new IllegalArgumentException(value + " is not a valid double value as per JSON specification. "
+            + "To override this behavior, use GsonBuilder.serializeSpecialFloatingPointValues() method.");
+      }
+      append(Float.toString(value));
+    }
+  }
+  
+  
+  
+  private void appendLong(long value) throws IOException
+  {
+    ensure(MAX_VALUE);
+    
+    if (value < 0)
+    {
+      if (value == Long.MIN_VALUE)
+      {
+        append(Long.toString(value));
+        return;
+      }
+      
+      buffer_[position_++] = '-';
+      value = -value;
+    }
+    
+    int length = 1;
+    for (long rest = value / 10; rest > 0; rest /= 10)
+      length++;
+    
+    for (int i = length - 1; i >= 0; i--)
+    {
+      buffer_[position_ + i] = (char) ('0' + value % 10);
+      value /= 10;
+    }
+    position_ += length;
+  }
+  
+  
+  
+  private void append(char c) throws IOException
+  {
+    ensure(1);
+    buffer_[position_++] = c;
+  }
+  
+  
+  
+  private void append(String text) throws IOException
+  {
+    ensure(text.length());
+    text.getChars(0, text.length(), buffer_, position_);
+    position_ += text.length();
+  }
+  
+  
+  
+  private void ensure(int count) throws IOException
+  {
+    if (buffer_.length - position_ < count)
+    {
+      drain();
+      if (buffer_.length < count)
+        buffer_ = new char[count];
+    }
+  }
+  
+  
+  
+  private void drain() throws IOException
+  {
+    writer_.write(buffer_, 0, position_);
+    position_ = 0;
+  }
+}
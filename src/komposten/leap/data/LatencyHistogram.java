@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in nanoseconds in buckets that double in width with every
+ * power of two, split into four, so that any percentile read back is at most
+ * 25% above the true value.
+ * <br />Durations are recorded by a single thread (e.g. the capture
+ * thread), without locking or allocating: a recording only stores to a
+ * fixed array of counters. Other threads may read the histogram at any time,
+ * and see the counts as they were a moment ago.
+ * @author Komposten (aka Jakob Hjelm)
+ */
+class LatencyHistogram
+{
+  private static final int SUB_BITS    = 2;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+  private static final int BUCKETS     = (64 - SUB_BITS) * SUB_BUCKETS;
+  
+  private AtomicLongArray counts_;
+  
+  private volatile long count_;
+  private volatile long max_;
+  
+  
+  
+  public LatencyHistogram()
+  {
+    counts_ = new AtomicLongArray(BUCKETS);
+  }
+  
+  
+  
+  /** Adds a duration. May only be called by one thread at a time. */
+  public void record(long nanos)
+  {
+    int index = indexOf(Math.max(nanos, 0));
+    
+    counts_.lazySet(index, counts_.get(index) + 1);
+    if (nanos > max_)
+      max_ = nanos;
+    count_++;
+  }
+  
+  
+  
+  /**
+   * Removes all durations. May only be called while no durations are being
+   * recorded.
+   */
+  public void reset()
+  {
+    for (int i = 0; i < BUCKETS; i++)
+      counts_.set(i, 0);
+    max_   = 0;
+    count_ = 0;
+  }
+  
+  
+  
+  private static int indexOf(long value)
+  {
+    if (value < SUB_BUCKETS)
+      return (int) value;
+    
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int sub      = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    
+    return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+  }
+  
+  
+  
+  /** @return The largest value that falls in the bucket. */
+  private static long upperBound(int index)
+  {
+    if (index < SUB_BUCKETS)
+      return index;
+    
+    int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+    int sub      = index % SUB_BUCKETS;
+    
+    return ((long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+  }
+  
+  
+  
+  /** @return The number of durations recorded. */
+  public long getCount()
+  {
+    return count_;
+  }
+  
+  
+  
+  /** @return The longest duration recorded, in nanoseconds. */
+  public long getMax()
+  {
+    return max_;
+  }
+  
+  
+  
+  /**
+   * @param percentile The percentile, between 0 and 100.
+   * @return The duration that the given share of the recorded durations do
+   *         not exceed, rounded up to the end of its bucket (but never above
+   *         the longest duration), or 0 if nothing has been recorded.
+   */
+  public long getPercentile(double percentile)
+  {
+    long[] counts = new long[BUCKETS];
+    long   total  = 0;
+    
+    for (int i = 0; i < BUCKETS; i++)
+    {
+      counts[i] = counts_.get(i);
+      total    += counts[i];
+    }
+    
+    long target = Math.max(1, (long) Math.ceil(total * percentile / 100));
+    long seen   = 0;
+    
+    for (int i = 0; i < BUCKETS && total > 0; i++)
+    {
+      seen += counts[i];
+      if (seen >= target)
+        return Math.min(upperBound(i), max_);
+    }
+    
+    return 0;
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+import com.leapmotion.leap.Controller;
+
+/**
+ * Delivers the frames of the Leap Motion Controller, captured by a
+ * {@link FrameCapture}, on the Leap callback thread.
+ * <br />The controller is connected when the source is opened, so its
+ * status is shown before recording starts, but frames are only captured
+ * while the source is started.
+ * @author Komposten (aka Jakob Hjelm)
+ */
+class LeapFrameSource implements FrameSource
+{
+  private Controller controller_;
+  private Listener   listener_;
+  
+  private volatile FrameCapture capture_;
+  private volatile boolean      started_;
+  private volatile Thread       delivering_;
+  
+  
+  
+  @Override
+  public void open(Listener listener)
+  {
+    listener_   = listener;
+    controller_ = new Controller();
+    
+    listener_.onStatus("Connecting to Leap Motion Controller...");
+    controller_.addListener(leapListener_);
+    
+    if (controller_.isConnected())
+      leapListener_.onConnect(controller_);
+  }
+  
+  
+  
+  @Override
+  public void start(CaptureProfile profile)
+  {
+    if (started_)
+      return;
+    
+    capture_ = new FrameCapture(profile);
+    started_ = true;
+  }
+  
+  
+  
+  @Override
+  public void stop()
+  {
+    started_ = false;
+    
+    // Called by the listener, e.g. from onError(); no more frames follow.
+    Thread delivering = delivering_;
+    if (delivering == Thread.currentThread())
+      return;
+    
+    while (delivering_ != null)
+      Thread.yield();
+  }
+  
+  
+  
+  @Override
+  public void close()
+  {
+    stop();
+    if (controller_ != null)
+      controller_.removeListener(leapListener_);
+  }
+  
+  
+  
+  @Override
+  public String describeCost()
+  {
+    FrameCapture capture = capture_;
+    return (capture != null ? capture.describeCost() : "");
+  }
+  
+  
+  
+  private com.leapmotion.leap.Listener leapListener_ = new com.leapmotion.leap.Listener()
+  {
+    @Override
+    public void onConnect(Controller controller)
+    {
+      listener_.onStatus("Leap Motion Controller connected!");
+    };
+    
+    @Override
+    public void onDisconnect(Controller controller)
+    {
+      listener_.onStatus("Controller disconnected!");
+    };
+    
+    @Override
+    public void onServiceConnect(Controller arg0)
+    {
+      listener_.onStatus("Leap Service started!");
+    }
+    
+    @Override
+    public void onServiceDisconnect(Controller arg0)
+    {
+      listener_.onStatus("Leap Service stopped!");
+    }
+    
+    @Override
+    public void onFrame(Controller controller)
+    {
+      delivering_ = Thread.currentThread();
+      
+      try
+      {
+        if (started_)
+          listener_.onFrame(capture_.capture(controller.frame()));
+      }
+      catch (Exception e)
+      {
+        started_ = false;
+        listener_.onError(e);
+      }
+      finally
+      {
+        delivering_ = null;
+      }
+    };
+  };
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+import java.util.Arrays;
+
+/**
+ * A growable column of <code>long</code> values, stored in fixed-size chunks
+ * like a {@link FloatColumn}, and readable by other threads like one.
+ * @author Komposten (aka Jakob Hjelm)
+ */
+class LongColumn
+{
+  private static final int CHUNK_BITS = 12;
+  private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+  
+  private volatile long[][] chunks_;
+  private int               size_;
+  
+  
+  
+  public LongColumn()
+  {
+    chunks_ = new long[4][];
+  }
+  
+  
+  
+  /** @return The index of the new value. */
+  public int add(long value)
+  {
+    int index = size_;
+    
+    chunkFor(index)[index & CHUNK_MASK] = value;
+    size_++;
+    return index;
+  }
+  
+  
+  
+  public long get(int index)
+  {
+    return chunks_[index >>> CHUNK_BITS][index & CHUNK_MASK];
+  }
+  
+  
+  
+  public int size()
+  {
+    return size_;
+  }
+  
+  
+  
+  public void clear()
+  {
+    chunks_ = new long[4][];
+    size_   = 0;
+  }
+  
+  
+  
+  /** @return The number of bytes allocated for the values in this column. */
+  public long memoryUsage()
+  {
+    long chunks = (size_ + CHUNK_MASK) >>> CHUNK_BITS;
+    return chunks * CHUNK_SIZE * 8;
+  }
+  
+  
+  
+  private long[] chunkFor(int index)
+  {
+    int chunk = index >>> CHUNK_BITS;
+    
+    if (chunk == chunks_.length)
+      chunks_ = Arrays.copyOf(chunks_, chunk * 2);
+    if (chunks_[chunk] == null)
+      chunks_[chunk] = new long[CHUNK_SIZE];
+    
+    return chunks_[chunk];
+  }
+}
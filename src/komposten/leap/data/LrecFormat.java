@@ -0,0 +1,565 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+
+import com.leapmotion.leap.Bone.Type;
+
+/**
+ * Constants and layout of the binary recording format (.lrec), written by
+ * {@link LrecWriter} and read by {@link LrecReader}.
+ * <br />All values are little-endian. A file starts with a 16 byte header:
+ * <pre>
+ * 0   4  magic, "LREC"
+ * 4   2  version
+ * 6   2  flags (FLAG_*)
+ * 8   8  reserved, 0
+ * </pre>
+ * followed by records, each of which is a 1 byte type and a 4 byte payload
+ * length followed by the payload. A frame record (RECORD_FRAME) contains:
+ * <pre>
+ * 8  frame id
+ * 8  timestamp (microseconds)
+ * 1  number of hands
+ *    hands, each:
+ *    4  id
+ *    1  flags (HAND_*)
+ *    12 direction, 12 palm position, 12 palm normal
+ *    12 palm velocity                                  if FLAG_VELOCITIES
+ *    48 basis (origin, x, y, z)                        if FLAG_BASES
+ *    1  number of fingers                              if FLAG_FINGERS
+ *       fingers, each:
+ *       4  id
+ *       1  flags (FINGER_*)
+ *       12 direction, 12 tip position
+ *       12 tip velocity                                if FLAG_VELOCITIES
+ *          4 bones (metacarpal to distal), each:       if FLAG_BONES
+ *          4 length, 4 width
+ *          12 direction, 12 center, 12 next joint, 12 prev joint
+ *          48 basis                                     if FLAG_BASES
+ * </pre>
+ * Every hand and finger record thus has a fixed size that only depends on
+ * the header flags. Null vectors are written as zeros; a null basis or bone
+ * array is written as zeros and marked as missing in the flags.
+ * <br />In files with FLAG_QUATERNIONS (version 3) each basis is instead an
+ * 8 byte {@link PackedBasis}, whose origin refers to the palm position or
+ * bone center read just before it. An origin that differs from those is
+ * written as a 12 byte vector after the packed basis.
+ * <br />In files with FLAG_BONE_DICTIONARY (version 4) bones have no length
+ * and width. Those are instead written in RECORD_BONE_DICTIONARY records (see
+ * {@link BoneDictionary}) before the first frame that needs them, and apply
+ * to all frames that follow until replaced.
+ * <br />Files with FLAG_DELTA (version 2) instead start with a
+ * RECORD_DELTA_CONFIG containing a {@link DeltaConfig}, and store frames as
+ * keyframes (RECORD_KEYFRAME) followed by frames encoded as the difference
+ * from the previous frame (RECORD_DELTA), as written by {@link DeltaCodec}.
+ * A keyframe is encoded the same way, but from a blank state, so its frame id
+ * and timestamp are absolute. The file ends with a RECORD_ERRORS record
+ * containing the largest quantisation error (a float) of each value class.
+ * <br />Files end with a RECORD_FOOTER containing the number of frames in
+ * the file (8 bytes). A file without one was not closed properly (or was
+ * written before the footer was added), and may be cut off.
+ * @author Komposten (aka Jakob Hjelm)
+ */
+final class LrecFormat
+{
+  public static final String EXTENSION   = "lrec";
+  /** The highest version that can be read. */
+  public static final int    VERSION     = 4;
+  public static final int    HEADER_SIZE = 16;
+  
+  /** The file contains bones. */
+  public static final int FLAG_BONES = 1 << 0;
+  /** The file contains hand bases, and bone bases if it contains bones. */
+  public static final int FLAG_BASES = 1 << 1;
+  /** The frames are delta-encoded. */
+  public static final int FLAG_DELTA = 1 << 2;
+  /** Bases are stored as packed quaternions, see {@link PackedBasis}. */
+  public static final int FLAG_QUATERNIONS = 1 << 3;
+  /** Bone lengths and widths are stored in a {@link BoneDictionary}. */
+  public static final int FLAG_BONE_DICTIONARY = 1 << 4;
+  /** The file contains fingers. */
+  public static final int FLAG_FINGERS = 1 << 5;
+  /** The file contains palm and tip velocities. */
+  public static final int FLAG_VELOCITIES = 1 << 6;
+  
+  public static final byte RECORD_FRAME        = 1;
+  public static final byte RECORD_DELTA_CONFIG = 2;
+  public static final byte RECORD_KEYFRAME     = 3;
+  public static final byte RECORD_DELTA        = 4;
+  public static final byte RECORD_ERRORS          = 5;
+  public static final byte RECORD_BONE_DICTIONARY = 6;
+  public static final byte RECORD_FOOTER          = 7;
+  public static final int  RECORD_HEADER_SIZE     = 5;
+  public static final int  FOOTER_SIZE            = 8;
+  
+  public static final int HAND_LEFT    = 1 << 0;
+  public static final int HAND_RIGHT   = 1 << 1;
+  public static final int HAND_BASIS   = 1 << 2;
+  public static final int FINGER_BONES = 1 << 0;
+  
+  public static final int FRAME_SIZE  = 8 + 8 + 1;
+  public static final int VECTOR_SIZE = 12;
+  public static final int BASIS_SIZE  = 4 * VECTOR_SIZE;
+  
+  private static final byte[] MAGIC = { 'L', 'R', 'E', 'C' };
+  private static final Type[] TYPES = Type.values();
+  
+  
+  
+  private LrecFormat()
+  {
+  }
+  
+  
+  
+  /**
+   * @return The header flags for the parts of <code>profile</code>:
+   *         FLAG_FINGERS, FLAG_BONES, FLAG_BASES and FLAG_VELOCITIES.
+   */
+  public static int profileFlags(CaptureProfile profile)
+  {
+    int flags = 0;
+    
+    flags |= (profile.captures(CaptureProfile.FINGERS)    ? FLAG_FINGERS    : 0);
+    flags |= (profile.captures(CaptureProfile.BONES)      ? FLAG_BONES      : 0);
+    flags |= (profile.captures(CaptureProfile.BASES)      ? FLAG_BASES      : 0);
+    flags |= (profile.captures(CaptureProfile.VELOCITIES) ? FLAG_VELOCITIES : 0);
+    
+    return flags;
+  }
+  
+  
+  
+  /** @return The size of a hand record, excluding its fingers. */
+  public static int handSize(int flags)
+  {
+    int size = 4 + 1 + 3 * VECTOR_SIZE + basisSize(flags);
+    
+    if ((flags & FLAG_VELOCITIES) != 0)
+      size += VECTOR_SIZE;
+    if ((flags & FLAG_FINGERS) != 0)
+      size += 1;
+    
+    return size;
+  }
+  
+  
+  
+  /** @return The size of a finger record, including its bones. */
+  public static int fingerSize(int flags)
+  {
+    int size = 4 + 1 + 2 * VECTOR_SIZE;
+    
+    if ((flags & FLAG_VELOCITIES) != 0)
+      size += VECTOR_SIZE;
+    
+    if ((flags & FLAG_BONES) != 0)
+      size += 4 * boneSize(flags);
+    
+    return size;
+  }
+  
+  
+  
+  public static int boneSize(int flags)
+  {
+    return ((flags & FLAG_BONE_DICTIONARY) != 0 ? 0 : 4 + 4) + 4 * VECTOR_SIZE + basisSize(flags);
+  }
+  
+  
+  
+  /**
+   * @return The size of a basis, excluding any origin that has to be written
+   *         after a packed basis.
+   */
+  public static int basisSize(int flags)
+  {
+    if ((flags & FLAG_BASES) == 0)
+      return 0;
+    return ((flags & FLAG_QUATERNIONS) != 0 ? PackedBasis.SIZE : BASIS_SIZE);
+  }
+  
+  
+  
+  /** @return The size of the payload of a frame record for <code>frame</code>. */
+  public static int frameSize(FrameData frame, int flags)
+  {
+    int size = FRAME_SIZE;
+    
+    if (frame.hands != null)
+    {
+      for (Hand hand : frame.hands)
+        size += handSize(flags) + fingerCount(hand, flags) * fingerSize(flags);
+      
+      if ((flags & FLAG_BASES) != 0 && (flags & FLAG_QUATERNIONS) != 0)
+        size += explicitOrigins(frame, flags) * VECTOR_SIZE;
+    }
+    
+    return size;
+  }
+  
+  
+  
+  /** @return The number of packed bases in <code>frame</code> that need an explicit origin. */
+  private static int explicitOrigins(FrameData frame, int flags)
+  {
+    int count = 0;
+    
+    for (Hand hand : frame.hands)
+    {
+      if (PackedBasis.hasExplicitOrigin(hand.basis, hand.palmPosition))
+        count++;
+      
+      if ((flags & FLAG_BONES) == 0 || fingerCount(hand, flags) == 0)
+        continue;
+      
+      for (Finger finger : hand.fingers)
+      {
+        for (int i = 0; finger.bones != null && i < Math.min(4, finger.bones.length); i++)
+        {
+          Bone bone = finger.bones[i];
+          
+          if (bone != null && PackedBasis.hasExplicitOrigin(bone.basis, bone.center))
+            count++;
+        }
+      }
+    }
+    
+    return count;
+  }
+  
+  
+  
+  /**
+   * Writes the payload of a frame record to <code>buffer</code>, which must
+   * be little-endian and have at least {@link #frameSize(FrameData, int)}
+   * bytes remaining.
+   */
+  public static void putFrame(ByteBuffer buffer, FrameData frame, int flags)
+  {
+    int handCount = (frame.hands != null ? frame.hands.size() : 0);
+    
+    buffer.putLong(frame.frameId);
+    buffer.putLong(frame.timestamp);
+    buffer.put((byte) handCount);
+    
+    for (int i = 0; i < handCount; i++)
+      putHand(buffer, frame.hands.get(i), flags);
+  }
+  
+  
+  
+  private static void putHand(ByteBuffer buffer, Hand hand, int flags)
+  {
+    int handFlags   = 0;
+    int fingerCount = fingerCount(hand, flags);
+    
+    handFlags |= (hand.isLeft        ? HAND_LEFT  : 0);
+    handFlags |= (hand.isRight       ? HAND_RIGHT : 0);
+    handFlags |= (hand.basis != null ? HAND_BASIS : 0);
+    
+    buffer.putInt(hand.id);
+    buffer.put((byte) handFlags);
+    putVector(buffer, hand.direction);
+    putVector(buffer, hand.palmPosition);
+    putVector(buffer, hand.palmNormal);
+    if ((flags & FLAG_VELOCITIES) != 0)
+      putVector(buffer, hand.palmVelocity);
+    if ((flags & FLAG_BASES) != 0)
+      putBasis(buffer, hand.basis, hand.palmPosition, flags);
+    if ((flags & FLAG_FINGERS) != 0)
+      buffer.put((byte) fingerCount);
+    
+    for (int i = 0; i < fingerCount; i++)
+      putFinger(buffer, hand.fingers.get(i), flags);
+  }
+  
+  
+  
+  private static void putFinger(ByteBuffer buffer, Finger finger, int flags)
+  {
+    buffer.putInt(finger.id);
+    buffer.put((byte) (finger.bones != null ? FINGER_BONES : 0));
+    putVector(buffer, finger.direction);
+    putVector(buffer, finger.tipPosition);
+    if ((flags & FLAG_VELOCITIES) != 0)
+      putVector(buffer, finger.tipVelocity);
+    
+    if ((flags & FLAG_BONES) != 0)
+    {
+      for (int i = 0; i < 4; i++)
+      {
+        Bone bone = (finger.bones != null && i < finger.bones.length ? finger.bones[i] : null);
+        
+        if (bone != null)
+        {
+          if ((flags & FLAG_BONE_DICTIONARY) == 0)
+          {
+            buffer.putFloat(bone.length);
+            buffer.putFloat(bone.width);
+          }
+          putVector(buffer, bone.direction);
+          putVector(buffer, bone.center);
+          putVector(buffer, bone.nextJoint);
+          putVector(buffer, bone.prevJoint);
+          if ((flags & FLAG_BASES) != 0)
+            putBasis(buffer, bone.basis, bone.center, flags);
+        }
+        else
+        {
+          putZeros(buffer, boneSize(flags) - basisSize(flags));
+          if ((flags & FLAG_BASES) != 0)
+            putBasis(buffer, null, null, flags);
+        }
+      }
+    }
+  }
+  
+  
+  
+  private static void putBasis(ByteBuffer buffer, Basis basis, float[] reference, int flags)
+  {
+    if ((flags & FLAG_QUATERNIONS) != 0)
+    {
+      long packed = PackedBasis.pack(basis, reference);
+      
+      buffer.putLong(packed);
+      if (PackedBasis.hasExplicitOrigin(packed))
+        putVector(buffer, basis.origin);
+    }
+    else if (basis != null)
+    {
+      putVector(buffer, basis.origin);
+      putVector(buffer, basis.xBasis);
+      putVector(buffer, basis.yBasis);
+      putVector(buffer, basis.zBasis);
+    }
+    else
+    {
+      putZeros(buffer, BASIS_SIZE);
+    }
+  }
+  
+  
+  
+  private static void putVector(ByteBuffer buffer, float[] vector)
+  {
+    if (vector != null)
+    {
+      buffer.putFloat(vector[0]);
+      buffer.putFloat(vector[1]);
+      buffer.putFloat(vector[2]);
+    }
+    else
+    {
+      putZeros(buffer, VECTOR_SIZE);
+    }
+  }
+  
+  
+  
+  private static void putZeros(ByteBuffer buffer, int count)
+  {
+    for (int i = 0; i < count; i += 4)
+      buffer.putInt(0);
+  }
+  
+  
+  
+  /** @return The number of fingers of <code>hand</code> that are written with the given flags. */
+  public static int fingerCount(Hand hand, int flags)
+  {
+    if ((flags & FLAG_FINGERS) == 0 || hand.fingers == null)
+      return 0;
+    return hand.fingers.size();
+  }
+  
+  
+  
+  /**
+   * Reads the payload of a frame record from <code>buffer</code>, which must
+   * be little-endian.
+   */
+  public static FrameData getFrame(ByteBuffer buffer, int flags)
+  {
+    FrameData frame = new FrameData();
+    
+    frame.frameId   = buffer.getLong();
+    frame.timestamp = buffer.getLong();
+    
+    int handCount = buffer.get() & 0xFF;
+    for (int i = 0; i < handCount; i++)
+      frame.hands.add(getHand(buffer, flags));
+    
+    return frame;
+  }
+  
+  
+  
+  private static Hand getHand(ByteBuffer buffer, int flags)
+  {
+    Hand hand = new Hand();
+    
+    hand.id = buffer.getInt();
+    
+    int handFlags = buffer.get();
+    
+    hand.isLeft       = (handFlags & HAND_LEFT)  != 0;
+    hand.isRight      = (handFlags & HAND_RIGHT) != 0;
+    hand.direction    = getVector(buffer);
+    hand.palmPosition = getVector(buffer);
+    hand.palmNormal   = getVector(buffer);
+    if ((flags & FLAG_VELOCITIES) != 0)
+      hand.palmVelocity = getVector(buffer);
+    
+    if ((flags & FLAG_BASES) != 0)
+    {
+      Basis basis = getBasis(buffer, hand.palmPosition, flags);
+      if ((handFlags & HAND_BASIS) != 0)
+        hand.basis = basis;
+    }
+    
+    if ((flags & FLAG_FINGERS) != 0)
+    {
+      int fingerCount = buffer.get() & 0xFF;
+      
+      hand.fingers = new ArrayList<Finger>(fingerCount);
+      for (int i = 0; i < fingerCount; i++)
+        hand.fingers.add(getFinger(buffer, flags));
+    }
+    
+    return hand;
+  }
+  
+  
+  
+  private static Finger getFinger(ByteBuffer buffer, int flags)
+  {
+    Finger finger = new Finger();
+    
+    finger.id = buffer.getInt();
+    
+    int fingerFlags = buffer.get();
+    
+    finger.direction   = getVector(buffer);
+    finger.tipPosition = getVector(buffer);
+    if ((flags & FLAG_VELOCITIES) != 0)
+      finger.tipVelocity = getVector(buffer);
+    
+    if ((flags & FLAG_BONES) != 0)
+    {
+      Bone[] bones = new Bone[4];
+      
+      for (int i = 0; i < 4; i++)
+      {
+        Bone bone = new Bone();
+        
+        bone.type = TYPES[i];
+        if ((flags & FLAG_BONE_DICTIONARY) == 0)
+        {
+          bone.length = buffer.getFloat();
+          bone.width  = buffer.getFloat();
+        }
+        bone.direction = getVector(buffer);
+        bone.center    = getVector(buffer);
+        bone.nextJoint = getVector(buffer);
+        bone.prevJoint = getVector(buffer);
+        if ((flags & FLAG_BASES) != 0)
+          bone.basis = getBasis(buffer, bone.center, flags);
+        
+        bones[i] = bone;
+      }
+      
+      if ((fingerFlags & FINGER_BONES) != 0)
+        finger.bones = bones;
+    }
+    
+    return finger;
+  }
+  
+  
+  
+  private static Basis getBasis(ByteBuffer buffer, float[] reference, int flags)
+  {
+    if ((flags & FLAG_QUATERNIONS) != 0)
+    {
+      long packed = buffer.getLong();
+      return PackedBasis.unpack(packed, reference, PackedBasis.hasExplicitOrigin(packed) ? getVector(buffer) : null);
+    }
+    
+    Basis basis = new Basis();
+    
+    basis.origin = getVector(buffer);
+    basis.xBasis = getVector(buffer);
+    basis.yBasis = getVector(buffer);
+    basis.zBasis = getVector(buffer);
+    
+    return basis;
+  }
+  
+  
+  
+  private static float[] getVector(ByteBuffer buffer)
+  {
+    return new float[] { buffer.getFloat(), buffer.getFloat(), buffer.getFloat() };
+  }
+  
+  
+  
+  /** Writes the file header to <code>buffer</code>. */
+  public static void putHeader(ByteBuffer buffer, int flags)
+  {
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    buffer.put(MAGIC);
+    buffer.putShort((short) version(flags));
+    buffer.putShort((short) flags);
+    buffer.putLong(0);
+  }
+  
+  
+  
+  /** @return The lowest version that supports the given flags. */
+  private static int version(int flags)
+  {
+    if ((flags & FLAG_BONE_DICTIONARY) != 0)
+      return 4;
+    if ((flags & FLAG_QUATERNIONS) != 0)
+      return 3;
+    if ((flags & FLAG_DELTA) != 0)
+      return 2;
+    return 1;
+  }
+  
+  
+  
+  /**
+   * Reads and checks the file header from <code>buffer</code>.
+   * @return The header flags.
+   * @throws IllegalArgumentException If the buffer does not contain a
+   *           supported header.
+   */
+  public static int getHeader(ByteBuffer buffer)
+  {
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    
+    for (byte b : MAGIC)
+    {
+      if (buffer.get() != b)
+        throw new IllegalArgumentException("Not a LeapRecorder binary file!");
+    }
+    
+    int version = buffer.getShort() & 0xFFFF;
+    int flags   = buffer.getShort() & 0xFFFF;
+    buffer.getLong();
+    
+    if (version > VERSION)
+      throw new IllegalArgumentException("Unsupported file version: " + version + "!");
+    
+    return flags;
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the frames of a binary (.lrec) file in order. See
+ * {@link LrecFormat} for the layout.
+ * @author Komposten (aka Jakob Hjelm)
+ */
+class LrecReader implements FrameReader
+{
+  private static final int BUFFER_SIZE = 256 * 1024;
+  
+  private FileChannel    channel_;
+  private ByteBuffer     buffer_;
+  private int            flags_;
+  private DeltaCodec     codec_;
+  private BoneDictionary dictionary_;
+  
+  
+  
+  /**
+   * Opens the file and reads its header.
+   * @throws IOException If the file could not be read or is not a supported
+   *           binary recording.
+   */
+  public LrecReader(File file) throws IOException
+  {
+    channel_ = new FileInputStream(file).getChannel();
+    buffer_  = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    buffer_.flip();
+    
+    try
+    {
+      if (!fill(LrecFormat.HEADER_SIZE))
+        throw new EOFException("The file is too short to be a binary recording!");
+      flags_      = LrecFormat.getHeader(buffer_);
+      dictionary_ = new BoneDictionary();
+    }
+    catch (IllegalArgumentException e)
+    {
+      channel_.close();
+      throw new IOException(e.getMessage(), e);
+    }
+    catch (IOException e)
+    {
+      channel_.close();
+      throw e;
+    }
+  }
+  
+  
+  
+  /** @return The {@link LrecFormat} header flags of the file. */
+  public int getFlags()
+  {
+    return flags_;
+  }
+  
+  
+  
+  /**
+   * Reads the next frame, skipping any records that are not frames.
+   * @return The frame, or <code>null</code> if the end of the file has been
+   *         reached.
+   * @throws IOException If the file could not be read or ends in the middle
+   *           of a record.
+   */
+  @Override
+  public FrameData next() throws IOException
+  {
+    while (true)
+    {
+      if (!fill(LrecFormat.RECORD_HEADER_SIZE))
+      {
+        if (buffer_.hasRemaining())
+          throw new EOFException("The file ends in the middle of a record!");
+        return null;
+      }
+      
+      byte type = buffer_.get();
+      int  size = buffer_.getInt();
+      
+      if (!fill(size))
+        throw new EOFException("The file ends in the middle of a record!");
+      
+      int end = buffer_.position() + size;
+      
+      if (type == LrecFormat.RECORD_FRAME)
+        return withDimensions(LrecFormat.getFrame(buffer_, flags_));
+      
+      if (type == LrecFormat.RECORD_BONE_DICTIONARY)
+      {
+        dictionary_.get(buffer_);
+      }
+      else if (type == LrecFormat.RECORD_DELTA_CONFIG)
+      {
+        codec_ = new DeltaCodec(DeltaConfig.get(buffer_), flags_);
+      }
+      else if (type == LrecFormat.RECORD_KEYFRAME || type == LrecFormat.RECORD_DELTA)
+      {
+        if (codec_ == null)
+          throw new IOException("The file contains delta frames but no delta config!");
+        if (type == LrecFormat.RECORD_KEYFRAME)
+          codec_.reset();
+        
+        FrameData frame = codec_.decode(buffer_);
+        buffer_.position(end);
+        return withDimensions(frame);
+      }
+      
+      buffer_.position(end);
+    }
+  }
+  
+  
+  
+  /** Fills in the bone dimensions from the dictionary, if the file has one. */
+  private FrameData withDimensions(FrameData frame)
+  {
+    if ((flags_ & LrecFormat.FLAG_BONE_DICTIONARY) != 0)
+      dictionary_.apply(frame);
+    return frame;
+  }
+  
+  
+  
+  @Override
+  public void close() throws IOException
+  {
+    channel_.close();
+  }
+  
+  
+  
+  /**
+   * Makes sure that at least <code>size</code> bytes are available in the
+   * buffer, reading more from the file if needed.
+   * @return <code>false</code> if the file ended before <code>size</code>
+   *         bytes were available.
+   */
+  private boolean fill(int size) throws IOException
+  {
+    if (buffer_.remaining() >= size)
+      return true;
+    
+    if (buffer_.capacity() < size)
+    {
+      ByteBuffer larger = ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+      larger.put(buffer_);
+      buffer_ = larger;
+    }
+    else
+    {
+      buffer_.compact();
+    }
+    
+    while (buffer_.position() < size)
+    {
+      if (channel_.read(buffer_) < 0)
+      {
+        buffer_.flip();
+        return false;
+      }
+    }
+    
+    buffer_.flip();
+    return true;
+  }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * A {@link FrameSink} that writes frames to a binary (.lrec) file. See
+ * {@link LrecFormat} for the layout.
+ * <br />Records are encoded straight into a direct buffer, which is written
+ * to the file channel whenever it fills up or the sink is flushed.
+ * <br />Closing the writer adds the footer and forces the file to the disk.
+ * <br />If a {@link DeltaConfig} is given, frames are delta-encoded with a
+ * keyframe every {@link DeltaConfig#getKeyframeInterval()} frames.
+ * <br />With FLAG_BONE_DICTIONARY, a dictionary entry is written before a
+ * frame for every finger whose bone dimensions are new or have changed.
+ * <br />A writer without a file encodes a chunk of a recording into memory,
+ * so that chunks can be encoded in parallel and then appended in order to
+ * the writer of the file with {@link #writeChunk(LrecWriter)}.
+ * @author Komposten (aka Jakob Hjelm)
+ */
+class LrecWriter implements FrameSink
+{
+  private static final int BUFFER_SIZE = 256 * 1024;
+  
+  private File        file_;
+  private FileChannel channel_;
+  private ByteBuffer  buffer_;
+  private int         flags_;
+  private DeltaCodec     codec_;
+  private BoneDictionary dictionary_;
+  private long        framesWritten_;
+  
+  
+  
+  /**
+   * Creates the file (and any missing parent directories) and writes the
+   * header.
+   * @param flags The {@link LrecFormat} header flags, which decide whether
+   *          bones and bases are written.
+   * @throws IOException If the file could not be created or opened.
+   */
+  public LrecWriter(File file, int flags) throws IOException
+  {
+    this(file, flags, null);
+  }
+  
+  
+  
+  /**
+   * Creates the file (and any missing parent directories) and writes the
+   * header.
+   * @param flags The {@link LrecFormat} header flags, which decide whether
+   *          bones and bases are written.
+   * @param deltaConfig The settings for delta-encoding the frames, or
+   *          <code>null</code> to write every frame in full.
+   * @throws IOException If the file could not be created or opened.
+   */
+  public LrecWriter(File file, int flags, DeltaConfig deltaConfig) throws IOException
+  {
+    if (deltaConfig != null)
+      flags |= LrecFormat.FLAG_DELTA;
+    else
+      flags &= ~LrecFormat.FLAG_DELTA;
+    
+    if (file.getParentFile() != null)
+      file.getParentFile().mkdirs();
+    
+    file_    = file;
+    flags_   = flags;
+    channel_ = new FileOutputStream(file).getChannel();
+    buffer_  = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    
+    LrecFormat.putHeader(buffer_, flags);
+    
+    if ((flags & LrecFormat.FLAG_BONE_DICTIONARY) != 0)
+      dictionary_ = new BoneDictionary();
+    
+    if (deltaConfig != null)
+    {
+      codec_ = new DeltaCodec(deltaConfig, flags);
+      buffer_.put(LrecFormat.RECORD_DELTA_CONFIG);
+      buffer_.putInt(DeltaConfig.ENCODED_SIZE);
+      deltaConfig.put(buffer_);
+    }
+  }
+  
+  
+  
+  /** Creates a writer that encodes a chunk into memory, without a header. */
+  private LrecWriter(int flags, DeltaConfig deltaConfig)
+  {
+    flags_  = flags;
+    buffer_ = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    
+    if ((flags & LrecFormat.FLAG_BONE_DICTIONARY) != 0)
+      dictionary_ = new BoneDictionary();
+    if (deltaConfig != null)
+      codec_ = new DeltaCodec(deltaConfig, flags);
+  }
+  
+  
+  
+  @Override
+  public void write(FrameData frame) throws IOException
+  {
+    if (dictionary_ != null)
+      writeDictionary(frame);
+    
+    if (codec_ != null)
+    {
+      writeDelta(frame);
+      return;
+    }
+    
+    int size = LrecFormat.frameSize(frame, flags_);
+    
+    ensureRemaining(LrecFormat.RECORD_HEADER_SIZE + size);
+    
+    buffer_.put(LrecFormat.RECORD_FRAME);
+    buffer_.putInt(size);
+    LrecFormat.putFrame(buffer_, frame, flags_);
+    framesWritten_++;
+  }
+  
+  
+  
+  private void writeDictionary(FrameData frame) throws IOException
+  {
+    if (frame.hands == null || (flags_ & LrecFormat.FLAG_BONES) == 0)
+      return;
+    
+    for (Hand hand : frame.hands)
+    {
+      if (hand.fingers == null)
+        continue;
+      
+      for (Finger finger : hand.fingers)
+      {
+        if (dictionary_.update(hand.id, finger))
+        {
+          ensureRemaining(LrecFormat.RECORD_HEADER_SIZE + BoneDictionary.ENTRY_SIZE);
+          buffer_.put(LrecFormat.RECORD_BONE_DICTIONARY);
+          buffer_.putInt(BoneDictionary.ENTRY_SIZE);
+          dictionary_.put(buffer_, hand.id, finger.id);
+        }
+      }
+    }
+  }
+  
+  
+  
+  private void writeDelta(FrameData frame) throws IOException
+  {
+    boolean keyframe = (framesWritten_ % codec_.getConfig().getKeyframeInterval() == 0);
+    
+    ensureRemaining(LrecFormat.RECORD_HEADER_SIZE + codec_.maxSize(frame));
+    
+    if (keyframe)
+      codec_.reset();
+    
+    int start = buffer_.position();
+    
+    buffer_.put(keyframe ? LrecFormat.RECORD_KEYFRAME : LrecFormat.RECORD_DELTA);
+    buffer_.putInt(0);
+    codec_.encode(frame, buffer_);
+    buffer_.putInt(start + 1, buffer_.position() - start - LrecFormat.RECORD_HEADER_SIZE);
+    framesWritten_++;
+  }
+  
+  
+  
+  /**
+   * Creates a writer that encodes frames into memory, with the same flags
+   * and delta settings as this one, to be appended with
+   * {@link #writeChunk(LrecWriter)}. When delta-encoding, a chunk must start
+   * at a multiple of {@link #getChunkAlignment()} frames, so its first frame
+   * is a keyframe here too.
+   */
+  LrecWriter createChunk()
+  {
+    return new LrecWriter(flags_, codec_ != null ? codec_.getConfig() : null);
+  }
+  
+  
+  
+  /** @return The number of frames chunks must be aligned to: the keyframe interval, or 1. */
+  int getChunkAlignment()
+  {
+    return (codec_ != null ? codec_.getConfig().getKeyframeInterval() : 1);
+  }
+  
+  
+  
+  /**
+   * Appends the records of a chunk encoded in memory, as if its frames had
+   * been written here. Dictionary entries that are already known from
+   * earlier chunks are left out, so the file is the same as if it had been
+   * written frame by frame.
+   * @param chunk A writer created by {@link #createChunk()} on this writer.
+   */
+  void writeChunk(LrecWriter chunk) throws IOException
+  {
+    ByteBuffer records = (ByteBuffer) chunk.buffer_.duplicate().flip();
+    
+    records.order(ByteOrder.LITTLE_ENDIAN);
+    
+    while (records.hasRemaining())
+    {
+      int  start  = records.position();
+      byte type   = records.get();
+      int  length = records.getInt();
+      int  end    = records.position() + length;
+      
+      if (type == LrecFormat.RECORD_BONE_DICTIONARY && dictionary_ != null && !dictionary_.get(records))
+      {
+        records.position(end);
+        continue;
+      }
+      
+      ByteBuffer record = (ByteBuffer) records.duplicate().limit(end).position(start);
+      
+      ensureRemaining(end - start);
+      buffer_.put(record);
+      records.position(end);
+    }
+    
+    framesWritten_ += chunk.framesWritten_;
+    if (codec_ != null)
+      codec_.mergeErrors(chunk.codec_);
+  }
+  
+  
+  
+  @Override
+  public void flush() throws IOException
+  {
+    buffer_.flip();
+    while (buffer_.hasRemaining())
+      channel_.write(buffer_);
+    buffer_.clear();
+  }
+  
+  
+  
+  @Override
+  public void close() throws IOException
+  {
+    try
+    {
+      writeEnd();
+      flush();
+      channel_.truncate(channel_.position());
+      channel_.force(true);
+    }
+    finally
+    {
+      channel_.close();
+    }
+  }
+  
+  
+  
+  /**
+   * Ends the file as if the writer was closed and forces it to the disk, but
+   * keeps writing: the frames that follow replace the end of the file, which
+   * is written again by the next checkpoint or <code>close()</code>.
+   */
+  public void checkpoint() throws IOException
+  {
+    flush();
+    
+    long end = channel_.position();
+    
+    writeEnd();
+    flush();
+    channel_.force(true);
+    channel_.position(end);
+  }
+  
+  
+  
+  /** Writes the errors, if delta-encoding, and the footer. */
+  private void writeEnd() throws IOException
+  {
+    if (codec_ != null)
+    {
+      ensureRemaining(LrecFormat.RECORD_HEADER_SIZE + DeltaConfig.CLASS_COUNT * 4);
+      buffer_.put(LrecFormat.RECORD_ERRORS);
+      buffer_.putInt(DeltaConfig.CLASS_COUNT * 4);
+      for (int i = 0; i < DeltaConfig.CLASS_COUNT; i++)
+        buffer_.putFloat((float) codec_.getMaxError(i));
+    }
+    
+    ensureRemaining(LrecFormat.RECORD_HEADER_SIZE + LrecFormat.FOOTER_SIZE);
+    buffer_.put(LrecFormat.RECORD_FOOTER);
+    buffer_.putInt(LrecFormat.FOOTER_SIZE);
+    buffer_.putLong(framesWritten_);
+  }
+  
+  
+  
+  /** @return The file the frames are written to. */
+  public File getFile()
+  {
+    return file_;
+  }
+  
+  
+  
+  public long getFramesWritten()
+  {
+    return framesWritten_;
+  }
+  
+  
+  
+  /**
+   * @return The codec used to delta-encode the frames, which tracks the
+   *         largest errors, or <code>null</code> if the frames are written in
+   *         full.
+   */
+  public DeltaCodec getDeltaCodec()
+  {
+    return codec_;
+  }
+  
+  
+  
+  private void ensureRemaining(int size) throws IOException
+  {
+    if (buffer_.remaining() >= size)
+      return;
+    
+    if (channel_ == null)
+    {
+      ByteBuffer buffer = ByteBuffer.allocate(Math.max(buffer_.capacity() * 2, buffer_.position() + size));
+      
+      buffer_.flip();
+      buffer_ = buffer.order(ByteOrder.LITTLE_ENDIAN).put(buffer_);
+      return;
+    }
+    
+    flush();
+    
+    if (buffer_.capacity() < size)
+      buffer_ = ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+  }
+}
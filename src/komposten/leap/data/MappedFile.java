@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * Read-only access to a file through a memory-mapped window.
+ * <br />A single mapping can not be larger than 2 GB, so only a window of
+ * the file is mapped at a time. The window is moved whenever a byte outside
+ * of it is requested, which makes this best suited for reading close to
+ * where the last read was.
+ * @author Komposten (aka Jakob Hjelm)
+ */
+class MappedFile
+{
+  private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+  
+  private RandomAccessFile file_;
+  private FileChannel      channel_;
+  private long             size_;
+  
+  private MappedByteBuffer window_;
+  private long             windowStart_;
+  private long             windowEnd_;
+  
+  
+  
+  public MappedFile(File file) throws IOException
+  {
+    file_    = new RandomAccessFile(file, "r");
+    channel_ = file_.getChannel();
+    size_    = channel_.size();
+  }
+  
+  
+  
+  /** @return The size of the file in bytes. */
+  public long size()
+  {
+    return size_;
+  }
+  
+  
+  
+  /** @return The byte at <code>position</code>. */
+  public byte get(long position) throws IOException
+  {
+    if (position < windowStart_ || position >= windowEnd_)
+      map(position, 1);
+    
+    return window_.get((int) (position - windowStart_));
+  }
+  
+  
+  
+  /**
+   * @return A little-endian buffer with <code>length</code> bytes of the
+   *         file, starting at <code>position</code>. The buffer is only valid
+   *         until the window is moved by the next call.
+   * @throws IOException If the range is outside the file or could not be mapped.
+   */
+  public ByteBuffer slice(long position, int length) throws IOException
+  {
+    if (position < windowStart_ || position + length > windowEnd_)
+      map(position, length);
+    
+    ByteBuffer buffer = window_.duplicate();
+    
+    buffer.position((int) (position - windowStart_));
+    buffer.limit(buffer.position() + length);
+    return buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+  }
+  
+  
+  
+  public void close() throws IOException
+  {
+    window_ = null;
+    file_.close();
+  }
+  
+  
+  
+  private void map(long position, int length) throws IOException
+  {
+    if (position < 0 || position + length > size_)
+      throw new IOException("Position " + position + " is outside of the file!");
+    
+    long size = Math.min(Math.max(length, WINDOW_SIZE), size_ - position);
+    
+    window_      = channel_.map(MapMode.READ_ONLY, position, size);
+    windowStart_ = position;
+    windowEnd_   = position + size;
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+/**
+ * What a {@link RecordingPipeline} does with a new frame when the recording
+ * thread has fallen behind and its buffer is full (or, for
+ * {@link #ADAPTIVE}, filling up).
+ * @author Komposten (aka Jakob Hjelm)
+ */
+enum OverloadPolicy
+{
+  /**
+   * The capture thread waits for room in the buffer, so no frame that was
+   * delivered is lost. The source falls behind instead, which shows up as
+   * gaps in the frame ids.
+   */
+  BLOCK("Block when behind"),
+  /** The new frame is dropped, keeping the frames already waiting. */
+  DROP_NEWEST("Drop newest"),
+  /** The oldest waiting frame is dropped to make room for the new one. */
+  DROP_OLDEST("Drop oldest"),
+  /**
+   * Frames are decimated evenly once the buffer is a quarter full: every
+   * 2nd frame is kept, every 4th at half full and every 8th at three
+   * quarters, and new frames are dropped if it is full anyway.
+   */
+  ADAPTIVE("Adaptive decimation");
+  
+  private String label_;
+  
+  
+  
+  private OverloadPolicy(String label)
+  {
+    label_ = label;
+  }
+  
+  
+  
+  /**
+   * @return The policy with the given name (case-insensitive, e.g.
+   *         "drop_oldest"), or <code>null</code>.
+   */
+  public static OverloadPolicy forName(String name)
+  {
+    for (OverloadPolicy policy : values())
+    {
+      if (policy.name().equalsIgnoreCase(name))
+        return policy;
+    }
+    
+    return null;
+  }
+  
+  
+  
+  /**
+   * Returns the name shown in the GUI.
+   */
+  @Override
+  public String toString()
+  {
+    return label_;
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A source that produces its frames on a thread of its own, and delivers
+ * each frame when it is due: the frames of a start are spread out over time
+ * according to {@link #dueNanos(FrameData, long)}, measured from the moment
+ * the source was started.
+ * <br />If the listener takes longer than the time between two frames, the
+ * following frames are delivered as fast as possible until they have caught
+ * up, like a device whose frames queue up while the application is busy.
+ * @author Komposten (aka Jakob Hjelm)
+ */
+abstract class PacedFrameSource implements FrameSource
+{
+  private Listener listener_;
+  private Thread   thread_;
+  
+  private volatile boolean started_;
+  
+  
+  
+  @Override
+  public void open(Listener listener)
+  {
+    listener_ = listener;
+    listener_.onStatus(describe());
+  }
+  
+  
+  
+  @Override
+  public synchronized void start(CaptureProfile profile)
+  {
+    if (started_)
+      return;
+    
+    // The thread of the previous start may still be finishing.
+    stop();
+    
+    final CaptureProfile runProfile = profile;
+    
+    started_ = true;
+    thread_  = new Thread(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        deliver(runProfile);
+      }
+    }, getClass().getSimpleName());
+    thread_.setDaemon(true);
+    thread_.start();
+  }
+  
+  
+  
+  @Override
+  public synchronized void stop()
+  {
+    if (thread_ == null)
+      return;
+    
+    started_ = false;
+    
+    // Called by the listener, e.g. from onEnd(); the thread ends on its own.
+    if (Thread.currentThread() == thread_)
+      return;
+    
+    LockSupport.unpark(thread_);
+    
+    boolean interrupted = false;
+    while (thread_.isAlive())
+    {
+      try
+      {
+        thread_.join();
+      }
+      catch (InterruptedException e)
+      {
+        interrupted = true;
+      }
+    }
+    
+    if (interrupted)
+      Thread.currentThread().interrupt();
+    
+    thread_ = null;
+  }
+  
+  
+  
+  @Override
+  public void close()
+  {
+    stop();
+  }
+  
+  
+  
+  @Override
+  public String describeCost()
+  {
+    return "";
+  }
+  
+  
+  
+  private void deliver(CaptureProfile profile)
+  {
+    try
+    {
+      begin(profile);
+      
+      long      start = System.nanoTime();
+      long      index = 0;
+      FrameData frame;
+      
+      while (started_ && (frame = next()) != null)
+      {
+        long due = start + dueNanos(frame, index++);
+        long wait;
+        
+        while (started_ && (wait = due - System.nanoTime()) > 0)
+          LockSupport.parkNanos(wait);
+        
+        if (!started_)
+          break;
+        
+        frame.receivedNanos = System.nanoTime();
+        listener_.onFrame(frame);
+      }
+      
+      if (started_)
+        listener_.onEnd();
+    }
+    catch (Exception e)
+    {
+      listener_.onError(e);
+    }
+    finally
+    {
+      started_ = false;
+      end();
+    }
+  }
+  
+  
+  
+  /** @return A description of the source, reported as its status when opened. */
+  protected abstract String describe();
+  
+  
+  
+  /**
+   * Called on the source's thread when it has been started, before the
+   * first call to {@link #next()}.
+   */
+  protected abstract void begin(CaptureProfile profile) throws Exception;
+  
+  
+  
+  /** @return The next frame, or <code>null</code> if there are no more frames. */
+  protected abstract FrameData next() throws Exception;
+  
+  
+  
+  /**
+   * @param index The number of frames delivered before <code>frame</code>
+   *          since the source was started.
+   * @return The time at which <code>frame</code> is due, in nanoseconds
+   *         after the source was started. 0 delivers all frames as fast as
+   *         possible.
+   */
+  protected abstract long dueNanos(FrameData frame, long index);
+  
+  
+  
+  /** Called on the source's thread when it stops delivering frames, for any reason. */
+  protected abstract void end();
+}
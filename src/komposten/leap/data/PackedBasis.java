@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+/**
+ * Packs a {@link Basis} into a single <code>long</code>, for the binary
+ * format's FLAG_QUATERNIONS mode (see {@link LrecFormat}).
+ * <br />The three axes of a basis form a rotation, which is stored as a
+ * quaternion using the "smallest three" method: the largest component is
+ * left out (it follows from the other three, since the quaternion has unit
+ * length) and the other three are stored with 19 bits each. Left-handed
+ * bases (those of left hands) are made right-handed by negating the x axis
+ * first. The origin of a basis is usually the same as the palm position or
+ * bone center, so it is only stored as a reference to that position. If it
+ * is not, it has to be stored separately (see {@link #hasExplicitOrigin(long)}).
+ * <br />Bit layout, from the lowest bit:
+ * <pre>
+ * 2  index of the left-out component (w, x, y, z)
+ * 1  mirrored: the x axis is negated
+ * 2  origin: ORIGIN_ZERO, ORIGIN_REFERENCE or ORIGIN_EXPLICIT
+ * 1  missing: the basis is <code>null</code>
+ * 19 each of the three stored components, in order
+ * </pre>
+ * Unpacked axes are within about 1e-5 of the original axes, provided those
+ * are orthonormal. The origin is restored exactly.
+ * @author Komposten (aka Jakob Hjelm)
+ */
+final class PackedBasis
+{
+  /** The size of a packed basis, in bytes. */
+  public static final int SIZE           = 8;
+  public static final int HEADER_BITS    = 6;
+  public static final int COMPONENT_BITS = 19;
+  
+  public static final int ORIGIN_ZERO      = 0;
+  public static final int ORIGIN_REFERENCE = 1;
+  public static final int ORIGIN_EXPLICIT  = 2;
+  
+  private static final int    MIRRORED       = 1 << 2;
+  private static final int    ORIGIN_SHIFT   = 3;
+  private static final int    MISSING        = 1 << 5;
+  private static final int    COMPONENT_MASK = (1 << COMPONENT_BITS) - 1;
+  private static final double COMPONENT_MAX  = Math.sqrt(0.5);
+  
+  
+  
+  private PackedBasis()
+  {
+  }
+  
+  
+  
+  /**
+   * @param reference The position the origin of the basis is expected to
+   *          equal: the palm position for hands and the center for bones.
+   */
+  public static long pack(Basis basis, float[] reference)
+  {
+    if (basis == null)
+      return MISSING;
+    
+    float[]  x        = (basis.xBasis != null ? basis.xBasis : new float[3]);
+    float[]  y        = (basis.yBasis != null ? basis.yBasis : new float[3]);
+    float[]  z        = (basis.zBasis != null ? basis.zBasis : new float[3]);
+    boolean  mirrored = determinant(x, y, z) < 0;
+    double   sign     = (mirrored ? -1 : 1);
+    double[] q        = toQuaternion(sign * x[0], sign * x[1], sign * x[2], y, z);
+    
+    int largest = 0;
+    for (int i = 1; i < 4; i++)
+    {
+      if (Math.abs(q[i]) > Math.abs(q[largest]))
+        largest = i;
+    }
+    
+    long packed = largest | (mirrored ? MIRRORED : 0) | (originMode(basis.origin, reference) << ORIGIN_SHIFT);
+    int  shift  = HEADER_BITS;
+    sign = (q[largest] < 0 ? -1 : 1);
+    
+    for (int i = 0; i < 4; i++)
+    {
+      if (i == largest)
+        continue;
+      
+      double component = Math.max(-1, Math.min(1, sign * q[i] / COMPONENT_MAX));
+      long   quantised = Math.round((component + 1) * 0.5 * COMPONENT_MASK);
+      
+      packed |= quantised << shift;
+      shift  += COMPONENT_BITS;
+    }
+    
+    return packed;
+  }
+  
+  
+  
+  /**
+   * @param reference The position the origin was compared to when packing.
+   * @param origin The origin, if it had to be stored separately (see
+   *          {@link #hasExplicitOrigin(long)}). Otherwise ignored.
+   * @return The basis, or <code>null</code> if a <code>null</code> basis was
+   *         packed.
+   */
+  public static Basis unpack(long packed, float[] reference, float[] origin)
+  {
+    if ((packed & MISSING) != 0)
+      return null;
+    
+    int      largest = (int) (packed & 3);
+    double[] q       = new double[4];
+    double   sum     = 0;
+    int      shift   = HEADER_BITS;
+    
+    for (int i = 0; i < 4; i++)
+    {
+      if (i == largest)
+        continue;
+      
+      long quantised = (packed >>> shift) & COMPONENT_MASK;
+      
+      q[i]   = ((double) quantised / COMPONENT_MASK * 2 - 1) * COMPONENT_MAX;
+      sum   += q[i] * q[i];
+      shift += COMPONENT_BITS;
+    }
+    
+    q[largest] = Math.sqrt(Math.max(0, 1 - sum));
+    
+    double w     = q[0];
+    double x     = q[1];
+    double y     = q[2];
+    double z     = q[3];
+    float  s     = ((packed & MIRRORED) != 0 ? -1 : 1);
+    Basis  basis = new Basis();
+    
+    basis.xBasis = new float[] { s * (float) (1 - 2 * (y * y + z * z)), s * (float) (2 * (x * y + w * z)), s * (float) (2 * (x * z - w * y)) };
+    basis.yBasis = new float[] { (float) (2 * (x * y - w * z)), (float) (1 - 2 * (x * x + z * z)), (float) (2 * (y * z + w * x)) };
+    basis.zBasis = new float[] { (float) (2 * (x * z + w * y)), (float) (2 * (y * z - w * x)), (float) (1 - 2 * (x * x + y * y)) };
+    
+    switch (getOriginMode(packed))
+    {
+      case ORIGIN_REFERENCE :
+        basis.origin = (reference != null ? reference.clone() : new float[3]);
+        break;
+      case ORIGIN_EXPLICIT :
+        basis.origin = (origin != null ? origin.clone() : new float[3]);
+        break;
+      default :
+        basis.origin = new float[3];
+        break;
+    }
+    
+    return basis;
+  }
+  
+  
+  
+  public static int getOriginMode(long packed)
+  {
+    return (int) (packed >>> ORIGIN_SHIFT) & 3;
+  }
+  
+  
+  
+  /** @return <code>true</code> if the origin has to be stored next to the packed basis. */
+  public static boolean hasExplicitOrigin(long packed)
+  {
+    return (packed & MISSING) == 0 && getOriginMode(packed) == ORIGIN_EXPLICIT;
+  }
+  
+  
+  
+  /**
+   * @return <code>true</code> if the origin of <code>basis</code> has to be
+   *         stored next to the packed basis.
+   */
+  public static boolean hasExplicitOrigin(Basis basis, float[] reference)
+  {
+    return basis != null && originMode(basis.origin, reference) == ORIGIN_EXPLICIT;
+  }
+  
+  
+  
+  private static int originMode(float[] origin, float[] reference)
+  {
+    if (origin == null || (origin[0] == 0 && origin[1] == 0 && origin[2] == 0))
+      return ORIGIN_ZERO;
+    if (reference != null && origin[0] == reference[0] && origin[1] == reference[1] && origin[2] == reference[2])
+      return ORIGIN_REFERENCE;
+    return ORIGIN_EXPLICIT;
+  }
+  
+  
+  
+  private static double determinant(float[] x, float[] y, float[] z)
+  {
+    return x[0] * ((double) y[1] * z[2] - (double) y[2] * z[1])
+         - x[1] * ((double) y[0] * z[2] - (double) y[2] * z[0])
+         + x[2] * ((double) y[0] * z[1] - (double) y[1] * z[0]);
+  }
+  
+  
+  
+  /**
+   * @return The unit quaternion (w, x, y, z) for the rotation matrix whose
+   *         columns are the given axes.
+   */
+  private static double[] toQuaternion(double m00, double m10, double m20, float[] y, float[] z)
+  {
+    double   m01   = y[0];
+    double   m11   = y[1];
+    double   m21   = y[2];
+    double   m02   = z[0];
+    double   m12   = z[1];
+    double   m22   = z[2];
+    double   trace = m00 + m11 + m22;
+    double[] q;
+    
+    if (trace > 0)
+    {
+      double s = 0.5 / Math.sqrt(trace + 1);
+      q = new double[] { 0.25 / s, (m21 - m12) * s, (m02 - m20) * s, (m10 - m01) * s };
+    }
+    else if (m00 > m11 && m00 > m22)
+    {
+      double s = 2 * Math.sqrt(1 + m00 - m11 - m22);
+      q = new double[] { (m21 - m12) / s, 0.25 * s, (m01 + m10) / s, (m02 + m20) / s };
+    }
+    else if (m11 > m22)
+    {
+      double s = 2 * Math.sqrt(1 + m11 - m00 - m22);
+      q = new double[] { (m02 - m20) / s, (m01 + m10) / s, 0.25 * s, (m12 + m21) / s };
+    }
+    else
+    {
+      double s = 2 * Math.sqrt(1 + m22 - m00 - m11);
+      q = new double[] { (m10 - m01) / s, (m02 + m20) / s, (m12 + m21) / s, 0.25 * s };
+    }
+    
+    double length = Math.sqrt(q[0] * q[0] + q[1] * q[1] + q[2] * q[2] + q[3] * q[3]);
+    
+    if (length == 0 || Double.isNaN(length))
+      return new double[] { 1, 0, 0, 0 };
+    
+    for (int i = 0; i < 4; i++)
+      q[i] /= length;
+    
+    return q;
+  }
+}
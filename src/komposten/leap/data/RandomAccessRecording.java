@@ -0,0 +1,717 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import komposten.utilities.tools.LogUtils;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * Random access to the frames of a saved recording, without loading the
+ * recording into memory.
+ * <br />The file is memory-mapped (see {@link MappedFile}) and a sparse
+ * {@link RecordingIndex} is built over it when it is opened, which takes a
+ * single pass over the file. Frames can then be looked up by position, frame
+ * id or (for binary recordings) timestamp in O(log n) time, and ranges can
+ * be read forwards or backwards.
+ * <br />For JSON recordings the index pass has to scan every byte, so the
+ * index is saved next to the recording and reused as long as the recording
+ * does not change. JSON recordings have no timestamps.
+ * <br />In delta-encoded binary recordings only keyframes can be decoded on
+ * their own, so the index has an entry for every keyframe and all frames
+ * from a keyframe to the next are decoded together and kept until a frame
+ * from another block is requested.
+ * <br />Binary recordings with a {@link BoneDictionary} are read using the
+ * dictionary entries found before the frame. The offsets of those entries
+ * are collected while the index is built.
+ * @author Komposten (aka Jakob Hjelm)
+ */
+class RandomAccessRecording
+{
+  private MappedFile     file_;
+  private Layout         layout_;
+  private RecordingIndex index_;
+  
+  /** The index entry whose frame offsets are in {@link #blockOffsets_}. */
+  private int         blockEntry_;
+  private long[]      blockOffsets_;
+  /** The decoded frames of {@link #blockEntry_}, for delta-encoded recordings. */
+  private FrameData[] blockFrames_;
+  
+  
+  
+  /**
+   * Opens a JSON or binary recording and loads or builds its index.
+   * @throws IOException If the file could not be read or is not a recording.
+   */
+  public RandomAccessRecording(File file) throws IOException
+  {
+    file_ = new MappedFile(file);
+    
+    try
+    {
+      if (RecordingFormat.forFile(file) == RecordingFormat.LREC)
+      {
+        layout_ = new LrecLayout();
+        index_  = buildIndex();
+      }
+      else
+      {
+        layout_ = new JsonLayout();
+        index_  = RecordingIndex.load(file);
+        
+        if (index_ == null)
+        {
+          index_ = buildIndex();
+          saveIndex(file);
+        }
+      }
+    }
+    catch (IOException e)
+    {
+      file_.close();
+      throw e;
+    }
+    
+    blockEntry_   = -1;
+    blockOffsets_ = new long[index_.getInterval()];
+    if (layout_.keyframeInterval() > 0)
+      blockFrames_ = new FrameData[index_.getInterval()];
+  }
+  
+  
+  
+  private RecordingIndex buildIndex() throws IOException
+  {
+    int            keyframes = layout_.keyframeInterval();
+    RecordingIndex index     = new RecordingIndex(keyframes > 0 ? keyframes : RecordingIndex.DEFAULT_INTERVAL);
+    int            interval  = index.getInterval();
+    long           count     = 0;
+    
+    for (long offset = layout_.first(); offset >= 0; offset = layout_.next(offset))
+    {
+      if (count % interval == 0)
+        index.add(layout_.frameId(offset), layout_.timestamp(offset), offset);
+      count++;
+    }
+    
+    index.setFrameCount(count);
+    return index;
+  }
+  
+  
+  
+  private void saveIndex(File file)
+  {
+    try
+    {
+      index_.save(file);
+    }
+    catch (IOException e)
+    {
+      LogUtils.log("ERROR", "RandomAccessRecording", "Could not save the index for " + file + "!", e, true);
+    }
+  }
+  
+  
+  
+  /** @return The number of frames in the recording. */
+  public long size()
+  {
+    return index_.getFrameCount();
+  }
+  
+  
+  
+  /** @return <code>true</code> if the frames in the recording have timestamps. */
+  public boolean hasTimestamps()
+  {
+    return layout_.hasTimestamps();
+  }
+  
+  
+  
+  /**
+   * @param index The position of the frame in the recording.
+   * @throws IndexOutOfBoundsException If there is no frame at that position.
+   */
+  public FrameData get(long index) throws IOException
+  {
+    long offset = offsetOf(index);
+    
+    if (blockFrames_ == null)
+      return layout_.read(offset);
+    
+    int position = (int) (index % index_.getInterval());
+    
+    if (blockFrames_[position] == null)
+    {
+      long count = Math.min(index_.getInterval(), size() - (index - position));
+      
+      for (int i = 0; i < count; i++)
+        blockFrames_[i] = layout_.read(blockOffsets_[i]);
+    }
+    
+    return blockFrames_[position];
+  }
+  
+  
+  
+  /**
+   * @return The position of the frame with the given id, or -1 if there is
+   *         no such frame. Assumes that frame ids increase through the
+   *         recording.
+   */
+  public long indexOf(long frameId) throws IOException
+  {
+    int entry = index_.findFrameId(frameId);
+    
+    if (entry < 0)
+      return -1;
+    
+    long first = (long) entry * index_.getInterval();
+    long last  = Math.min(first + index_.getInterval(), size());
+    
+    for (long i = first; i < last; i++)
+    {
+      long id = (blockFrames_ != null ? get(i).frameId : layout_.frameId(offsetOf(i)));
+      
+      if (id == frameId)
+        return i;
+      if (id > frameId)
+        break;
+    }
+    
+    return -1;
+  }
+  
+  
+  
+  /**
+   * @return The position of the last frame captured at or before
+   *         <code>timestamp</code>, or -1 if all frames were captured after
+   *         it.
+   * @throws UnsupportedOperationException If the recording has no timestamps.
+   */
+  public long indexAt(long timestamp) throws IOException
+  {
+    if (!hasTimestamps())
+      throw new UnsupportedOperationException("The recording has no timestamps!");
+    
+    int entry = index_.findTimestamp(timestamp);
+    
+    if (entry < 0)
+      return -1;
+    
+    long first = (long) entry * index_.getInterval();
+    long last  = Math.min(first + index_.getInterval(), size());
+    long found = first;
+    
+    for (long i = first + 1; i < last; i++)
+    {
+      long time = (blockFrames_ != null ? get(i).timestamp : layout_.timestamp(offsetOf(i)));
+      
+      if (time > timestamp)
+        break;
+      found = i;
+    }
+    
+    return found;
+  }
+  
+  
+  
+  /**
+   * @return A reader for the frames from <code>from</code> (inclusive) to
+   *         <code>to</code> (exclusive), in recording order.
+   */
+  public FrameReader range(final long from, final long to)
+  {
+    checkRange(from, to);
+    
+    return new FrameReader()
+    {
+      private long next_ = from;
+      
+      @Override
+      public FrameData next() throws IOException
+      {
+        return (next_ < to ? get(next_++) : null);
+      }
+      
+      @Override
+      public void close()
+      {
+      }
+    };
+  }
+  
+  
+  
+  /**
+   * @return A reader for the frames from <code>to</code> (exclusive) down to
+   *         <code>from</code> (inclusive), in reverse recording order.
+   */
+  public FrameReader reverse(final long from, final long to)
+  {
+    checkRange(from, to);
+    
+    return new FrameReader()
+    {
+      private long next_ = to - 1;
+      
+      @Override
+      public FrameData next() throws IOException
+      {
+        return (next_ >= from ? get(next_--) : null);
+      }
+      
+      @Override
+      public void close()
+      {
+      }
+    };
+  }
+  
+  
+  
+  public void close() throws IOException
+  {
+    file_.close();
+  }
+  
+  
+  
+  private void checkRange(long from, long to)
+  {
+    if (from < 0 || to > size() || from > to)
+      throw new IndexOutOfBoundsException("Invalid range: " + from + " to " + to + ", size: " + size());
+  }
+  
+  
+  
+  /**
+   * @return The byte offset of a frame. The offsets of all frames that share
+   *         an index entry are found in one pass and kept until a frame from
+   *         another entry is requested, which makes reading a range in
+   *         either direction cheap.
+   */
+  private long offsetOf(long index) throws IOException
+  {
+    if (index < 0 || index >= size())
+      throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size());
+    
+    int interval = index_.getInterval();
+    int entry    = (int) (index / interval);
+    
+    if (entry != blockEntry_)
+    {
+      long offset = index_.getOffset(entry);
+      long count  = Math.min(interval, size() - (long) entry * interval);
+      
+      blockOffsets_[0] = offset;
+      for (int i = 1; i < count; i++)
+        blockOffsets_[i] = offset = layout_.next(offset);
+      
+      blockEntry_ = entry;
+      if (blockFrames_ != null)
+        Arrays.fill(blockFrames_, null);
+    }
+    
+    return blockOffsets_[(int) (index % interval)];
+  }
+  
+  
+  
+  /**
+   * Knows how to find and read frames in a specific file format.
+   */
+  private interface Layout
+  {
+    /** @return The offset of the first frame, or -1 if there are no frames. */
+    long first() throws IOException;
+    
+    /** @return The offset of the frame after the one at <code>offset</code>, or -1. */
+    long next(long offset) throws IOException;
+    
+    long frameId(long offset) throws IOException;
+    
+    long timestamp(long offset) throws IOException;
+    
+    boolean hasTimestamps();
+    
+    /**
+     * @return The number of frames from one keyframe to the next, or 0 if
+     *         every frame can be read on its own. If not 0, the id and
+     *         timestamp can only be read for keyframes, and frames must be
+     *         read in order starting at a keyframe.
+     */
+    int keyframeInterval();
+    
+    FrameData read(long offset) throws IOException;
+  }
+  
+  
+  
+  private class LrecLayout implements Layout
+  {
+    private int            flags_;
+    private DeltaCodec     codec_;
+    private BoneDictionary dictionary_;
+    /** The offsets of all dictionary records found so far, in file order. */
+    private LongColumn     dictionaryOffsets_;
+    /** The number of records in {@link #dictionaryOffsets_} that have been read into the dictionary. */
+    private int            dictionaryRead_;
+    
+    public LrecLayout() throws IOException
+    {
+      if (file_.size() < LrecFormat.HEADER_SIZE)
+        throw new IOException("The file is too short to be a binary recording!");
+      
+      try
+      {
+        flags_             = LrecFormat.getHeader(file_.slice(0, LrecFormat.HEADER_SIZE));
+        dictionary_        = new BoneDictionary();
+        dictionaryOffsets_ = new LongColumn();
+        
+        if ((flags_ & LrecFormat.FLAG_DELTA) != 0)
+        {
+          long offset = LrecFormat.HEADER_SIZE;
+          
+          if (offset + LrecFormat.RECORD_HEADER_SIZE > file_.size() || file_.get(offset) != LrecFormat.RECORD_DELTA_CONFIG)
+            throw new IOException("The file contains delta frames but no delta config!");
+          codec_ = new DeltaCodec(DeltaConfig.get(payload(offset)), flags_);
+        }
+      }
+      catch (IllegalArgumentException e)
+      {
+        throw new IOException(e.getMessage(), e);
+      }
+    }
+    
+    @Override
+    public long first() throws IOException
+    {
+      return frameFrom(LrecFormat.HEADER_SIZE);
+    }
+    
+    @Override
+    public long next(long offset) throws IOException
+    {
+      return frameFrom(offset + LrecFormat.RECORD_HEADER_SIZE + payloadSize(offset));
+    }
+    
+    /** @return The offset of the first frame record at or after <code>offset</code>. */
+    private long frameFrom(long offset) throws IOException
+    {
+      while (offset + LrecFormat.RECORD_HEADER_SIZE <= file_.size())
+      {
+        byte type = file_.get(offset);
+        
+        if (type == LrecFormat.RECORD_FRAME || type == LrecFormat.RECORD_KEYFRAME || type == LrecFormat.RECORD_DELTA)
+          return offset;
+        
+        int last = dictionaryOffsets_.size() - 1;
+        if (type == LrecFormat.RECORD_BONE_DICTIONARY && (last < 0 || dictionaryOffsets_.get(last) < offset))
+          dictionaryOffsets_.add(offset);
+        
+        offset += LrecFormat.RECORD_HEADER_SIZE + payloadSize(offset);
+      }
+      
+      return -1;
+    }
+    
+    private int payloadSize(long offset) throws IOException
+    {
+      return file_.slice(offset + 1, 4).getInt();
+    }
+    
+    private ByteBuffer payload(long offset) throws IOException
+    {
+      return file_.slice(offset + LrecFormat.RECORD_HEADER_SIZE, payloadSize(offset));
+    }
+    
+    @Override
+    public long frameId(long offset) throws IOException
+    {
+      if (codec_ != null)
+        return DeltaCodec.unzigzag(DeltaCodec.getVarlong(payload(offset)));
+      return file_.slice(offset + LrecFormat.RECORD_HEADER_SIZE, 8).getLong();
+    }
+    
+    @Override
+    public long timestamp(long offset) throws IOException
+    {
+      if (codec_ != null)
+      {
+        ByteBuffer payload = payload(offset);
+        DeltaCodec.getVarlong(payload);
+        return DeltaCodec.unzigzag(DeltaCodec.getVarlong(payload));
+      }
+      return file_.slice(offset + LrecFormat.RECORD_HEADER_SIZE + 8, 8).getLong();
+    }
+    
+    @Override
+    public boolean hasTimestamps()
+    {
+      return true;
+    }
+    
+    @Override
+    public int keyframeInterval()
+    {
+      return (codec_ != null ? codec_.getConfig().getKeyframeInterval() : 0);
+    }
+    
+    @Override
+    public FrameData read(long offset) throws IOException
+    {
+      byte      type = file_.get(offset);
+      FrameData frame;
+      
+      if (type == LrecFormat.RECORD_FRAME)
+      {
+        frame = LrecFormat.getFrame(payload(offset), flags_);
+      }
+      else
+      {
+        if (type == LrecFormat.RECORD_KEYFRAME)
+          codec_.reset();
+        frame = codec_.decode(payload(offset));
+      }
+      
+      if ((flags_ & LrecFormat.FLAG_BONE_DICTIONARY) != 0)
+      {
+        readDictionary(offset);
+        dictionary_.apply(frame);
+      }
+      
+      return frame;
+    }
+    
+    /**
+     * Brings the dictionary to the state it has at <code>offset</code>,
+     * starting over if it is already past it.
+     */
+    private void readDictionary(long offset) throws IOException
+    {
+      if (dictionaryRead_ > 0 && dictionaryOffsets_.get(dictionaryRead_ - 1) > offset)
+      {
+        dictionary_.clear();
+        dictionaryRead_ = 0;
+      }
+      
+      while (dictionaryRead_ < dictionaryOffsets_.size() && dictionaryOffsets_.get(dictionaryRead_) < offset)
+        dictionary_.get(payload(dictionaryOffsets_.get(dictionaryRead_++)));
+    }
+  }
+  
+  
+  
+  /**
+   * Finds frames in a JSON recording by scanning for the objects in the
+   * top-level array, keeping track of nesting and strings.
+   */
+  private class JsonLayout implements Layout
+  {
+    private byte[] frameIdKey_ = "frameId".getBytes();
+    
+    private Gson gson_ = new FrameJson(FrameJson.ALL).getGson();
+    
+    @Override
+    public long first() throws IOException
+    {
+      long position = skipWhitespace(0);
+      
+      if (position >= file_.size() || file_.get(position) != '[')
+        throw new IOException("Not a LeapRecorder JSON file!");
+      
+      return objectFrom(skipWhitespace(position + 1));
+    }
+    
+    @Override
+    public long next(long offset) throws IOException
+    {
+      long position = skipWhitespace(skipObject(offset));
+      
+      if (position < file_.size() && file_.get(position) == ',')
+        return objectFrom(skipWhitespace(position + 1));
+      return objectFrom(position);
+    }
+    
+    private long objectFrom(long position) throws IOException
+    {
+      if (position >= file_.size())
+        throw new IOException("The file ends in the middle of the array!");
+      
+      byte b = file_.get(position);
+      
+      if (b == '{')
+        return position;
+      if (b == ']')
+        return -1;
+      throw new IOException("Unexpected character '" + (char) b + "' at " + position + "!");
+    }
+    
+    /** @return The position after the object that starts at <code>offset</code>. */
+    private long skipObject(long offset) throws IOException
+    {
+      long position = offset;
+      int  depth    = 0;
+      
+      do
+      {
+        byte b = file_.get(position);
+        
+        if (b == '"')
+        {
+          position = skipString(position);
+          continue;
+        }
+        else if (b == '{' || b == '[')
+        {
+          depth++;
+        }
+        else if (b == '}' || b == ']')
+        {
+          depth--;
+        }
+        
+        position++;
+      }
+      while (depth > 0);
+      
+      return position;
+    }
+    
+    /** @return The position after the string that starts at <code>offset</code>. */
+    private long skipString(long offset) throws IOException
+    {
+      long position = offset + 1;
+      
+      while (true)
+      {
+        byte b = file_.get(position++);
+        
+        if (b == '\\')
+          position++;
+        else if (b == '"')
+          return position;
+      }
+    }
+    
+    private long skipWhitespace(long position) throws IOException
+    {
+      while (position < file_.size() && Character.isWhitespace(file_.get(position)))
+        position++;
+      return position;
+    }
+    
+    @Override
+    public long frameId(long offset) throws IOException
+    {
+      long position = offset + 1;
+      int  depth    = 1;
+      
+      while (depth > 0)
+      {
+        byte b = file_.get(position);
+        
+        if (b == '"')
+        {
+          long end = skipString(position);
+          
+          if (depth == 1 && isFrameIdKey(position + 1, end - 1))
+            return parseLong(skipWhitespace(skipWhitespace(end) + 1));
+          
+          position = end;
+          continue;
+        }
+        else if (b == '{' || b == '[')
+        {
+          depth++;
+        }
+        else if (b == '}' || b == ']')
+        {
+          depth--;
+        }
+        
+        position++;
+      }
+      
+      throw new IOException("The frame at " + offset + " has no frame id!");
+    }
+    
+    private boolean isFrameIdKey(long start, long end) throws IOException
+    {
+      if (end - start != frameIdKey_.length)
+        return false;
+      
+      for (int i = 0; i < frameIdKey_.length; i++)
+      {
+        if (file_.get(start + i) != frameIdKey_[i])
+          return false;
+      }
+      
+      return true;
+    }
+    
+    private long parseLong(long position) throws IOException
+    {
+      boolean negative = (file_.get(position) == '-');
+      long    value    = 0;
+      
+      if (negative)
+        position++;
+      
+      for (byte b = file_.get(position); b >= '0' && b <= '9'; b = file_.get(++position))
+        value = value * 10 + (b - '0');
+      
+      return (negative ? -value : value);
+    }
+    
+    @Override
+    public long timestamp(long offset)
+    {
+      return RecordingIndex.NO_TIMESTAMP;
+    }
+    
+    @Override
+    public boolean hasTimestamps()
+    {
+      return false;
+    }
+    
+    @Override
+    public int keyframeInterval()
+    {
+      return 0;
+    }
+    
+    @Override
+    public FrameData read(long offset) throws IOException
+    {
+      long       end    = skipObject(offset);
+      ByteBuffer buffer = file_.slice(offset, (int) (end - offset));
+      byte[]     bytes  = new byte[buffer.remaining()];
+      
+      buffer.get(bytes);
+      
+      try
+      {
+        return gson_.fromJson(new String(bytes, "UTF-8"), FrameData.class);
+      }
+      catch (JsonParseException e)
+      {
+        throw new IOException("Could not parse the frame at " + offset + "!", e);
+      }
+    }
+  }
+}
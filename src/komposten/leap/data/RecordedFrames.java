@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+import java.io.IOException;
+
+/**
+ * A recording that is kept until it has been saved: a {@link FrameSink}
+ * whose frames can be read back by index.
+ * <br />Frames are added by a single thread, but other threads may read the
+ * frames below {@link #size()} at the same time.
+ * <br />A recording may hold resources outside of the Java heap, which are
+ * freed once every user has released it. Whoever creates it holds the first
+ * reference, and anyone else that keeps it (e.g. a {@link SaveTask}) retains
+ * it until it is done.
+ * @author Komposten (aka Jakob Hjelm)
+ */
+interface RecordedFrames extends FrameSink
+{
+  /** @return The number of frames in the recording. May be called from any thread. */
+  int size();
+  
+  /**
+   * Recreates a frame as a <code>FrameData</code> object graph.
+   * @param index The index of the frame, in the order the frames were added.
+   * @throws IOException If the frame is stored in a file that could not be
+   *           read.
+   */
+  FrameData get(int index) throws IOException;
+  
+  /** @return The approximate number of bytes of memory used by the frames. */
+  long memoryUsage();
+  
+  /** Adds a reference to the recording, which must be released. */
+  void retain();
+  
+  /** Removes a reference. The frames can not be read once all have been removed. */
+  void release();
+}
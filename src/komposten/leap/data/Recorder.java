@@ -0,0 +1,638 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Records frames from a {@link FrameSource} into memory or straight into a
+ * file, and saves recordings, without any user interface. This is the part
+ * of LeapRecorder that is shared by the window ({@link DataRecorder}) and the
+ * command line ({@link CommandLineRecorder}).
+ * <br />The frames of the source are handed to a {@link RecordingPipeline},
+ * which writes them to a {@link SlabFrameStore} (outside of the Java heap,
+ * spilling to a temporary file beyond the memory budget) or, when
+ * streaming, to a session of segment files in the chosen format (see
+ * {@link SegmentedWriter}), leaving out the frames rejected by a
+ * {@link FrameReducer}. Status changes, the end of the frames and errors are
+ * passed on to the listener given to {@link #open(FrameSource.Listener)},
+ * and so are the recorded frames, after they have been handed on.
+ * <br />Recordings in memory are saved by a {@link SaveTask}, which can run
+ * on another thread. Saves made while recording are snapshots, which only
+ * append the new frames to the file of the previous snapshot of the same
+ * recording. The first save after the recording has stopped completes the
+ * latest snapshot, if there is one.
+ * <br />Recordings in memory are also written to a {@link CaptureJournal},
+ * which is deleted once the recording has been saved or discarded (by
+ * starting a new one or closing the recorder). Journals left behind by a
+ * recorder that died are turned back into recordings by
+ * {@link #recoverJournals(RecordingFormat)}.
+ * <br />While the recorder is open, its counters are sampled by a
+ * {@link RecorderMetrics}, which shows them over JMX and can append them to
+ * a file.
+ * <br />The name of a new file or session is reserved (by creating the file
+ * or manifest) as soon as it is chosen, with a number added if a file from
+ * the same second already exists.
+ * <br />The recorder is controlled from a single thread (e.g. the Swing
+ * thread). Methods that throw <code>IOException</code> leave reporting the
+ * error to the caller.
+ * @author Komposten (aka Jakob Hjelm)
+ */
+class Recorder
+{
+  /** The directory recordings are saved to unless another one is given. */
+  public static final String DEFAULT_DIRECTORY = "data";
+  /** The size after which a new segment of a streamed session is started, unless changed. */
+  public static final long   DEFAULT_SEGMENT_BYTES   = 64 * 1024 * 1024;
+  /** The duration after which a new segment of a streamed session is started, unless changed. */
+  public static final double DEFAULT_SEGMENT_SECONDS = 300;
+  /** The longest time between forcing the journal to the disk, unless changed. */
+  public static final long   DEFAULT_JOURNAL_SYNC_MILLIS = 1000;
+  /** The memory a recording may use before it is spilled to a temporary file, unless changed. */
+  public static final long   DEFAULT_MEMORY_BUDGET       = 256 * 1024 * 1024;
+  
+  private FrameSource          source_;
+  private File                 directory_;
+  private FrameSource.Listener listener_;
+  private RecordingPipeline    pipeline_;
+  private RecorderMetrics      metrics_;
+  private RecordedFrames       frameStore_;
+  private FrameSink            streamWriter_;
+  private CaptureJournal       journal_;
+  /** If a save has been created for the recording of {@link #journal_}, which then deletes the journal. */
+  private boolean              journalSaved_;
+  /** The latest snapshot of the current or latest recording, while its file is open. */
+  private SaveTask             snapshot_;
+  private File                 streamFile_;
+  /** The profile of the current or latest recording. */
+  private CaptureProfile       profile_ = CaptureProfile.FULL;
+  
+  private String  errors_         = "";
+  private long    segmentBytes_   = DEFAULT_SEGMENT_BYTES;
+  private double  segmentSeconds_ = DEFAULT_SEGMENT_SECONDS;
+  private long    journalSync_    = DEFAULT_JOURNAL_SYNC_MILLIS;
+  private long    memoryBudget_   = DEFAULT_MEMORY_BUDGET;
+  private double  maxFps_;
+  private boolean dropEmpty_;
+  private float   motionThreshold_;
+  private float   speedThreshold_;
+  private long    metricsPeriod_  = RecorderMetrics.DEFAULT_PERIOD_MILLIS;
+  private File    metricsFile_;
+  
+  private volatile long            frameLimit_;
+  private volatile boolean         limitReached_;
+  private volatile FrameReducer    reducer_ = new FrameReducer(0, false, 0, 0);
+  private volatile SegmentedWriter latestSession_;
+  private volatile SaveTask        latestSave_;
+  
+  
+  
+  /**
+   * @param directory The directory to save the recordings in. It is created
+   *          when the first recording is saved.
+   */
+  public Recorder(FrameSource source, File directory)
+  {
+    source_     = source;
+    directory_  = directory;
+    pipeline_   = new RecordingPipeline();
+    frameStore_ = new FrameStore();
+    metrics_    = new RecorderMetrics(this, pipeline_);
+  }
+  
+  
+  
+  /**
+   * Opens the source and starts passing its events on to
+   * <code>listener</code>, and starts sampling the metrics.
+   */
+  public void open(FrameSource.Listener listener)
+  {
+    listener_ = listener;
+    metrics_.start(metricsPeriod_, metricsFile_);
+    source_.open(sourceListener_);
+  }
+  
+  
+  
+  /**
+   * Stops the current recording, if there is one, and starts a new one.
+   * @param streamFormat The format to stream the frames to a new session in,
+   *          or <code>null</code> to keep them in memory.
+   * @throws IOException If the session or journal could not be created. No
+   *           recording is started then.
+   */
+  public void start(CaptureProfile profile, RecordingFormat streamFormat) throws IOException
+  {
+    stop();
+    discardJournal();
+    finishSnapshot();
+    frameStore_.release();
+    frameStore_    = (memoryBudget_ > 0 ? new SlabFrameStore(memoryBudget_) : new FrameStore());
+    profile_       = profile;
+    streamFile_    = null;
+    latestSession_ = null;
+    errors_        = "";
+    limitReached_  = false;
+    reducer_       = new FrameReducer(maxFps_, dropEmpty_, motionThreshold_, speedThreshold_);
+    
+    pipeline_.setReducer(reducer_);
+    
+    if (streamFormat != null)
+    {
+      File file = createDataFile(SegmentedWriter.MANIFEST_EXTENSION);
+      
+      SegmentedWriter writer = new SegmentedWriter(file, streamFormat, profile_, segmentBytes_, segmentSeconds_, reducer_);
+      
+      streamWriter_  = writer;
+      streamFile_    = file;
+      latestSession_ = writer;
+      pipeline_.start(writer);
+    }
+    else if (journalSync_ >= 0)
+    {
+      journal_ = new CaptureJournal(createDataFile(CaptureJournal.EXTENSION), profile_, journalSync_);
+      pipeline_.start(frameStore_, journal_);
+    }
+    else
+    {
+      pipeline_.start(frameStore_);
+    }
+    
+    source_.start(profile_);
+  }
+  
+  
+  
+  /**
+   * Stops the current recording, if there is one, after all captured frames
+   * have been written to the memory or the stream session (which is closed).
+   * @return The number of frames recorded.
+   * @throws IOException If writing the frames failed.
+   */
+  public long stop() throws IOException
+  {
+    FrameSink writer = streamWriter_;
+    
+    streamWriter_ = null;
+    source_.stop();
+    
+    long frames = pipeline_.stop();
+    if (writer != null)
+      errors_ = describeErrors(writer);
+    return frames;
+  }
+  
+  
+  
+  /**
+   * Stops the current recording (without reporting errors) and closes the
+   * source. The journal of an unsaved recording is deleted.
+   */
+  public void close() throws IOException
+  {
+    try
+    {
+      stop();
+      discardJournal();
+      finishSnapshot();
+      frameStore_.release();
+      frameStore_ = new FrameStore();
+    }
+    finally
+    {
+      source_.close();
+      pipeline_.shutdown();
+      metrics_.stop();
+    }
+  }
+  
+  
+  
+  /** @return <code>true</code> if a recording is in progress. */
+  public boolean isCapturing()
+  {
+    return pipeline_.isCapturing();
+  }
+  
+  
+  
+  /**
+   * Sets the number of frames after which the recording stops taking frames,
+   * and {@link FrameSource.Listener#onEnd()} is called on the listener. The
+   * recording still has to be stopped.
+   * @param frames The limit, or 0 for no limit.
+   */
+  public void setFrameLimit(long frames)
+  {
+    frameLimit_ = frames;
+  }
+  
+  
+  
+  /**
+   * Sets when a new segment is started while streaming. Applies from the
+   * next recording.
+   * @param bytes The size of a segment, or 0 for no limit.
+   * @param seconds The duration of a segment, or 0 for no limit.
+   */
+  public void setSegmentLimits(long bytes, double seconds)
+  {
+    segmentBytes_   = bytes;
+    segmentSeconds_ = seconds;
+  }
+  
+  
+  
+  /**
+   * Sets the longest time between forcing the journal to the disk. Applies
+   * from the next recording.
+   * @param millis The time, 0 to force it whenever frames are written, or -1
+   *          to not write a journal.
+   */
+  public void setJournalSync(long millis)
+  {
+    journalSync_ = millis;
+  }
+  
+  
+  
+  /**
+   * Sets which frames are left out of the recording (see
+   * {@link FrameReducer}). Applies from the next recording.
+   * @param maxFps The highest frame rate to record, or 0 for no limit.
+   * @param dropEmpty If frames without hands should be left out.
+   * @param motionThreshold The distance in millimetres that a palm or tip
+   *          must move for a frame to be kept, or 0 to keep still frames.
+   * @param speedThreshold The palm or tip speed in millimetres per second
+   *          above which a frame is always kept, or 0 for none.
+   */
+  public void setReduction(double maxFps, boolean dropEmpty, float motionThreshold, float speedThreshold)
+  {
+    maxFps_          = maxFps;
+    dropEmpty_       = dropEmpty;
+    motionThreshold_ = motionThreshold;
+    speedThreshold_  = speedThreshold;
+  }
+  
+  
+  
+  /** Sets what happens to new frames when they can not be written as fast as they arrive. Applies at once. */
+  public void setOverloadPolicy(OverloadPolicy policy)
+  {
+    pipeline_.setOverloadPolicy(policy);
+  }
+  
+  
+  
+  /**
+   * Sets how much memory a recording may use. Beyond that, the oldest frames
+   * are moved to a temporary file. Applies from the next recording.
+   * @param bytes The budget, or 0 to keep the recording on the Java heap (in
+   *          a {@link FrameStore}) without a limit.
+   */
+  public void setMemoryBudget(long bytes)
+  {
+    memoryBudget_ = bytes;
+  }
+  
+  
+  
+  /**
+   * Sets how often the metrics are sampled, and the file each sample is
+   * appended to (as a line of JSON). Applies when the recorder is opened.
+   * @param periodMillis The time between samples.
+   * @param dumpFile The file, or <code>null</code> to only show the metrics
+   *          over JMX.
+   */
+  public void setMetrics(long periodMillis, File dumpFile)
+  {
+    metricsPeriod_ = periodMillis;
+    metricsFile_   = dumpFile;
+  }
+  
+  
+  
+  /**
+   * Prepares a save of the recording in memory. The task keeps the
+   * recording, so a new one can be started while it runs.
+   * <br />While recording, the save is a snapshot of the frames so far. The
+   * first snapshot (and any with another format) gets a new file, later ones
+   * are appended to it. Once the recording has stopped, the save completes
+   * the latest snapshot if it has the same format, or else saves to a new
+   * file, and deletes the journal of the recording once it has been saved.
+   * <br />Only one save of a recording may run at a time.
+   * @param excludeBones If the bones should be left out.
+   * @throws IOException If the file could not be created.
+   */
+  public SaveTask createSave(RecordingFormat format, boolean excludeBones) throws IOException
+  {
+    SaveTask task = snapshot_;
+    
+    if (task != null && (task.getFormat() != format || task.excludesBones() != excludeBones))
+    {
+      finishSnapshot();
+      task = null;
+    }
+    
+    if (task == null)
+      task = new SaveTask(frameStore_, profile_, format, excludeBones, createDataFile(format.getExtension()));
+    
+    if (isCapturing())
+    {
+      task.setSnapshot(true);
+      snapshot_ = task;
+    }
+    else
+    {
+      task.setSnapshot(false);
+      snapshot_ = null;
+      
+      if (journal_ != null)
+      {
+        task.setJournal(journal_.getFile());
+        journalSaved_ = true;
+      }
+    }
+    
+    latestSave_ = task;
+    return task;
+  }
+  
+  
+  
+  /**
+   * Turns the journals left in the directory by a recorder that died into
+   * recordings (named like the journal, with " (recovered)" added) and
+   * deletes them. Journals that are in use are skipped.
+   * @return The recovered recordings.
+   * @throws IOException If a journal could not be recovered. It is kept, and
+   *           the remaining journals are not recovered.
+   */
+  public List<File> recoverJournals(RecordingFormat format) throws IOException
+  {
+    List<File> recovered = new ArrayList<File>();
+    
+    for (File journal : CaptureJournal.find(directory_))
+    {
+      String name   = journal.getName();
+      File   output = createFile(name.substring(0, name.lastIndexOf('.')) + " (recovered)", format.getExtension());
+      long   frames = CaptureJournal.recover(journal, format, output);
+      
+      if (frames > 0)
+        recovered.add(output);
+      else
+        output.delete();
+      
+      if (frames >= 0)
+        journal.delete();
+    }
+    
+    return recovered;
+  }
+  
+  
+  
+  /** Closes the file of the latest snapshot, if it is still open. */
+  private void finishSnapshot()
+  {
+    if (snapshot_ != null)
+      snapshot_.finish();
+    snapshot_ = null;
+  }
+  
+  
+  
+  /** Deletes the journal of the latest recording, unless a save has been created for it. */
+  private void discardJournal()
+  {
+    if (journal_ != null && !journalSaved_)
+      journal_.getFile().delete();
+    
+    journal_      = null;
+    journalSaved_ = false;
+  }
+  
+  
+  
+  /** @return The largest quantisation errors of a delta-encoded writer, on a new line, or an empty string for other writers. */
+  static String describeErrors(FrameSink writer)
+  {
+    if (writer instanceof LrecWriter && ((LrecWriter) writer).getDeltaCodec() != null)
+      return "\n" + ((LrecWriter) writer).getDeltaCodec().describeErrors();
+    if (writer instanceof SegmentedWriter && ((SegmentedWriter) writer).getDeltaCodec() != null)
+      return "\n" + ((SegmentedWriter) writer).getDeltaCodec().describeErrors();
+    return "";
+  }
+  
+  
+  
+  /**
+   * Creates a new, empty file named after the current time, with a number
+   * added if that name is taken.
+   * @throws IOException If the file could not be created.
+   */
+  private File createDataFile(String extension) throws IOException
+  {
+    Calendar c = Calendar.getInstance();
+    
+    c.setTime(new Date(System.currentTimeMillis()));
+    
+    String time = c.get(Calendar.YEAR) + "-" + c.get(Calendar.MONTH) + "-" +
+            c.get(Calendar.DATE) + " " + c.get(Calendar.HOUR_OF_DAY) + "." +
+            c.get(Calendar.MINUTE) + "." + c.get(Calendar.SECOND);
+    
+    return createFile("leapdata" + time, extension);
+  }
+  
+  
+  
+  /**
+   * Creates a new, empty file in the directory, with a number added to the
+   * name if it is taken.
+   * @throws IOException If the file could not be created.
+   */
+  private File createFile(String name, String extension) throws IOException
+  {
+    directory_.mkdirs();
+    
+    for (int number = 1; ; number++)
+    {
+      File file = new File(directory_, name + (number > 1 ? " (" + number + ")" : "") + "." + extension);
+      
+      if (file.createNewFile())
+        return file;
+    }
+  }
+  
+  
+  
+  /** @return The directory the recordings are saved in. */
+  public File getDirectory()
+  {
+    return directory_;
+  }
+  
+  
+  
+  /** @return The profile of the current or latest recording. */
+  public CaptureProfile getProfile()
+  {
+    return profile_;
+  }
+  
+  
+  
+  /**
+   * @return The manifest of the session the current or latest recording was
+   *         streamed to, or <code>null</code> if it was kept in memory.
+   */
+  public File getStreamFile()
+  {
+    return streamFile_;
+  }
+  
+  
+  
+  /**
+   * @return The largest quantisation errors of the latest stream file, if it
+   *         was delta-encoded, on a new line, or an empty string.
+   */
+  public String getErrors()
+  {
+    return errors_;
+  }
+  
+  
+  
+  /** @return The recording in memory. It is empty while streaming. */
+  public RecordedFrames getFrameStore()
+  {
+    return frameStore_;
+  }
+  
+  
+  
+  /** @return The reducer of the current or latest recording. May be called from any thread. */
+  public FrameReducer getReducer()
+  {
+    return reducer_;
+  }
+  
+  
+  
+  /**
+   * @return The writer of the session the current or latest recording was
+   *         streamed to, or <code>null</code>. May be called from any thread.
+   */
+  public SegmentedWriter getLatestSession()
+  {
+    return latestSession_;
+  }
+  
+  
+  
+  /** @return The latest save that was created, or <code>null</code>. May be called from any thread. */
+  public SaveTask getLatestSave()
+  {
+    return latestSave_;
+  }
+  
+  
+  
+  /** @return The metrics of the recorder. */
+  public RecorderMetrics getMetrics()
+  {
+    return metrics_;
+  }
+  
+  
+  
+  /** @return The number of frames accepted since the recording started. */
+  public long getFramesCaptured()
+  {
+    return pipeline_.getFramesCaptured();
+  }
+  
+  
+  
+  /** @return The number of frames dropped since the recording started. */
+  public long getFramesDropped()
+  {
+    return pipeline_.getFramesDropped();
+  }
+  
+  
+  
+  /**
+   * @return A line with the frames delivered, captured, dropped and
+   *         decimated since the recording started, and lines with the
+   *         frames missing from the frame ids and the frames left out by
+   *         the {@link FrameReducer}, if any.
+   */
+  public String describeFrames()
+  {
+    String text = "Delivered: " + pipeline_.getFramesDelivered() + ", captured: " + pipeline_.getFramesCaptured()
+        + ", dropped: " + pipeline_.getFramesDropped() + ", decimated: " + pipeline_.getFramesDecimated();
+    
+    if (pipeline_.getGapCount() > 0)
+      text += "\nMissing: " + pipeline_.getFramesMissing() + " frames in " + pipeline_.getGapCount() + " gaps in the frame ids";
+    if (reducer_.isActive())
+      text += "\n" + reducer_.describe();
+    
+    return text;
+  }
+  
+  
+  
+  /** See {@link FrameSource#describeCost()}. */
+  public String describeCost()
+  {
+    return source_.describeCost();
+  }
+  
+  
+  
+  private FrameSource.Listener sourceListener_ = new FrameSource.Listener()
+  {
+    @Override
+    public void onStatus(String message)
+    {
+      listener_.onStatus(message);
+    }
+    
+    @Override
+    public void onFrame(FrameData frame)
+    {
+      if (!pipeline_.isCapturing() || limitReached_)
+        return;
+      
+      pipeline_.publish(frame);
+      listener_.onFrame(frame);
+      
+      if (frameLimit_ > 0 && pipeline_.getFramesCaptured() >= frameLimit_)
+      {
+        limitReached_ = true;
+        listener_.onEnd();
+      }
+    }
+    
+    @Override
+    public void onEnd()
+    {
+      listener_.onEnd();
+    }
+    
+    @Override
+    public void onError(Exception e)
+    {
+      listener_.onError(e);
+    }
+  };
+}
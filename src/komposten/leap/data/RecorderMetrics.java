@@ -0,0 +1,558 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import komposten.utilities.tools.LogUtils;
+import komposten.utilities.tools.Logger;
+
+import com.google.gson.Gson;
+
+/**
+ * Samples the counters of a {@link Recorder} and its
+ * {@link RecordingPipeline} on a timer thread, and shows the latest sample
+ * as an MBean (named {@value #OBJECT_NAME}) and, if a dump file is given,
+ * appends it to that file as a line of JSON.
+ * <br />The capture and recording threads only update counters and
+ * {@link LatencyHistogram}s, which neither lock nor allocate. Everything
+ * else (rates, percentiles, allocations per frame, file sizes) is worked out
+ * here, once per sample period. The allocations are read from the JVM's
+ * per-thread allocation counters, where the JVM has them.
+ * @author Komposten (aka Jakob Hjelm)
+ */
+class RecorderMetrics implements RecorderMetricsMBean
+{
+  /** The name the MBean is registered under. */
+  public static final String OBJECT_NAME           = "komposten.leap.data:type=Recorder";
+  /** The time between samples, unless another one is given. */
+  public static final long   DEFAULT_PERIOD_MILLIS = 1000;
+  
+  private static final Gson GSON = new Gson();
+  
+  private Recorder          recorder_;
+  private RecordingPipeline pipeline_;
+  private ThreadMXBean      threads_;
+  private Timer             timer_;
+  private ObjectName        name_;
+  private File              dumpFile_;
+  private Writer            dump_;
+  
+  /** The counters of the previous sample, only used while sampling. */
+  private long       lastNanos_;
+  private long       lastDelivered_;
+  private long       lastCaptured_;
+  private Allocation captureAllocation_   = new Allocation();
+  private Allocation recordingAllocation_ = new Allocation();
+  
+  private volatile Sample sample_ = new Sample();
+  
+  
+  
+  public RecorderMetrics(Recorder recorder, RecordingPipeline pipeline)
+  {
+    recorder_ = recorder;
+    pipeline_ = pipeline;
+    threads_  = ManagementFactory.getThreadMXBean();
+  }
+  
+  
+  
+  /**
+   * Registers the MBean and starts sampling.
+   * @param periodMillis The time between samples.
+   * @param dumpFile The file to append each sample to, or <code>null</code>.
+   */
+  public synchronized void start(long periodMillis, File dumpFile)
+  {
+    stop();
+    
+    try
+    {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      
+      name_ = new ObjectName(OBJECT_NAME);
+      server.registerMBean(this, name_);
+    }
+    catch (JMException e)
+    {
+      // E.g. if another recorder in the same JVM got there first.
+      name_ = null;
+      LogUtils.log("ERROR", "RecorderMetrics", "Could not register the MBean " + OBJECT_NAME + "!", e, false);
+    }
+    
+    if (dumpFile != null)
+    {
+      if (dumpFile.getAbsoluteFile().getParentFile() != null)
+        dumpFile.getAbsoluteFile().getParentFile().mkdirs();
+      
+      try
+      {
+        dump_     = new OutputStreamWriter(new FileOutputStream(dumpFile, true), "UTF-8");
+        dumpFile_ = dumpFile;
+      }
+      catch (IOException e)
+      {
+        LogUtils.log(Logger.WRITEERROR, "RecorderMetrics", "Could not open the metrics file: " + dumpFile, e, false);
+      }
+    }
+    
+    lastNanos_ = System.nanoTime();
+    timer_     = new Timer("RecorderMetrics", true);
+    timer_.scheduleAtFixedRate(new TimerTask()
+    {
+      @Override
+      public void run()
+      {
+        sample();
+      }
+    }, periodMillis, periodMillis);
+  }
+  
+  
+  
+  /**
+   * Stops sampling, after a last sample, and unregisters the MBean. Does
+   * nothing if the metrics have not been started.
+   */
+  public synchronized void stop()
+  {
+    if (timer_ == null)
+      return;
+    
+    timer_.cancel();
+    timer_ = null;
+    sample();
+    
+    closeDump();
+    
+    if (name_ != null)
+    {
+      try
+      {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(name_);
+      }
+      catch (JMException e)
+      {
+        LogUtils.log("ERROR", "RecorderMetrics", "Could not unregister the MBean " + OBJECT_NAME + "!", e, false);
+      }
+      name_ = null;
+    }
+  }
+  
+  
+  
+  /** Takes a new sample and appends it to the dump file, if there is one. */
+  public synchronized void sample()
+  {
+    Sample           sample  = new Sample();
+    long             nanos   = System.nanoTime();
+    double           seconds = (nanos - lastNanos_) / 1e9;
+    LatencyHistogram capture = pipeline_.getCaptureLatency();
+    LatencyHistogram write   = pipeline_.getWriteLatency();
+    FrameReducer     reducer = recorder_.getReducer();
+    SegmentedWriter  session = recorder_.getLatestSession();
+    SaveTask         save    = recorder_.getLatestSave();
+    
+    sample.time            = System.currentTimeMillis();
+    sample.capturing       = pipeline_.isCapturing();
+    sample.framesDelivered = pipeline_.getFramesDelivered();
+    sample.framesCaptured  = pipeline_.getFramesCaptured();
+    sample.framesDropped   = pipeline_.getFramesDropped();
+    sample.framesDecimated = pipeline_.getFramesDecimated();
+    sample.framesMissing   = pipeline_.getFramesMissing();
+    sample.framesSkipped   = reducer.getSkippedByRate() + reducer.getSkippedEmpty() + reducer.getSkippedStill();
+    sample.queueSize       = pipeline_.getQueueSize();
+    sample.maxQueueSize    = pipeline_.getMaxQueueSize();
+    sample.queueCapacity   = pipeline_.getQueueCapacity();
+    
+    // The counters start over with each recording.
+    if (sample.framesDelivered < lastDelivered_)
+    {
+      lastDelivered_ = 0;
+      lastCaptured_  = 0;
+    }
+    
+    if (seconds > 0)
+    {
+      sample.deliveryRate = (sample.framesDelivered - lastDelivered_) / seconds;
+      sample.captureRate  = Math.max(0, sample.framesCaptured - lastCaptured_) / seconds;
+    }
+    
+    sample.captureLatencyMedian = capture.getPercentile(50) / 1000.0;
+    sample.captureLatency99     = capture.getPercentile(99) / 1000.0;
+    sample.captureLatencyMax    = capture.getMax() / 1000.0;
+    sample.writeLatencyMedian   = write.getPercentile(50) / 1000.0;
+    sample.writeLatency99       = write.getPercentile(99) / 1000.0;
+    sample.writeLatencyMax      = write.getMax() / 1000.0;
+    
+    sample.captureBytesPerFrame   = captureAllocation_.update(threads_, pipeline_.getCaptureThreadId(), sample.framesDelivered);
+    sample.recordingBytesPerFrame = recordingAllocation_.update(threads_, pipeline_.getRecordingThreadId(), write.getCount());
+    
+    sample.memoryUsage        = recorder_.getFrameStore().memoryUsage();
+    sample.streamBytesWritten = (session != null ? session.getBytesWritten() : 0);
+    
+    if (save != null)
+    {
+      sample.saving                 = save.isRunning();
+      sample.saveBytesWritten       = save.getBytesWritten();
+      sample.saveFramesWritten      = save.getFramesWritten();
+      sample.saveSeconds            = save.getSeconds();
+      sample.saveMegabytesPerSecond = save.getMegabytesPerSecond();
+    }
+    
+    lastNanos_     = nanos;
+    lastDelivered_ = sample.framesDelivered;
+    lastCaptured_  = sample.framesCaptured;
+    sample_        = sample;
+    
+    if (dump_ != null)
+    {
+      try
+      {
+        dump_.write(GSON.toJson(sample));
+        dump_.write('\n');
+        dump_.flush();
+      }
+      catch (IOException e)
+      {
+        LogUtils.log(Logger.WRITEERROR, "RecorderMetrics", "Could not write to the metrics file: " + dumpFile_, e, false);
+        closeDump();
+      }
+    }
+  }
+  
+  
+  
+  private void closeDump()
+  {
+    if (dump_ == null)
+      return;
+    
+    try
+    {
+      dump_.close();
+    }
+    catch (IOException e)
+    {
+      LogUtils.log(Logger.WRITEERROR, "RecorderMetrics", "Could not close the metrics file: " + dumpFile_, e, false);
+    }
+    
+    dump_ = null;
+  }
+  
+  
+  
+  @Override
+  public long getSampleTime()
+  {
+    return sample_.time;
+  }
+  
+  
+  
+  @Override
+  public boolean isCapturing()
+  {
+    return sample_.capturing;
+  }
+  
+  
+  
+  @Override
+  public long getFramesDelivered()
+  {
+    return sample_.framesDelivered;
+  }
+  
+  
+  
+  @Override
+  public long getFramesCaptured()
+  {
+    return sample_.framesCaptured;
+  }
+  
+  
+  
+  @Override
+  public long getFramesDropped()
+  {
+    return sample_.framesDropped;
+  }
+  
+  
+  
+  @Override
+  public long getFramesDecimated()
+  {
+    return sample_.framesDecimated;
+  }
+  
+  
+  
+  @Override
+  public long getFramesMissing()
+  {
+    return sample_.framesMissing;
+  }
+  
+  
+  
+  @Override
+  public long getFramesSkipped()
+  {
+    return sample_.framesSkipped;
+  }
+  
+  
+  
+  @Override
+  public double getDeliveryRate()
+  {
+    return sample_.deliveryRate;
+  }
+  
+  
+  
+  @Override
+  public double getCaptureRate()
+  {
+    return sample_.captureRate;
+  }
+  
+  
+  
+  @Override
+  public int getQueueSize()
+  {
+    return sample_.queueSize;
+  }
+  
+  
+  
+  @Override
+  public int getMaxQueueSize()
+  {
+    return sample_.maxQueueSize;
+  }
+  
+  
+  
+  @Override
+  public int getQueueCapacity()
+  {
+    return sample_.queueCapacity;
+  }
+  
+  
+  
+  @Override
+  public double getCaptureLatencyMedian()
+  {
+    return sample_.captureLatencyMedian;
+  }
+  
+  
+  
+  @Override
+  public double getCaptureLatency99()
+  {
+    return sample_.captureLatency99;
+  }
+  
+  
+  
+  @Override
+  public double getCaptureLatencyMax()
+  {
+    return sample_.captureLatencyMax;
+  }
+  
+  
+  
+  @Override
+  public double getWriteLatencyMedian()
+  {
+    return sample_.writeLatencyMedian;
+  }
+  
+  
+  
+  @Override
+  public double getWriteLatency99()
+  {
+    return sample_.writeLatency99;
+  }
+  
+  
+  
+  @Override
+  public double getWriteLatencyMax()
+  {
+    return sample_.writeLatencyMax;
+  }
+  
+  
+  
+  @Override
+  public long getCaptureBytesPerFrame()
+  {
+    return sample_.captureBytesPerFrame;
+  }
+  
+  
+  
+  @Override
+  public long getRecordingBytesPerFrame()
+  {
+    return sample_.recordingBytesPerFrame;
+  }
+  
+  
+  
+  @Override
+  public long getMemoryUsage()
+  {
+    return sample_.memoryUsage;
+  }
+  
+  
+  
+  @Override
+  public long getStreamBytesWritten()
+  {
+    return sample_.streamBytesWritten;
+  }
+  
+  
+  
+  @Override
+  public boolean isSaving()
+  {
+    return sample_.saving;
+  }
+  
+  
+  
+  @Override
+  public long getSaveBytesWritten()
+  {
+    return sample_.saveBytesWritten;
+  }
+  
+  
+  
+  @Override
+  public int getSaveFramesWritten()
+  {
+    return sample_.saveFramesWritten;
+  }
+  
+  
+  
+  @Override
+  public double getSaveSeconds()
+  {
+    return sample_.saveSeconds;
+  }
+  
+  
+  
+  @Override
+  public double getSaveMegabytesPerSecond()
+  {
+    return sample_.saveMegabytesPerSecond;
+  }
+  
+  
+  
+  /**
+   * The bytes allocated by one thread per frame, between two samples. Starts
+   * over if the thread changes or its frame counter goes back.
+   */
+  private static class Allocation
+  {
+    private long thread_;
+    private long bytes_    = -1;
+    private long frames_;
+    private long perFrame_ = -1;
+    
+    
+    
+    /** @return The bytes allocated per frame since the previous call, or the previous result if no frames have passed. */
+    public long update(ThreadMXBean threads, long thread, long frames)
+    {
+      long bytes = -1;
+      
+      if (thread != 0 && threads instanceof com.sun.management.ThreadMXBean)
+        bytes = ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(thread);
+      
+      if (bytes < 0 || thread != thread_ || frames < frames_ || bytes_ < 0)
+      {
+        perFrame_ = -1;
+      }
+      else if (frames > frames_)
+      {
+        perFrame_ = (bytes - bytes_) / (frames - frames_);
+      }
+      else
+      {
+        return perFrame_;
+      }
+      
+      thread_ = thread;
+      bytes_  = bytes;
+      frames_ = frames;
+      return perFrame_;
+    }
+  }
+  
+  
+  
+  /** One sample, as written to the dump file by Gson. */
+  private static class Sample
+  {
+    long    time;
+    boolean capturing;
+    long    framesDelivered;
+    long    framesCaptured;
+    long    framesDropped;
+    long    framesDecimated;
+    long    framesMissing;
+    long    framesSkipped;
+    double  deliveryRate;
+    double  captureRate;
+    int     queueSize;
+    int     maxQueueSize;
+    int     queueCapacity;
+    double  captureLatencyMedian;
+    double  captureLatency99;
+    double  captureLatencyMax;
+    double  writeLatencyMedian;
+    double  writeLatency99;
+    double  writeLatencyMax;
+    long    captureBytesPerFrame   = -1;
+    long    recordingBytesPerFrame = -1;
+    long    memoryUsage;
+    long    streamBytesWritten;
+    boolean saving;
+    long    saveBytesWritten;
+    int     saveFramesWritten;
+    double  saveSeconds;
+    double  saveMegabytesPerSecond;
+  }
+}
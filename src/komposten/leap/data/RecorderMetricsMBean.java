@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+/**
+ * The attributes of a {@link Recorder} shown over JMX (e.g. in JConsole or
+ * VisualVM), as sampled by {@link RecorderMetrics}. The frame counters and
+ * latencies are those of the current or latest recording, the rates and
+ * allocations those of the latest sample period.
+ * <br />Public, since JMX only accepts public MBean interfaces.
+ * @author Komposten (aka Jakob Hjelm)
+ */
+public interface RecorderMetricsMBean
+{
+  /** @return The time of the sample, in milliseconds since the epoch. */
+  long getSampleTime();
+  
+  boolean isCapturing();
+  
+  long getFramesDelivered();
+  
+  long getFramesCaptured();
+  
+  long getFramesDropped();
+  
+  long getFramesDecimated();
+  
+  long getFramesMissing();
+  
+  /** @return The frames left out by the {@link FrameReducer}. */
+  long getFramesSkipped();
+  
+  /** @return The frames delivered by the source per second. */
+  double getDeliveryRate();
+  
+  /** @return The frames captured per second. */
+  double getCaptureRate();
+  
+  int getQueueSize();
+  
+  int getMaxQueueSize();
+  
+  int getQueueCapacity();
+  
+  /** @return The median time from the arrival of a frame until the capture thread is done with it, in microseconds. */
+  double getCaptureLatencyMedian();
+  
+  double getCaptureLatency99();
+  
+  double getCaptureLatencyMax();
+  
+  /** @return The median time from the arrival of a frame until it has been written, in microseconds. */
+  double getWriteLatencyMedian();
+  
+  double getWriteLatency99();
+  
+  double getWriteLatencyMax();
+  
+  /** @return The bytes allocated by the capture thread per frame delivered, or -1 if not known. */
+  long getCaptureBytesPerFrame();
+  
+  /** @return The bytes allocated by the recording thread per frame written, or -1 if not known. */
+  long getRecordingBytesPerFrame();
+  
+  /** @return The memory used by the recording in memory. */
+  long getMemoryUsage();
+  
+  /** @return The bytes written to the current or latest streamed session. */
+  long getStreamBytesWritten();
+  
+  boolean isSaving();
+  
+  /** @return The bytes written by the current or latest save. */
+  long getSaveBytesWritten();
+  
+  int getSaveFramesWritten();
+  
+  /** @return The time the current or latest save has taken, in seconds. */
+  double getSaveSeconds();
+  
+  /** @return The write speed of the current or latest save, in megabytes per second. */
+  double getSaveMegabytesPerSecond();
+}
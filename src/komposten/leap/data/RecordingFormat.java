@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The file formats recordings can be saved in.
+ * @author Komposten (aka Jakob Hjelm)
+ */
+enum RecordingFormat
+{
+  /** The original JSON format, written through Gson. */
+  JSON("json", "JSON"),
+  /** The binary format described in {@link LrecFormat}. */
+  LREC(LrecFormat.EXTENSION, "Binary (." + LrecFormat.EXTENSION + ")"),
+  /**
+   * The binary format with delta-encoded frames, quantised as set by
+   * {@link DeltaConfig#DEFAULT}, and bases packed as quaternions. Read the
+   * same way as {@link #LREC}.
+   */
+  LREC_COMPACT(LrecFormat.EXTENSION, "Compact (." + LrecFormat.EXTENSION + ")");
+  
+  private String extension_;
+  private String label_;
+  
+  
+  
+  private RecordingFormat(String extension, String label)
+  {
+    extension_ = extension;
+    label_     = label;
+  }
+  
+  
+  
+  /** @return The file extension, without the dot. */
+  public String getExtension()
+  {
+    return extension_;
+  }
+  
+  
+  
+  /**
+   * Creates a file in this format and returns a sink that writes frames to
+   * it.
+   * @param profile The parts of the frames to write. Binary files leave out
+   *          the space for bones and bases that are not in the profile.
+   * @throws IOException If the file could not be created or opened.
+   */
+  public FrameSink createWriter(File file, CaptureProfile profile) throws IOException
+  {
+    switch (this)
+    {
+      case LREC :
+        return new LrecWriter(file, binaryFlags(profile));
+      case LREC_COMPACT :
+        return new LrecWriter(file, binaryFlags(profile) | LrecFormat.FLAG_QUATERNIONS, DeltaConfig.DEFAULT);
+      default :
+        return new FrameStreamWriter(file, !profile.captures(CaptureProfile.BONES));
+    }
+  }
+  
+  
+  
+  private static int binaryFlags(CaptureProfile profile)
+  {
+    return LrecFormat.FLAG_BONE_DICTIONARY | LrecFormat.profileFlags(profile);
+  }
+  
+  
+  
+  /**
+   * Opens a file in this format for reading its frames in order.
+   * @throws IOException If the file could not be opened or is not in this
+   *           format.
+   */
+  public FrameReader createReader(File file) throws IOException
+  {
+    switch (this)
+    {
+      case LREC :
+      case LREC_COMPACT :
+        return new LrecReader(file);
+      default :
+        return new JsonFrameReader(file);
+    }
+  }
+  
+  
+  
+  /**
+   * @return The format with the given file extension, or <code>null</code>.
+   *         Binary files are always reported as {@link #LREC}.
+   */
+  public static RecordingFormat forFile(File file)
+  {
+    String name = file.getName();
+    
+    for (RecordingFormat format : values())
+    {
+      if (name.endsWith("." + format.extension_))
+        return format;
+    }
+    
+    return null;
+  }
+  
+  
+  
+  /**
+   * @return The format with the given name (case-insensitive, e.g.
+   *         "lrec_compact"), or <code>null</code>.
+   */
+  public static RecordingFormat forName(String name)
+  {
+    for (RecordingFormat format : values())
+    {
+      if (format.name().equalsIgnoreCase(name))
+        return format;
+    }
+    
+    return null;
+  }
+  
+  
+  
+  /**
+   * Returns the name shown in the GUI.
+   */
+  @Override
+  public String toString()
+  {
+    return label_;
+  }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import komposten.utilities.tools.LogUtils;
+
+/**
+ * A sparse index over the frames of a recording file. It holds the frame
+ * id, timestamp and byte offset of every <code>interval</code>th frame, so
+ * a frame can be found by binary searching the index and then reading at
+ * most <code>interval - 1</code> frames forward.
+ * <br />The index can be saved next to the recording, and is then only
+ * rebuilt if the recording changes.
+ * @author Komposten (aka Jakob Hjelm)
+ */
+class RecordingIndex
+{
+  public  static final int    DEFAULT_INTERVAL = 64;
+  public  static final String EXTENSION        = "idx";
+  /** The timestamp of entries for recordings without timestamps. */
+  public  static final long   NO_TIMESTAMP     = Long.MIN_VALUE;
+  private static final int    MAGIC            = 0x4C494458;
+  private static final int    VERSION          = 1;
+  
+  private int        interval_;
+  private long       frameCount_;
+  private LongColumn frameIds_;
+  private LongColumn timestamps_;
+  private LongColumn offsets_;
+  
+  
+  
+  /**
+   * @param interval The number of frames between two index entries.
+   */
+  public RecordingIndex(int interval)
+  {
+    interval_   = interval;
+    frameIds_   = new LongColumn();
+    timestamps_ = new LongColumn();
+    offsets_    = new LongColumn();
+  }
+  
+  
+  
+  /**
+   * Adds an entry for the next indexed frame, i.e. frame
+   * <code>size() * interval</code>.
+   */
+  public void add(long frameId, long timestamp, long offset)
+  {
+    frameIds_  .add(frameId);
+    timestamps_.add(timestamp);
+    offsets_   .add(offset);
+  }
+  
+  
+  
+  public void setFrameCount(long frameCount)
+  {
+    frameCount_ = frameCount;
+  }
+  
+  
+  
+  /** @return The total number of frames in the recording. */
+  public long getFrameCount()
+  {
+    return frameCount_;
+  }
+  
+  
+  
+  public int getInterval()
+  {
+    return interval_;
+  }
+  
+  
+  
+  /** @return The number of entries in the index. */
+  public int size()
+  {
+    return offsets_.size();
+  }
+  
+  
+  
+  public long getFrameId(int entry)
+  {
+    return frameIds_.get(entry);
+  }
+  
+  
+  
+  public long getTimestamp(int entry)
+  {
+    return timestamps_.get(entry);
+  }
+  
+  
+  
+  public long getOffset(int entry)
+  {
+    return offsets_.get(entry);
+  }
+  
+  
+  
+  /**
+   * @return The last entry with a frame id less than or equal to
+   *         <code>frameId</code>, or -1 if there is none. Assumes that frame
+   *         ids increase through the recording.
+   */
+  public int findFrameId(long frameId)
+  {
+    return search(frameIds_, frameId);
+  }
+  
+  
+  
+  /**
+   * @return The last entry with a timestamp less than or equal to
+   *         <code>timestamp</code>, or -1 if there is none.
+   */
+  public int findTimestamp(long timestamp)
+  {
+    return search(timestamps_, timestamp);
+  }
+  
+  
+  
+  private int search(LongColumn column, long key)
+  {
+    int low  = 0;
+    int high = column.size() - 1;
+    
+    while (low <= high)
+    {
+      int mid = (low + high) >>> 1;
+      
+      if (column.get(mid) <= key)
+        low = mid + 1;
+      else
+        high = mid - 1;
+    }
+    
+    return high;
+  }
+  
+  
+  
+  /** @return The file an index for <code>recording</code> is saved in. */
+  public static File fileFor(File recording)
+  {
+    return new File(recording.getPath() + "." + EXTENSION);
+  }
+  
+  
+  
+  /**
+   * Saves the index next to <code>recording</code>, together with the size
+   * and modification time of the recording.
+   */
+  public void save(File recording) throws IOException
+  {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileFor(recording))));
+    
+    try
+    {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(recording.length());
+      out.writeLong(recording.lastModified());
+      out.writeInt(interval_);
+      out.writeLong(frameCount_);
+      out.writeInt(size());
+      
+      for (int i = 0; i < size(); i++)
+      {
+        out.writeLong(frameIds_.get(i));
+        out.writeLong(timestamps_.get(i));
+        out.writeLong(offsets_.get(i));
+      }
+    }
+    finally
+    {
+      out.close();
+    }
+  }
+  
+  
+  
+  /**
+   * Loads the index saved next to <code>recording</code>.
+   * @return The index, or <code>null</code> if there is no saved index, or
+   *         if the recording has changed since the index was saved.
+   */
+  public static RecordingIndex load(File recording)
+  {
+    File file = fileFor(recording);
+    
+    if (!file.exists())
+      return null;
+    
+    try
+    {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      
+      try
+      {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION
+            || in.readLong() != recording.length() || in.readLong() != recording.lastModified())
+          return null;
+        
+        RecordingIndex index = new RecordingIndex(in.readInt());
+        
+        index.setFrameCount(in.readLong());
+        
+        int size = in.readInt();
+        for (int i = 0; i < size; i++)
+          index.add(in.readLong(), in.readLong(), in.readLong());
+        
+        return index;
+      }
+      finally
+      {
+        in.close();
+      }
+    }
+    catch (IOException e)
+    {
+      LogUtils.log("ERROR", "RecordingIndex", "Could not read the index " + file + ", it will be rebuilt.", e, true);
+      return null;
+    }
+  }
+}
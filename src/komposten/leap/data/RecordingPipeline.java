@@ -0,0 +1,599 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
+
+import komposten.utilities.tools.LogUtils;
+import komposten.utilities.tools.Logger;
+
+/**
+ * Moves frames from the capture thread to the {@link FrameSink}s of the
+ * current recording.
+ * <br />The capture thread only calls {@link #publish(FrameData)}, which
+ * hands the frame over through a {@link FrameRingBuffer} without locking or
+ * allocating, and without blocking unless the {@link OverloadPolicy} is
+ * {@link OverloadPolicy#BLOCK}. A single recording thread drains the buffer and is
+ * the only thread that ever touches the sinks: it writes the frames, flushes
+ * the sinks whenever it has caught up and closes them when the recording
+ * stops.
+ * <br />{@link #start(FrameSink...)} and {@link #stop()} are called from the
+ * controlling thread (e.g. the Swing thread). Once <code>stop()</code> has
+ * returned, every frame accepted by <code>publish()</code> has been written
+ * and the sinks may safely be read by the controlling thread.
+ * <br />Every frame handed to <code>publish()</code> during a recording is
+ * counted as delivered, and then as either skipped (by the
+ * {@link FrameReducer}, which counts them), captured, dropped (by the
+ * overload policy) or decimated (by {@link OverloadPolicy#ADAPTIVE}), so
+ * that delivered = skipped + captured + dropped + decimated. Frames the source never
+ * delivered are found from gaps in the frame ids, which are assumed to
+ * increase by one per frame; an id that does not increase starts the count
+ * over without a gap. The counters are only written by the capture thread.
+ * <br />The pipeline also measures the time from the arrival of each frame
+ * (see {@link FrameData#receivedNanos}) until <code>publish()</code> is done
+ * with it, and until it has been written to the sinks, in
+ * {@link LatencyHistogram}s, and the largest number of frames waiting.
+ * @author Komposten (aka Jakob Hjelm)
+ */
+class RecordingPipeline
+{
+  public  static final int  DEFAULT_CAPACITY = 1024;
+  private static final long IDLE_PARK_NANOS  = 1000000;
+  private static final long BLOCK_PARK_NANOS = 50000;
+  
+  private FrameRingBuffer ring_;
+  private Thread          thread_;
+  
+  private volatile boolean running_;
+  private volatile boolean capturing_;
+  private volatile boolean        publishing_;
+  private volatile Session        session_;
+  private volatile OverloadPolicy policy_ = OverloadPolicy.DROP_NEWEST;
+  private volatile FrameReducer   reducer_;
+  
+  private volatile long framesDelivered_;
+  private volatile long framesCaptured_;
+  private volatile long framesDropped_;
+  private volatile long framesDecimated_;
+  private volatile long framesMissing_;
+  private volatile long gaps_;
+  private volatile int  maxQueueSize_;
+  private volatile long captureThreadId_;
+  
+  private LatencyHistogram captureLatency_ = new LatencyHistogram();
+  private LatencyHistogram writeLatency_   = new LatencyHistogram();
+  
+  /** The id of the previous frame, if {@link #hasFrameId_}. Only used by the capture thread. */
+  private long    lastFrameId_;
+  private boolean hasFrameId_;
+  private long    decimationPhase_;
+  
+  
+  
+  public RecordingPipeline()
+  {
+    this(DEFAULT_CAPACITY);
+  }
+  
+  
+  
+  /**
+   * Creates the pipeline and starts its recording thread.
+   * @param capacity The number of frames that can be waiting to be written
+   *          before new frames are dropped.
+   */
+  public RecordingPipeline(int capacity)
+  {
+    ring_    = new FrameRingBuffer(capacity);
+    running_ = true;
+    thread_  = new Thread(recordLoop_, "RecordingPipeline");
+    thread_.setDaemon(true);
+    thread_.start();
+  }
+  
+  
+  
+  /** @return <code>true</code> if a recording is in progress. */
+  public boolean isCapturing()
+  {
+    return capturing_;
+  }
+  
+  
+  
+  /**
+   * Sets what happens to new frames when the recording thread falls behind.
+   * Takes effect with the next frame.
+   */
+  public void setOverloadPolicy(OverloadPolicy policy)
+  {
+    policy_ = policy;
+  }
+  
+  
+  
+  public OverloadPolicy getOverloadPolicy()
+  {
+    return policy_;
+  }
+  
+  
+  
+  /**
+   * Sets the reducer that chooses which frames to record, before the
+   * overload policy applies. A reducer keeps state, so each recording needs
+   * a new one.
+   * @param reducer The reducer, or <code>null</code> to record every frame.
+   */
+  public void setReducer(FrameReducer reducer)
+  {
+    reducer_ = reducer;
+  }
+  
+  
+  
+  /**
+   * Hands a frame to the recording thread. May only be called by one thread
+   * (the capture thread), and only blocks with {@link OverloadPolicy#BLOCK}
+   * (until there is room, or the recording is stopped).
+   * @return <code>true</code> if the frame was accepted, <code>false</code>
+   *         if no recording is in progress, the frame was skipped by the
+   *         reducer or the recording thread has fallen so far behind that
+   *         the frame was dropped or decimated.
+   */
+  public boolean publish(FrameData frame)
+  {
+    publishing_ = true;
+    
+    boolean delivered = false;
+    
+    try
+    {
+      if (!capturing_)
+        return false;
+      
+      OverloadPolicy policy  = policy_;
+      FrameReducer   reducer = reducer_;
+      long           thread  = Thread.currentThread().getId();
+      
+      if (frame.receivedNanos == 0)
+        frame.receivedNanos = System.nanoTime();
+      if (thread != captureThreadId_)
+        captureThreadId_ = thread;
+      
+      delivered = true;
+      framesDelivered_++;
+      checkFrameId(frame.frameId);
+      
+      if (reducer != null && !reducer.accept(frame))
+        return false;
+      
+      if (policy == OverloadPolicy.ADAPTIVE && isDecimated())
+      {
+        framesDecimated_++;
+        return false;
+      }
+      
+      switch (policy)
+      {
+        case BLOCK :
+          while (!ring_.offer(frame))
+          {
+            if (!capturing_)
+            {
+              framesDropped_++;
+              return false;
+            }
+            LockSupport.parkNanos(BLOCK_PARK_NANOS);
+          }
+          break;
+        case DROP_OLDEST :
+          if (ring_.offerOrEvict(frame) != null)
+          {
+            // The evicted frame had been counted as captured.
+            framesDropped_++;
+            framesCaptured_--;
+          }
+          break;
+        default :
+          if (!ring_.offer(frame))
+          {
+            framesDropped_++;
+            return false;
+          }
+      }
+      
+      int size = ring_.size();
+      if (size > maxQueueSize_)
+        maxQueueSize_ = size;
+      
+      framesCaptured_++;
+      return true;
+    }
+    finally
+    {
+      if (delivered)
+        captureLatency_.record(System.nanoTime() - frame.receivedNanos);
+      publishing_ = false;
+    }
+  }
+  
+  
+  
+  /** @return <code>true</code> if the next frame should be left out, for {@link OverloadPolicy#ADAPTIVE}. */
+  private boolean isDecimated()
+  {
+    int factor = 1 << Math.min(3, ring_.size() * 4 / ring_.capacity());
+    
+    return (decimationPhase_++ % factor != 0);
+  }
+  
+  
+  
+  private void checkFrameId(long frameId)
+  {
+    if (hasFrameId_ && frameId > lastFrameId_ + 1)
+    {
+      framesMissing_ += frameId - lastFrameId_ - 1;
+      gaps_++;
+    }
+    
+    lastFrameId_ = frameId;
+    hasFrameId_  = true;
+  }
+  
+  
+  
+  /**
+   * Starts a new recording which writes to the specified sinks.
+   * @throws IllegalStateException If a recording is already in progress.
+   */
+  public synchronized void start(FrameSink... sinks)
+  {
+    if (session_ != null)
+      throw new IllegalStateException("A recording is already in progress!");
+    
+    framesDelivered_ = 0;
+    framesCaptured_  = 0;
+    framesDropped_   = 0;
+    framesDecimated_ = 0;
+    framesMissing_   = 0;
+    gaps_            = 0;
+    maxQueueSize_    = 0;
+    hasFrameId_      = false;
+    decimationPhase_ = 0;
+    session_         = new Session(sinks);
+    
+    captureLatency_.reset();
+    writeLatency_.reset();
+    capturing_ = true;
+  }
+  
+  
+  
+  /**
+   * Stops the current recording. Blocks until all frames that were accepted
+   * by {@link #publish(FrameData)} have been written and the sinks have been
+   * closed. Does nothing if no recording is in progress.
+   * @return The number of frames that were written to the sinks.
+   * @throws IOException If a sink failed to write or close. The sinks will
+   *           still have been closed.
+   */
+  public synchronized long stop() throws IOException
+  {
+    Session session = session_;
+    
+    if (session == null)
+      return 0;
+    
+    capturing_ = false;
+    while (publishing_)
+      Thread.yield();
+    
+    session.stopRequested_ = true;
+    LockSupport.unpark(thread_);
+    
+    boolean interrupted = false;
+    while (true)
+    {
+      try
+      {
+        session.closed_.await();
+        break;
+      }
+      catch (InterruptedException e)
+      {
+        interrupted = true;
+      }
+    }
+    
+    if (interrupted)
+      Thread.currentThread().interrupt();
+    
+    if (session.error_ != null)
+      throw session.error_;
+    return session.framesWritten_;
+  }
+  
+  
+  
+  /**
+   * Stops the current recording (if any) and the recording thread. The
+   * pipeline can not be used after this.
+   */
+  public void shutdown() throws IOException
+  {
+    try
+    {
+      stop();
+    }
+    finally
+    {
+      running_ = false;
+      LockSupport.unpark(thread_);
+    }
+  }
+  
+  
+  
+  /** @return The number of frames handed to {@link #publish(FrameData)} since the recording started. */
+  public long getFramesDelivered()
+  {
+    return framesDelivered_;
+  }
+  
+  
+  
+  /** @return The number of frames accepted since the recording started, and not dropped since. */
+  public long getFramesCaptured()
+  {
+    return framesCaptured_;
+  }
+  
+  
+  
+  /**
+   * @return The number of frames dropped since the recording started because
+   *         the buffer was full: new frames, or waiting frames with
+   *         {@link OverloadPolicy#DROP_OLDEST}.
+   */
+  public long getFramesDropped()
+  {
+    return framesDropped_;
+  }
+  
+  
+  
+  /** @return The number of frames left out by {@link OverloadPolicy#ADAPTIVE} since the recording started. */
+  public long getFramesDecimated()
+  {
+    return framesDecimated_;
+  }
+  
+  
+  
+  /** @return The number of frames that were never delivered, judging by the gaps in the frame ids. */
+  public long getFramesMissing()
+  {
+    return framesMissing_;
+  }
+  
+  
+  
+  /** @return The number of gaps in the frame ids since the recording started. */
+  public long getGapCount()
+  {
+    return gaps_;
+  }
+  
+  
+  
+  /** @return The number of frames waiting to be written. */
+  public int getQueueSize()
+  {
+    return ring_.size();
+  }
+  
+  
+  
+  /** @return The number of frames that can be waiting to be written. */
+  public int getQueueCapacity()
+  {
+    return ring_.capacity();
+  }
+  
+  
+  
+  /** @return The largest number of frames that have been waiting to be written since the recording started. */
+  public int getMaxQueueSize()
+  {
+    return maxQueueSize_;
+  }
+  
+  
+  
+  /**
+   * @return The time from the arrival of each frame since the recording
+   *         started until it was accepted or turned away by
+   *         {@link #publish(FrameData)}, i.e. the time the frames held up
+   *         the capture thread.
+   */
+  public LatencyHistogram getCaptureLatency()
+  {
+    return captureLatency_;
+  }
+  
+  
+  
+  /** @return The time from the arrival of each frame since the recording started until it was written to the sinks. */
+  public LatencyHistogram getWriteLatency()
+  {
+    return writeLatency_;
+  }
+  
+  
+  
+  /** @return The id of the thread that last published a frame, or 0 if none has. */
+  public long getCaptureThreadId()
+  {
+    return captureThreadId_;
+  }
+  
+  
+  
+  /** @return The id of the recording thread. */
+  public long getRecordingThreadId()
+  {
+    return thread_.getId();
+  }
+  
+  
+  
+  private Runnable recordLoop_ = new Runnable()
+  {
+    @Override
+    public void run()
+    {
+      while (running_)
+      {
+        // A frame is only accepted once its session is set, so the session
+        // is read after polling to never miss the first frame of a recording.
+        FrameData frame   = ring_.poll();
+        Session   session = session_;
+        
+        if (frame != null)
+        {
+          if (session != null)
+            write(session, frame);
+          continue;
+        }
+        
+        if (session != null)
+        {
+          if (session.stopRequested_)
+          {
+            while ((frame = ring_.poll()) != null)
+              write(session, frame);
+            session_ = null;
+            session.close();
+          }
+          else
+          {
+            session.flush();
+          }
+        }
+        
+        LockSupport.parkNanos(IDLE_PARK_NANOS);
+      }
+    }
+  };
+  
+  
+  
+  private void write(Session session, FrameData frame)
+  {
+    session.write(frame);
+    writeLatency_.record(System.nanoTime() - frame.receivedNanos);
+  }
+  
+  
+  
+  /**
+   * The sinks and state of a single recording. Apart from
+   * {@link #stopRequested_} it is only accessed by the recording thread
+   * until {@link #closed_} has been released.
+   */
+  private static class Session
+  {
+    private FrameSink[]    sinks_;
+    private boolean        dirty_;
+    private long           framesWritten_;
+    private IOException    error_;
+    private CountDownLatch closed_;
+    
+    private volatile boolean stopRequested_;
+    
+    
+    
+    public Session(FrameSink[] sinks)
+    {
+      sinks_  = sinks;
+      closed_ = new CountDownLatch(1);
+    }
+    
+    
+    
+    public void write(FrameData frame)
+    {
+      if (error_ != null)
+        return;
+      
+      try
+      {
+        for (FrameSink sink : sinks_)
+          sink.write(frame);
+        framesWritten_++;
+        dirty_ = true;
+      }
+      catch (IOException e)
+      {
+        fail(e);
+      }
+    }
+    
+    
+    
+    public void flush()
+    {
+      if (!dirty_ || error_ != null)
+        return;
+      
+      try
+      {
+        for (FrameSink sink : sinks_)
+          sink.flush();
+        dirty_ = false;
+      }
+      catch (IOException e)
+      {
+        fail(e);
+      }
+    }
+    
+    
+    
+    public void close()
+    {
+      if (closed_.getCount() == 0)
+        return;
+      
+      for (FrameSink sink : sinks_)
+      {
+        try
+        {
+          sink.close();
+        }
+        catch (IOException e)
+        {
+          fail(e);
+        }
+      }
+      
+      closed_.countDown();
+    }
+    
+    
+    
+    private void fail(IOException e)
+    {
+      if (error_ == null)
+      {
+        error_ = e;
+        LogUtils.log(Logger.WRITEERROR, "RecordingPipeline", "Could not write the recorded frames!", e, false);
+      }
+    }
+  }
+}
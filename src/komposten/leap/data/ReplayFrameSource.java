@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+import java.io.File;
+import java.io.IOException;
+
+import komposten.utilities.tools.LogUtils;
+
+/**
+ * Replays a saved recording (JSON or binary) as if it was being captured,
+ * at its original speed, a multiple of it or as fast as possible.
+ * <br />Frames are delivered as they were recorded, including their ids and
+ * timestamps, except for the parts that are not in the capture profile.
+ * Binary recordings are paced by their timestamps. JSON recordings have no
+ * timestamps, so they are replayed as if recorded at
+ * {@link #UNTIMED_FPS}.
+ * <br />Every start replays the recording from the beginning.
+ * @author Komposten (aka Jakob Hjelm)
+ */
+class ReplayFrameSource extends PacedFrameSource
+{
+  /** The frame rate assumed for recordings without timestamps. */
+  public static final double UNTIMED_FPS = 60;
+  
+  private File            file_;
+  private RecordingFormat format_;
+  private double          speed_;
+  
+  private CaptureProfile profile_;
+  private FrameReader    reader_;
+  private long           firstTimestamp_;
+  
+  
+  
+  /**
+   * @param speed How many times faster than recorded to replay, or 0 to
+   *          replay as fast as possible.
+   * @throws IOException If the file is not in a known format.
+   */
+  public ReplayFrameSource(File file, double speed) throws IOException
+  {
+    if (speed < 0)
+      throw new IllegalArgumentException("The speed can not be negative!");
+    
+    file_   = file;
+    format_ = RecordingFormat.forFile(file);
+    speed_  = speed;
+    
+    if (format_ == null)
+      throw new IOException("Unknown recording format: " + file.getName());
+  }
+  
+  
+  
+  @Override
+  protected String describe()
+  {
+    return "Replaying " + file_.getName() + " at " + (speed_ > 0 ? speed_ + "x" : "max speed") + ".";
+  }
+  
+  
+  
+  @Override
+  protected void begin(CaptureProfile profile) throws IOException
+  {
+    profile_ = profile;
+    reader_  = format_.createReader(file_);
+  }
+  
+  
+  
+  @Override
+  protected FrameData next() throws IOException
+  {
+    FrameData frame = reader_.next();
+    
+    if (frame != null)
+      profile_.apply(frame);
+    
+    return frame;
+  }
+  
+  
+  
+  @Override
+  protected long dueNanos(FrameData frame, long index)
+  {
+    if (index == 0)
+      firstTimestamp_ = frame.timestamp;
+    
+    if (speed_ == 0)
+      return 0;
+    
+    boolean timed  = (format_ != RecordingFormat.JSON);
+    double  micros = (timed ? frame.timestamp - firstTimestamp_ : index * 1e6 / UNTIMED_FPS);
+    return (long) (micros * 1000 / speed_);
+  }
+  
+  
+  
+  @Override
+  protected void end()
+  {
+    try
+    {
+      if (reader_ != null)
+        reader_.close();
+    }
+    catch (IOException e)
+    {
+      LogUtils.log("ERROR", "ReplayFrameSource", "Could not close the reader!", e, false);
+    }
+    
+    reader_ = null;
+  }
+}
@@ -0,0 +1,540 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+import java.io.CharArrayWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import komposten.utilities.tools.LogUtils;
+
+/**
+ * Saves a recording from a {@link RecordedFrames} to a file, on whichever thread
+ * calls {@link #run()}, while other threads follow its progress and may
+ * cancel it.
+ * <br />The task keeps the store and profile it was created with, so the
+ * recorder can start a new recording while the previous one is still being
+ * saved. Frames may still be added to the store while it is saved, but only
+ * the frames it held when the save started are saved. The task retains the
+ * store until the save is done: after a run that is not a snapshot, or when
+ * a snapshot is finished.
+ * <br />A cancelled save stops after the frame it is writing and deletes the
+ * partial file.
+ * <br />A snapshot (see {@link #setSnapshot(boolean)}) saves a recording
+ * that is still in progress, and can be run again and again: each run only
+ * appends the frames added since the previous run and then ends the file
+ * (terminating the JSON array or writing the binary footer) without closing
+ * it, so that the next run replaces the end. A checkpoint thus costs the
+ * new frames rather than the whole recording, and the file is complete
+ * after every run. A cancelled snapshot keeps the frames it has written.
+ * <br />Large recordings in the JSON and binary formats are encoded in
+ * chunks on a shared {@link ForkJoinPool}, with a few chunks ahead of the
+ * one being written, and the chunks are written to the file in order. The
+ * file is exactly the same as when the frames are written one by one:
+ * binary chunks start at a keyframe and dictionary entries that an earlier
+ * chunk already wrote are left out when a chunk is appended.
+ * @author Komposten (aka Jakob Hjelm)
+ */
+class SaveTask
+{
+  /** The number of frames per chunk (rounded up to the keyframe interval). */
+  private static final int          CHUNK_FRAMES = 1024;
+  /** The number of chunks that are encoded ahead of the one being written, per thread. */
+  private static final int          CHUNKS_AHEAD = 2;
+  private static final ForkJoinPool POOL         = new ForkJoinPool();
+  
+  private RecordedFrames  store_;
+  private CaptureProfile  profile_;
+  private RecordingFormat format_;
+  private boolean         excludeBones_;
+  private File            file_;
+  private String          errors_ = "";
+  private JsonFrameWriter jsonWriter_;
+  private File            journal_;
+  private boolean         snapshot_;
+  /** The open writer of a snapshot, between runs. */
+  private FrameSink       writer_;
+  private boolean         storeReleased_;
+  
+  private volatile int     framesWritten_;
+  private volatile long    startNanos_;
+  private volatile long    endNanos_;
+  private volatile long    startBytes_;
+  private volatile boolean cancelled_;
+  
+  
+  
+  /**
+   * @param profile The profile the frames were recorded with.
+   * @param excludeBones If the bones should be left out.
+   */
+  public SaveTask(RecordedFrames store, CaptureProfile profile, RecordingFormat format, boolean excludeBones, File file)
+  {
+    store.retain();
+    
+    store_        = store;
+    profile_      = profile;
+    format_       = format;
+    excludeBones_ = excludeBones;
+    file_         = file;
+  }
+  
+  
+  
+  /**
+   * Writes the frames to the file, or the new frames of a snapshot.
+   * @return <code>true</code> if the recording was saved, <code>false</code>
+   *         if the save was cancelled (and the file deleted, unless this is
+   *         a snapshot).
+   * @throws IOException If the file could not be written.
+   */
+  public boolean run() throws IOException
+  {
+    if (snapshot_ || writer_ != null)
+      return runIncremental();
+    
+    FrameSink writer = null;
+    
+    startNanos_ = System.nanoTime();
+    
+    try
+    {
+      writer = openWriter();
+      
+      if (store_.size() >= 2 * CHUNK_FRAMES && POOL.getParallelism() > 1
+          && (writer instanceof LrecWriter || jsonWriter_ != null))
+        writeChunks(writer);
+      else
+        writeFrames(writer);
+      
+      writer.close();
+      errors_ = Recorder.describeErrors(writer);
+      writer  = null;
+    }
+    finally
+    {
+      endNanos_ = System.nanoTime();
+      releaseStore();
+      
+      try
+      {
+        if (writer != null)
+          writer.close();
+      }
+      catch (IOException e)
+      {
+        LogUtils.log("ERROR", "SaveTask", "Could not close the writer!", e, false);
+      }
+    }
+    
+    if (cancelled_)
+    {
+      if (file_.exists() && !file_.delete())
+        LogUtils.log("ERROR", "SaveTask", "Could not delete the cancelled file: " + file_, null, false);
+      return false;
+    }
+    
+    if (journal_ != null && journal_.exists() && !journal_.delete())
+      LogUtils.log("ERROR", "SaveTask", "Could not delete the journal: " + journal_, null, false);
+    return true;
+  }
+  
+  
+  
+  /**
+   * Appends the new frames of a snapshot. The writer is kept open unless this
+   * is the last run.
+   */
+  private synchronized boolean runIncremental() throws IOException
+  {
+    boolean snapshot = snapshot_;
+    
+    startBytes_ = file_.length();
+    startNanos_ = System.nanoTime();
+    endNanos_   = 0;
+    
+    try
+    {
+      if (writer_ == null)
+        writer_ = openWriter();
+      
+      writeFrames(writer_);
+      errors_ = Recorder.describeErrors(writer_);
+      
+      if (snapshot)
+      {
+        if (writer_ instanceof LrecWriter)
+          ((LrecWriter) writer_).checkpoint();
+        else
+          ((FrameStreamWriter) writer_).checkpoint();
+      }
+      else
+      {
+        FrameSink writer = writer_;
+        writer_ = null;
+        writer.close();
+      }
+    }
+    catch (IOException e)
+    {
+      // The next run starts the file over.
+      closeWriter();
+      framesWritten_ = 0;
+      throw e;
+    }
+    finally
+    {
+      endNanos_ = System.nanoTime();
+      if (!snapshot)
+        releaseStore();
+    }
+    
+    if (cancelled_)
+    {
+      cancelled_ = false;
+      return false;
+    }
+    
+    if (!snapshot && journal_ != null && journal_.exists() && !journal_.delete())
+      LogUtils.log("ERROR", "SaveTask", "Could not delete the journal: " + journal_, null, false);
+    return true;
+  }
+  
+  
+  
+  private void writeFrames(FrameSink writer) throws IOException
+  {
+    int count = store_.size();
+    
+    for (int i = framesWritten_; i < count && !cancelled_; i++)
+    {
+      writer.write(store_.get(i));
+      framesWritten_ = i + 1;
+    }
+  }
+  
+  
+  
+  private void writeChunks(FrameSink writer) throws IOException
+  {
+    int                    count      = store_.size();
+    int                    chunkSize  = CHUNK_FRAMES;
+    int                    next       = 0;
+    Deque<Future<Object>>  pending    = new ArrayDeque<Future<Object>>();
+    int                    maxPending = CHUNKS_AHEAD * POOL.getParallelism();
+    
+    if (writer instanceof LrecWriter)
+    {
+      int alignment = ((LrecWriter) writer).getChunkAlignment();
+      chunkSize = (chunkSize + alignment - 1) / alignment * alignment;
+    }
+    
+    try
+    {
+      while ((next < count || !pending.isEmpty()) && !cancelled_)
+      {
+        while (next < count && pending.size() < maxPending)
+        {
+          int end = Math.min(count, next + chunkSize);
+          pending.add(POOL.submit(createChunk(writer, next, end)));
+          next = end;
+        }
+        
+        Object chunk = join(pending.removeFirst());
+        
+        if (chunk instanceof LrecWriter)
+        {
+          ((LrecWriter) writer).writeChunk((LrecWriter) chunk);
+          framesWritten_ = (int) ((LrecWriter) writer).getFramesWritten();
+        }
+        else
+        {
+          jsonWriter_.writeEncoded((CharArrayWriter) chunk, Math.min(count - framesWritten_, chunkSize));
+          framesWritten_ = (int) jsonWriter_.getFramesWritten();
+        }
+      }
+    }
+    finally
+    {
+      for (Future<Object> future : pending)
+        future.cancel(false);
+    }
+  }
+  
+  
+  
+  /**
+   * @return A task that encodes the frames from <code>start</code> up to
+   *         <code>end</code> into an {@link LrecWriter} chunk or, for JSON,
+   *         a <code>CharArrayWriter</code>.
+   */
+  private Callable<Object> createChunk(final FrameSink writer, final int start, final int end)
+  {
+    return new Callable<Object>()
+    {
+      @Override
+      public Object call() throws IOException
+      {
+        if (writer instanceof LrecWriter)
+        {
+          LrecWriter chunk = ((LrecWriter) writer).createChunk();
+          for (int i = start; i < end && !cancelled_; i++)
+            chunk.write(store_.get(i));
+          return chunk;
+        }
+        
+        CharArrayWriter text  = new CharArrayWriter();
+        JsonFrameWriter chunk = new JsonFrameWriter(text, getJsonFields());
+        for (int i = start; i < end && !cancelled_; i++)
+          chunk.write(store_.get(i));
+        chunk.flush();
+        return text;
+      }
+    };
+  }
+  
+  
+  
+  private static Object join(Future<Object> future) throws IOException
+  {
+    try
+    {
+      return future.get();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while saving.");
+    }
+    catch (ExecutionException e)
+    {
+      Throwable cause = e.getCause();
+      
+      if (cause instanceof IOException)
+        throw (IOException) cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+      throw new IOException(cause);
+    }
+  }
+  
+  
+  
+  private int getJsonFields()
+  {
+    return (excludeBones_ ? 0 : FrameJson.ALL);
+  }
+  
+  
+  
+  private FrameSink openWriter() throws IOException
+  {
+    if (format_ != RecordingFormat.JSON)
+      return format_.createWriter(file_, excludeBones_ ? profile_.without(CaptureProfile.BONES) : profile_);
+    
+    FrameStreamWriter writer = new FrameStreamWriter(file_, excludeBones_);
+    
+    jsonWriter_ = writer.getJsonWriter();
+    return writer;
+  }
+  
+  
+  
+  /** Sets the {@link CaptureJournal} of the recording, which is deleted once it has been saved. */
+  public void setJournal(File journal)
+  {
+    journal_ = journal;
+  }
+  
+  
+  
+  /**
+   * Makes the task save a snapshot of a recording in progress, which keeps
+   * the file open for the next run. Setting it back to <code>false</code>
+   * makes the next run the last one, which closes the file.
+   */
+  public void setSnapshot(boolean snapshot)
+  {
+    snapshot_ = snapshot;
+  }
+  
+  
+  
+  public boolean isSnapshot()
+  {
+    return snapshot_;
+  }
+  
+  
+  
+  /**
+   * Closes the file of a snapshot (once a running snapshot is done), which
+   * then holds the frames of the latest run, and releases the store. Errors
+   * are logged.
+   */
+  public synchronized void finish()
+  {
+    closeWriter();
+    releaseStore();
+  }
+  
+  
+  
+  private void closeWriter()
+  {
+    if (writer_ == null)
+      return;
+    
+    try
+    {
+      writer_.close();
+    }
+    catch (IOException e)
+    {
+      LogUtils.log("ERROR", "SaveTask", "Could not close the snapshot: " + file_, e, false);
+    }
+    
+    writer_ = null;
+  }
+  
+  
+  
+  private synchronized void releaseStore()
+  {
+    if (!storeReleased_)
+      store_.release();
+    storeReleased_ = true;
+  }
+  
+  
+  
+  /**
+   * Stops the save after the current frame. The partial file is deleted,
+   * unless this is a snapshot.
+   */
+  public void cancel()
+  {
+    cancelled_ = true;
+  }
+  
+  
+  
+  public boolean isCancelled()
+  {
+    return cancelled_;
+  }
+  
+  
+  
+  public File getFile()
+  {
+    return file_;
+  }
+  
+  
+  
+  public RecordingFormat getFormat()
+  {
+    return format_;
+  }
+  
+  
+  
+  /** @return <code>true</code> if the bones are left out. */
+  public boolean excludesBones()
+  {
+    return excludeBones_;
+  }
+  
+  
+  
+  /** @return The number of frames to save. */
+  public int getFrameCount()
+  {
+    return store_.size();
+  }
+  
+  
+  
+  public int getFramesWritten()
+  {
+    return framesWritten_;
+  }
+  
+  
+  
+  /**
+   * @return The largest quantisation errors of a delta-encoded file, on a new
+   *         line, once it has been saved, or an empty string.
+   */
+  public String getErrors()
+  {
+    return errors_;
+  }
+  
+  
+  
+  /** @return The average write speed since the save started, in megabytes per second. */
+  public double getMegabytesPerSecond()
+  {
+    long start = startNanos_;
+    long end   = (endNanos_ != 0 ? endNanos_ : System.nanoTime());
+    
+    if (start == 0 || end <= start)
+      return 0;
+    return (file_.length() - startBytes_) / 1048576.0 / ((end - start) / 1e9);
+  }
+  
+  
+  
+  /** @return The size of the file so far. */
+  public long getBytesWritten()
+  {
+    return file_.length();
+  }
+  
+  
+  
+  /** @return The time the save took, or has taken so far, in seconds, or 0 if it has not started. */
+  public double getSeconds()
+  {
+    long start = startNanos_;
+    long end   = (endNanos_ != 0 ? endNanos_ : System.nanoTime());
+    
+    return (start != 0 ? (end - start) / 1e9 : 0);
+  }
+  
+  
+  
+  /** @return <code>true</code> if the save has started and is not done. */
+  public boolean isRunning()
+  {
+    return startNanos_ != 0 && endNanos_ == 0;
+  }
+  
+  
+  
+  /** @return A line about the progress of the save, for showing to the user. */
+  public String describeProgress()
+  {
+    if (endNanos_ != 0)
+    {
+      return String.format(Locale.ROOT, "Saved %d frames (%.1f MB) in %.1f s, %.1f MB/s.", framesWritten_,
+          file_.length() / 1048576.0, (endNanos_ - startNanos_) / 1e9, getMegabytesPerSecond());
+    }
+    
+    return String.format(Locale.ROOT, "Saving: %d of %d frames, %.1f MB/s", framesWritten_, getFrameCount(),
+        getMegabytesPerSecond());
+  }
+}
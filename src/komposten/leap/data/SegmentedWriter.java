@@ -0,0 +1,337 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+/**
+ * A {@link FrameSink} that writes a session as a series of numbered segment
+ * files, starting a new segment when the current one has reached a size or
+ * a duration. Each segment is a complete recording in the chosen format, so
+ * a crash only loses the segment that was being written, and finished
+ * segments can be processed while the recording continues.
+ * <br />A segment is finished by closing its writer, which ends the file
+ * (with a footer holding the frame count in binary files) and forces it to
+ * the disk, and then listing it as complete in the session manifest.
+ * <br />The manifest is a JSON file next to the segments (<code>name</code>
+ * + ".manifest", where the segments are <code>name-000.ext</code>,
+ * <code>name-001.ext</code>, ...). It lists the format, profile and limits
+ * of the session and, for each segment, its file, frame count, size and
+ * first and last frame ids, and whether it is complete. It is replaced
+ * atomically whenever a segment is started or finished, and marked as
+ * complete when the session is closed. If frames were left out by a
+ * {@link FrameReducer}, the manifest also lists its settings and how many
+ * frames it has left out.
+ * <br />The size of a segment is checked every {@link #SIZE_CHECK_INTERVAL}
+ * frames and when it is flushed, so segments can be somewhat larger than
+ * the limit.
+ * @author Komposten (aka Jakob Hjelm)
+ */
+class SegmentedWriter implements FrameSink
+{
+  /** The extension of session manifests. */
+  public static final String MANIFEST_EXTENSION = "manifest";
+  
+  private static final int  SIZE_CHECK_INTERVAL = 32;
+  private static final Gson GSON                = new GsonBuilder().setPrettyPrinting().create();
+  
+  private File            manifestFile_;
+  private String          name_;
+  private RecordingFormat format_;
+  private CaptureProfile  profile_;
+  private long            maxBytes_;
+  private long            maxNanos_;
+  private Manifest        manifest_;
+  private FrameSink       writer_;
+  private File            segmentFile_;
+  private Segment         segment_;
+  private long            segmentStart_;
+  private DeltaCodec      errors_;
+  private FrameReducer    reducer_;
+  
+  /** The segment being written, for {@link #getBytesWritten()}. */
+  private volatile File openFile_;
+  private volatile long closedBytes_;
+  
+  
+  
+  /**
+   * Writes the (empty) manifest. The first segment is created when the first
+   * frame is written.
+   * @param manifestFile The manifest, whose name (without ".manifest") is
+   *          used for the segments.
+   * @param maxBytes The size after which a new segment is started, or 0 for
+   *          no limit.
+   * @param maxSeconds The duration after which a new segment is started, or
+   *          0 for no limit.
+   * @param reducer The reducer that chooses the frames of the session, or
+   *          <code>null</code>.
+   * @throws IOException If the manifest could not be written.
+   */
+  public SegmentedWriter(File manifestFile, RecordingFormat format, CaptureProfile profile, long maxBytes, double maxSeconds,
+      FrameReducer reducer) throws IOException
+  {
+    String name = manifestFile.getName();
+    
+    if (name.endsWith("." + MANIFEST_EXTENSION))
+      name = name.substring(0, name.length() - MANIFEST_EXTENSION.length() - 1);
+    
+    manifestFile_ = manifestFile;
+    name_         = name;
+    format_       = format;
+    profile_      = profile;
+    maxBytes_     = maxBytes;
+    maxNanos_     = (long) (maxSeconds * 1e9);
+    reducer_      = (reducer != null && reducer.isActive() ? reducer : null);
+    manifest_     = new Manifest(format, profile, maxBytes, maxSeconds);
+    
+    if (manifestFile.getParentFile() != null)
+      manifestFile.getParentFile().mkdirs();
+    writeManifest();
+  }
+  
+  
+  
+  @Override
+  public void write(FrameData frame) throws IOException
+  {
+    if (writer_ != null && isSegmentFull(segment_.frames % SIZE_CHECK_INTERVAL == 0))
+      closeSegment();
+    if (writer_ == null)
+      openSegment(frame);
+    
+    writer_.write(frame);
+    segment_.frames++;
+    segment_.lastFrameId = frame.frameId;
+    manifest_.frames++;
+  }
+  
+  
+  
+  @Override
+  public void flush() throws IOException
+  {
+    if (writer_ == null)
+      return;
+    
+    writer_.flush();
+    
+    if (isSegmentFull(true))
+      closeSegment();
+  }
+  
+  
+  
+  /** Finishes the current segment and marks the manifest as complete. */
+  @Override
+  public void close() throws IOException
+  {
+    if (writer_ != null)
+      closeSegment();
+    
+    manifest_.complete = true;
+    writeManifest();
+  }
+  
+  
+  
+  private boolean isSegmentFull(boolean checkSize)
+  {
+    if (maxNanos_ > 0 && System.nanoTime() - segmentStart_ >= maxNanos_)
+      return true;
+    return (checkSize && maxBytes_ > 0 && segmentFile_.length() >= maxBytes_);
+  }
+  
+  
+  
+  private void openSegment(FrameData frame) throws IOException
+  {
+    String number = String.format("%03d", manifest_.segments.size());
+    
+    segmentFile_  = new File(manifestFile_.getParentFile(), name_ + "-" + number + "." + format_.getExtension());
+    writer_       = format_.createWriter(segmentFile_, profile_);
+    segment_      = new Segment(segmentFile_.getName(), frame.frameId);
+    segmentStart_ = System.nanoTime();
+    openFile_     = segmentFile_;
+    
+    manifest_.segments.add(segment_);
+    writeManifest();
+  }
+  
+  
+  
+  private void closeSegment() throws IOException
+  {
+    FrameSink writer = writer_;
+    
+    writer_ = null;
+    writer.close();
+    
+    if (writer instanceof LrecWriter && ((LrecWriter) writer).getDeltaCodec() != null)
+    {
+      if (errors_ == null)
+        errors_ = ((LrecWriter) writer).getDeltaCodec();
+      else
+        errors_.mergeErrors(((LrecWriter) writer).getDeltaCodec());
+    }
+    
+    segment_.bytes    = segmentFile_.length();
+    segment_.complete = true;
+    openFile_         = null;
+    closedBytes_     += segment_.bytes;
+    writeManifest();
+  }
+  
+  
+  
+  /** Writes the manifest to a temporary file, forces it to the disk and moves it over the old one. */
+  private void writeManifest() throws IOException
+  {
+    File             temp   = new File(manifestFile_.getPath() + ".tmp");
+    FileOutputStream stream = new FileOutputStream(temp);
+    
+    if (reducer_ != null)
+      manifest_.reduction = new Reduction(reducer_);
+    
+    try
+    {
+      Writer writer = new OutputStreamWriter(stream, "UTF-8");
+      
+      GSON.toJson(manifest_, writer);
+      writer.flush();
+      stream.getFD().sync();
+    }
+    finally
+    {
+      stream.close();
+    }
+    
+    Files.move(temp.toPath(), manifestFile_.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+  
+  
+  
+  /** @return The session manifest. */
+  public File getManifestFile()
+  {
+    return manifestFile_;
+  }
+  
+  
+  
+  /** @return The number of segments started so far. */
+  public int getSegmentCount()
+  {
+    return manifest_.segments.size();
+  }
+  
+  
+  
+  public long getFramesWritten()
+  {
+    return manifest_.frames;
+  }
+  
+  
+  
+  /**
+   * @return The size of the segment files so far, not counting what is still
+   *         buffered. May be called from any thread.
+   */
+  public long getBytesWritten()
+  {
+    File open = openFile_;
+    
+    return closedBytes_ + (open != null ? open.length() : 0);
+  }
+  
+  
+  
+  /**
+   * @return A codec holding the largest errors of the finished segments, if
+   *         they were delta-encoded, or <code>null</code>.
+   */
+  public DeltaCodec getDeltaCodec()
+  {
+    return errors_;
+  }
+  
+  
+  
+  /** The contents of the manifest, as written by Gson. */
+  private static class Manifest
+  {
+    String        format;
+    String        profile;
+    long          maxBytes;
+    double        maxSeconds;
+    long          frames;
+    boolean       complete;
+    Reduction     reduction;
+    List<Segment> segments = new ArrayList<Segment>();
+    
+    Manifest(RecordingFormat format, CaptureProfile profile, long maxBytes, double maxSeconds)
+    {
+      this.format     = format.name().toLowerCase(Locale.ROOT);
+      this.profile    = profile.getName();
+      this.maxBytes   = maxBytes;
+      this.maxSeconds = maxSeconds;
+    }
+  }
+  
+  
+  
+  /** The settings and counters of a {@link FrameReducer}, as written by Gson. */
+  private static class Reduction
+  {
+    double  maxFps;
+    boolean dropEmpty;
+    float   motionThreshold;
+    float   speedThreshold;
+    long    skippedByRate;
+    long    skippedEmpty;
+    long    skippedStill;
+    
+    Reduction(FrameReducer reducer)
+    {
+      this.maxFps          = reducer.getMaxFps();
+      this.dropEmpty       = reducer.dropsEmptyFrames();
+      this.motionThreshold = reducer.getMotionThreshold();
+      this.speedThreshold  = reducer.getSpeedThreshold();
+      this.skippedByRate   = reducer.getSkippedByRate();
+      this.skippedEmpty    = reducer.getSkippedEmpty();
+      this.skippedStill    = reducer.getSkippedStill();
+    }
+  }
+  
+  
+  
+  private static class Segment
+  {
+    String  file;
+    long    frames;
+    long    bytes;
+    long    firstFrameId;
+    long    lastFrameId;
+    boolean complete;
+    
+    Segment(String file, long firstFrameId)
+    {
+      this.file         = file;
+      this.firstFrameId = firstFrameId;
+    }
+  }
+}
@@ -0,0 +1,688 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import komposten.utilities.tools.LogUtils;
+
+import com.leapmotion.leap.Bone.Type;
+
+/**
+ * A recording kept outside of the Java heap, in direct buffers ("slabs") of
+ * {@link #SLAB_SIZE} bytes, within a memory budget. Once the budget is used
+ * up, the oldest full slab is written to a temporary file and its buffer is
+ * reused for the next frames, while the frames in the file are read back
+ * with positional reads. The garbage collector thus only sees one small index
+ * entry per frame, however long the recording is, and a recording can be
+ * larger than the memory.
+ * <br />Each frame is a record of its fields, with the same flags as in
+ * {@link FrameStore} telling which fields are present, so reading a frame
+ * back gives the same result as the frame that was stored. Records do not
+ * span slabs, and are in the native byte order since they never leave the
+ * program.
+ * <br />Frames are added by a single thread, but other threads may read the
+ * frames below {@link #size()} at the same time, like in a
+ * <code>FrameStore</code>. Readers hold a read lock while decoding a frame,
+ * and a slab is only moved to the file (and then reused) under the write
+ * lock, which the adding thread only takes when it starts a new slab.
+ * <br />The slabs are returned to a shared pool, for the next recording, and
+ * the temporary file is deleted once the store has been released by all of
+ * its users (see {@link RecordedFrames}). The pool keeps at most the budget
+ * of the latest store; other slabs are left to the garbage collector.
+ * @author Komposten (aka Jakob Hjelm)
+ */
+class SlabFrameStore implements RecordedFrames
+{
+  private static final int SLAB_BITS = 22;
+  /** The size of a slab. A frame can not be larger than this. */
+  public static final int  SLAB_SIZE = 1 << SLAB_BITS;
+  private static final int SLAB_MASK = SLAB_SIZE - 1;
+  
+  /** Hands and bones whose basis is present, next to the flags of {@link FrameStore}. */
+  private static final int HAND_BASIS  = 1 << 7;
+  private static final int BONE_BASIS  = 1 << 5;
+  private static final int COUNT_SHIFT = 8;
+  private static final int TYPE_SHIFT  = 8;
+  
+  private static final int VECTOR_SIZE = 3 * 4;
+  private static final int BASIS_SIZE  = 4 * VECTOR_SIZE;
+  
+  private static final ByteOrder ORDER = ByteOrder.nativeOrder();
+  private static final Type[]    TYPES = Type.values();
+  
+  /** Slabs of released stores, for reuse. */
+  private static final Deque<ByteBuffer> POOL = new ArrayDeque<ByteBuffer>();
+  /** The most slabs the pool keeps: the budget of the latest store. Guarded by the pool. */
+  private static int poolLimit_;
+  
+  private int           maxSlabs_;
+  /** The slabs, or <code>null</code> for those that have been written to the file. */
+  private ByteBuffer[]  slabs_;
+  /** The start of each slab in the file, once it has been written to it. */
+  private long[]        fileStarts_;
+  /** The number of bytes used in each slab, once it has been written to the file. */
+  private int[]         slabEnds_;
+  private int           slabCount_;
+  /** The slabs below this index have been written to the file. */
+  private int           spilled_;
+  private ByteBuffer    slab_;
+  private LongColumn    positions_;
+  private File          file_;
+  private FileChannel   channel_;
+  private ReadWriteLock lock_;
+  private AtomicInteger references_;
+  
+  private volatile int  size_;
+  private volatile int  memorySlabs_;
+  private volatile long spilledBytes_;
+  
+  
+  
+  /**
+   * @param memoryBudget The number of bytes the slabs may take up in memory.
+   *          At least one slab is always kept in memory.
+   */
+  public SlabFrameStore(long memoryBudget)
+  {
+    maxSlabs_   = (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget / SLAB_SIZE));
+    slabs_      = new ByteBuffer[16];
+    fileStarts_ = new long[16];
+    slabEnds_   = new int[16];
+    positions_  = new LongColumn();
+    lock_       = new ReentrantReadWriteLock();
+    references_ = new AtomicInteger(1);
+    
+    synchronized (POOL)
+    {
+      poolLimit_ = maxSlabs_;
+      while (POOL.size() > poolLimit_)
+        POOL.poll();
+    }
+  }
+  
+  
+  
+  @Override
+  public void write(FrameData frame) throws IOException
+  {
+    add(frame);
+  }
+  
+  
+  
+  @Override
+  public void flush()
+  {
+  }
+  
+  
+  
+  @Override
+  public void close()
+  {
+  }
+  
+  
+  
+  /**
+   * Copies a frame into the store. The frame object itself is not kept.
+   * @return The index of the frame.
+   * @throws IOException If a slab could not be written to the file.
+   * @throws IllegalArgumentException If the frame is larger than a slab.
+   */
+  public int add(FrameData frame) throws IOException
+  {
+    int size = frameSize(frame);
+    
+    if (size > SLAB_SIZE)
+      throw new IllegalArgumentException("The frame is larger than a slab: " + size + " bytes.");
+    if (slab_ == null || slab_.remaining() < size)
+      nextSlab();
+    
+    long position = ((long) (slabCount_ - 1) << SLAB_BITS) | slab_.position();
+    
+    putFrame(slab_, frame);
+    
+    int index = positions_.add(position);
+    size_ = index + 1;
+    return index;
+  }
+  
+  
+  
+  private void nextSlab() throws IOException
+  {
+    ByteBuffer slab = null;
+    
+    if (memorySlabs_ < maxSlabs_)
+      slab = allocate();
+    if (slab == null)
+      slab = spill();
+    
+    slab.clear();
+    
+    lock_.writeLock().lock();
+    try
+    {
+      if (slabCount_ == slabs_.length)
+      {
+        slabs_      = Arrays.copyOf(slabs_, slabCount_ * 2);
+        fileStarts_ = Arrays.copyOf(fileStarts_, slabCount_ * 2);
+        slabEnds_   = Arrays.copyOf(slabEnds_, slabCount_ * 2);
+      }
+      slabs_[slabCount_++] = slab;
+    }
+    finally
+    {
+      lock_.writeLock().unlock();
+    }
+    
+    slab_ = slab;
+  }
+  
+  
+  
+  /**
+   * @return A slab from the pool or a new one, or <code>null</code> if there
+   *         is no direct memory left (which then becomes the budget).
+   */
+  private ByteBuffer allocate()
+  {
+    ByteBuffer slab;
+    
+    synchronized (POOL)
+    {
+      slab = POOL.poll();
+    }
+    
+    if (slab == null)
+    {
+      try
+      {
+        slab = ByteBuffer.allocateDirect(SLAB_SIZE).order(ORDER);
+      }
+      catch (OutOfMemoryError e)
+      {
+        if (memorySlabs_ == 0)
+          throw e;
+        maxSlabs_ = memorySlabs_;
+        return null;
+      }
+    }
+    
+    memorySlabs_++;
+    return slab;
+  }
+  
+  
+  
+  /**
+   * Writes the oldest slab in memory to the end of the file.
+   * @return The slab, to be reused.
+   */
+  private ByteBuffer spill() throws IOException
+  {
+    if (channel_ == null)
+    {
+      file_ = File.createTempFile("leaprecording", ".slabs");
+      file_.deleteOnExit();
+      channel_ = new RandomAccessFile(file_, "rw").getChannel();
+    }
+    
+    ByteBuffer slab   = slabs_[spilled_];
+    ByteBuffer output = slab.duplicate();
+    long       start  = spilledBytes_;
+    
+    output.flip();
+    while (output.hasRemaining())
+      channel_.write(output, start + output.position());
+    
+    lock_.writeLock().lock();
+    try
+    {
+      slabs_[spilled_]      = null;
+      fileStarts_[spilled_] = start;
+      slabEnds_[spilled_]   = slab.position();
+    }
+    finally
+    {
+      lock_.writeLock().unlock();
+    }
+    
+    spilled_++;
+    spilledBytes_ = start + slab.position();
+    return slab;
+  }
+  
+  
+  
+  @Override
+  public int size()
+  {
+    return size_;
+  }
+  
+  
+  
+  /** @throws IOException If the frame is in the file and could not be read. */
+  @Override
+  public FrameData get(int index) throws IOException
+  {
+    long position = positions_.get(index);
+    int  slab     = (int) (position >>> SLAB_BITS);
+    int  offset   = (int) (position & SLAB_MASK);
+    
+    lock_.readLock().lock();
+    try
+    {
+      if (slabs_ == null)
+        throw new IllegalStateException("The store has been released.");
+      
+      if (slabs_[slab] != null)
+      {
+        ByteBuffer input = slabs_[slab].duplicate().order(ORDER);
+        
+        input.position(offset);
+        return getFrame(input);
+      }
+      
+      return getFrame(read(slab, offset, getRecordEnd(index, slab)));
+    }
+    finally
+    {
+      lock_.readLock().unlock();
+    }
+  }
+  
+  
+  
+  /** @return The end of the record of a frame in a slab that has been written to the file. */
+  private int getRecordEnd(int index, int slab)
+  {
+    if (index + 1 < size_)
+    {
+      long next = positions_.get(index + 1);
+      
+      if ((int) (next >>> SLAB_BITS) == slab)
+        return (int) (next & SLAB_MASK);
+    }
+    
+    return slabEnds_[slab];
+  }
+  
+  
+  
+  private ByteBuffer read(int slab, int start, int end) throws IOException
+  {
+    ByteBuffer input    = ByteBuffer.allocate(end - start).order(ORDER);
+    long       position = fileStarts_[slab] + start;
+    
+    while (input.hasRemaining())
+    {
+      if (channel_.read(input, position + input.position()) < 0)
+        throw new IOException("Unexpected end of the temporary file: " + file_);
+    }
+    
+    input.flip();
+    return input;
+  }
+  
+  
+  
+  /** @return The number of bytes of slabs in memory and of the index. */
+  @Override
+  public long memoryUsage()
+  {
+    return (long) memorySlabs_ * SLAB_SIZE + positions_.memoryUsage();
+  }
+  
+  
+  
+  /** @return The number of bytes that have been written to the temporary file. */
+  public long getSpilledBytes()
+  {
+    return spilledBytes_;
+  }
+  
+  
+  
+  @Override
+  public void retain()
+  {
+    references_.incrementAndGet();
+  }
+  
+  
+  
+  /** Once all references are removed, returns the slabs to the pool and deletes the temporary file. */
+  @Override
+  public void release()
+  {
+    if (references_.decrementAndGet() != 0)
+      return;
+    
+    lock_.writeLock().lock();
+    try
+    {
+      synchronized (POOL)
+      {
+        for (int i = spilled_; i < slabCount_ && POOL.size() < poolLimit_; i++)
+          POOL.add(slabs_[i]);
+      }
+      
+      slabs_       = null;
+      slab_        = null;
+      memorySlabs_ = 0;
+    }
+    finally
+    {
+      lock_.writeLock().unlock();
+    }
+    
+    if (channel_ != null)
+    {
+      try
+      {
+        channel_.close();
+      }
+      catch (IOException e)
+      {
+        LogUtils.log("ERROR", "SlabFrameStore", "Could not close the temporary file: " + file_, e, false);
+      }
+      
+      if (!file_.delete())
+        LogUtils.log("ERROR", "SlabFrameStore", "Could not delete the temporary file: " + file_, null, false);
+    }
+  }
+  
+  
+  
+  private static int frameSize(FrameData frame)
+  {
+    int size = 8 + 8 + 4;
+    
+    if (frame.hands == null)
+      return size;
+    
+    for (Hand hand : frame.hands)
+    {
+      size += 4 + 4 + vectorSize(hand.direction) + vectorSize(hand.palmPosition) + vectorSize(hand.palmNormal)
+          + vectorSize(hand.palmVelocity) + (hand.basis != null ? BASIS_SIZE : 0);
+      
+      if (hand.fingers == null)
+        continue;
+      
+      for (Finger finger : hand.fingers)
+      {
+        size += 4 + 4 + vectorSize(finger.direction) + vectorSize(finger.tipPosition) + vectorSize(finger.tipVelocity);
+        
+        if (finger.bones == null)
+          continue;
+        
+        for (Bone bone : finger.bones)
+        {
+          size += 4 + 4 + 4 + vectorSize(bone.direction) + vectorSize(bone.center) + vectorSize(bone.nextJoint)
+              + vectorSize(bone.prevJoint) + (bone.basis != null ? BASIS_SIZE : 0);
+        }
+      }
+    }
+    
+    return size;
+  }
+  
+  
+  
+  private static int vectorSize(float[] vector)
+  {
+    return (vector != null ? VECTOR_SIZE : 0);
+  }
+  
+  
+  
+  private static void putFrame(ByteBuffer output, FrameData frame)
+  {
+    int handCount = (frame.hands != null ? frame.hands.size() : 0);
+    
+    output.putLong(frame.frameId);
+    output.putLong(frame.timestamp);
+    output.putInt(handCount);
+    
+    for (int i = 0; i < handCount; i++)
+      putHand(output, frame.hands.get(i));
+  }
+  
+  
+  
+  private static void putHand(ByteBuffer output, Hand hand)
+  {
+    int fingerCount = (hand.fingers != null ? hand.fingers.size() : 0);
+    int flags       = fingerCount << COUNT_SHIFT;
+    
+    flags |= (hand.isLeft               ? FrameStore.HAND_LEFT          : 0);
+    flags |= (hand.isRight              ? FrameStore.HAND_RIGHT         : 0);
+    flags |= (hand.direction    != null ? FrameStore.HAND_DIRECTION     : 0);
+    flags |= (hand.palmPosition != null ? FrameStore.HAND_PALM_POSITION : 0);
+    flags |= (hand.palmNormal   != null ? FrameStore.HAND_PALM_NORMAL   : 0);
+    flags |= (hand.palmVelocity != null ? FrameStore.HAND_PALM_VELOCITY : 0);
+    flags |= (hand.fingers      != null ? FrameStore.HAND_FINGERS       : 0);
+    flags |= (hand.basis        != null ? HAND_BASIS                    : 0);
+    
+    output.putInt(hand.id);
+    output.putInt(flags);
+    putVector(output, hand.direction);
+    putVector(output, hand.palmPosition);
+    putVector(output, hand.palmNormal);
+    putVector(output, hand.palmVelocity);
+    putBasis(output, hand.basis);
+    
+    for (int i = 0; i < fingerCount; i++)
+      putFinger(output, hand.fingers.get(i));
+  }
+  
+  
+  
+  private static void putFinger(ByteBuffer output, Finger finger)
+  {
+    int boneCount = (finger.bones != null ? finger.bones.length : 0);
+    int flags     = boneCount << COUNT_SHIFT;
+    
+    flags |= (finger.direction   != null ? FrameStore.FINGER_DIRECTION    : 0);
+    flags |= (finger.tipPosition != null ? FrameStore.FINGER_TIP_POSITION : 0);
+    flags |= (finger.tipVelocity != null ? FrameStore.FINGER_TIP_VELOCITY : 0);
+    flags |= (finger.bones       != null ? FrameStore.FINGER_BONES        : 0);
+    
+    output.putInt(finger.id);
+    output.putInt(flags);
+    putVector(output, finger.direction);
+    putVector(output, finger.tipPosition);
+    putVector(output, finger.tipVelocity);
+    
+    for (int i = 0; i < boneCount; i++)
+      putBone(output, finger.bones[i]);
+  }
+  
+  
+  
+  private static void putBone(ByteBuffer output, Bone bone)
+  {
+    int flags = 0;
+    
+    flags |= (bone.direction != null ? FrameStore.BONE_DIRECTION  : 0);
+    flags |= (bone.center    != null ? FrameStore.BONE_CENTER     : 0);
+    flags |= (bone.nextJoint != null ? FrameStore.BONE_NEXT_JOINT : 0);
+    flags |= (bone.prevJoint != null ? FrameStore.BONE_PREV_JOINT : 0);
+    flags |= (bone.basis     != null ? BONE_BASIS                 : 0);
+    if (bone.type != null)
+      flags |= FrameStore.BONE_TYPE | (bone.type.ordinal() << TYPE_SHIFT);
+    
+    output.putInt(flags);
+    output.putFloat(bone.length);
+    output.putFloat(bone.width);
+    putVector(output, bone.direction);
+    putVector(output, bone.center);
+    putVector(output, bone.nextJoint);
+    putVector(output, bone.prevJoint);
+    putBasis(output, bone.basis);
+  }
+  
+  
+  
+  private static void putBasis(ByteBuffer output, Basis basis)
+  {
+    if (basis == null)
+      return;
+    
+    putVector(output, basis.origin);
+    putVector(output, basis.xBasis);
+    putVector(output, basis.yBasis);
+    putVector(output, basis.zBasis);
+  }
+  
+  
+  
+  private static void putVector(ByteBuffer output, float[] vector)
+  {
+    if (vector == null)
+      return;
+    
+    output.putFloat(vector[0]);
+    output.putFloat(vector[1]);
+    output.putFloat(vector[2]);
+  }
+  
+  
+  
+  private static FrameData getFrame(ByteBuffer input)
+  {
+    FrameData frame = new FrameData();
+    
+    frame.frameId   = input.getLong();
+    frame.timestamp = input.getLong();
+    
+    int count = input.getInt();
+    for (int i = 0; i < count; i++)
+      frame.hands.add(getHand(input));
+    
+    return frame;
+  }
+  
+  
+  
+  private static Hand getHand(ByteBuffer input)
+  {
+    Hand hand = new Hand();
+    
+    hand.id = input.getInt();
+    
+    int flags = input.getInt();
+    
+    hand.direction    = getVector(input, flags, FrameStore.HAND_DIRECTION);
+    hand.palmPosition = getVector(input, flags, FrameStore.HAND_PALM_POSITION);
+    hand.palmNormal   = getVector(input, flags, FrameStore.HAND_PALM_NORMAL);
+    hand.palmVelocity = getVector(input, flags, FrameStore.HAND_PALM_VELOCITY);
+    hand.basis        = getBasis(input, flags, HAND_BASIS);
+    hand.isLeft       = (flags & FrameStore.HAND_LEFT)  != 0;
+    hand.isRight      = (flags & FrameStore.HAND_RIGHT) != 0;
+    
+    if ((flags & FrameStore.HAND_FINGERS) != 0)
+    {
+      int count = flags >>> COUNT_SHIFT;
+      
+      hand.fingers = new ArrayList<Finger>(count);
+      for (int i = 0; i < count; i++)
+        hand.fingers.add(getFinger(input));
+    }
+    
+    return hand;
+  }
+  
+  
+  
+  private static Finger getFinger(ByteBuffer input)
+  {
+    Finger finger = new Finger();
+    
+    finger.id = input.getInt();
+    
+    int flags = input.getInt();
+    
+    finger.direction   = getVector(input, flags, FrameStore.FINGER_DIRECTION);
+    finger.tipPosition = getVector(input, flags, FrameStore.FINGER_TIP_POSITION);
+    finger.tipVelocity = getVector(input, flags, FrameStore.FINGER_TIP_VELOCITY);
+    
+    if ((flags & FrameStore.FINGER_BONES) != 0)
+    {
+      int count = flags >>> COUNT_SHIFT;
+      
+      finger.bones = new Bone[count];
+      for (int i = 0; i < count; i++)
+        finger.bones[i] = getBone(input);
+    }
+    
+    return finger;
+  }
+  
+  
+  
+  private static Bone getBone(ByteBuffer input)
+  {
+    Bone bone  = new Bone();
+    int  flags = input.getInt();
+    
+    bone.type      = ((flags & FrameStore.BONE_TYPE) != 0 ? TYPES[flags >>> TYPE_SHIFT] : null);
+    bone.length    = input.getFloat();
+    bone.width     = input.getFloat();
+    bone.direction = getVector(input, flags, FrameStore.BONE_DIRECTION);
+    bone.center    = getVector(input, flags, FrameStore.BONE_CENTER);
+    bone.nextJoint = getVector(input, flags, FrameStore.BONE_NEXT_JOINT);
+    bone.prevJoint = getVector(input, flags, FrameStore.BONE_PREV_JOINT);
+    bone.basis     = getBasis(input, flags, BONE_BASIS);
+    
+    return bone;
+  }
+  
+  
+  
+  private static Basis getBasis(ByteBuffer input, int flags, int flag)
+  {
+    if ((flags & flag) == 0)
+      return null;
+    
+    Basis basis = new Basis();
+    
+    basis.origin = getVector(input);
+    basis.xBasis = getVector(input);
+    basis.yBasis = getVector(input);
+    basis.zBasis = getVector(input);
+    return basis;
+  }
+  
+  
+  
+  /** @return The next vector if <code>flag</code> is set in <code>flags</code>, or else <code>null</code>. */
+  private static float[] getVector(ByteBuffer input, int flags, int flag)
+  {
+    return ((flags & flag) != 0 ? getVector(input) : null);
+  }
+  
+  
+  
+  private static float[] getVector(ByteBuffer input)
+  {
+    return new float[] { input.getFloat(), input.getFloat(), input.getFloat() };
+  }
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright (c) 2014 Jakob Hjelm 
+ */
+package komposten.leap.data;
+
+import java.util.ArrayList;
+
+import com.leapmotion.leap.Bone.Type;
+
+/**
+ * Generates frames of hands moving smoothly in front of the controller, so
+ * that recording can be run and measured without a device.
+ * <br />Every value is a function of the frame number only (computed with
+ * <code>StrictMath</code>), so the same settings always give exactly the
+ * same frames, on any machine. Each hand sways along its
+ * own curve and slowly turns, its fingers curl and stretch, and the bones,
+ * bases and velocities match the positions (velocities are the derivatives
+ * of the positions, bone lengths and widths never change), so the frames
+ * compress about as well as real ones.
+ * <br />Frames are delivered at the given rate, or as fast as the listener
+ * takes them if the rate is 0.
+ * @author Komposten (aka Jakob Hjelm)
+ */
+class SyntheticFrameSource extends PacedFrameSource
+{
+  /** The frame rate that sets the speed of the motion when delivering as fast as possible. */
+  private static final double MOTION_FPS = 100;
+  /** The time step used to find tip velocities. */
+  private static final double STEP       = 1e-3;
+  
+  private static final Type[]     BONE_TYPES    = Type.values();
+  /** The sideways offset of each finger from the middle of the palm, for a right hand. */
+  private static final double[]   FINGER_OFFSET = { -45, -22, 0, 20, 38 };
+  /** The length of each bone of each finger, from metacarpal to distal. */
+  private static final double[][] BONE_LENGTH   = {
+      { 0, 46, 32, 24 }, { 68, 40, 23, 17 }, { 65, 45, 27, 18 }, { 61, 42, 26, 18 }, { 56, 33, 19, 16 } };
+  private static final double[]   BONE_WIDTH    = { 20, 18, 17.5, 17, 15.5 };
+  
+  private double  fps_;
+  private int     handCount_;
+  private boolean bones_;
+  
+  private CaptureProfile profile_;
+  private long           frameNumber_;
+  
+  
+  
+  /**
+   * @param fps The number of frames per second, or 0 to deliver them as fast
+   *          as possible.
+   * @param handCount The number of hands in each frame.
+   * @param bones If bones should be generated (when the profile includes
+   *          them).
+   */
+  public SyntheticFrameSource(double fps, int handCount, boolean bones)
+  {
+    if (fps < 0)
+      throw new IllegalArgumentException("The frame rate can not be negative!");
+    if (handCount < 0)
+      throw new IllegalArgumentException("The hand count can not be negative!");
+    
+    fps_       = fps;
+    handCount_ = handCount;
+    bones_     = bones;
+  }
+  
+  
+  
+  @Override
+  protected String describe()
+  {
+    return "Synthetic source: " + (fps_ > 0 ? fps_ + " fps" : "max speed") + ", " + handCount_ + " hands"
+        + (bones_ ? "" : ", no bones") + ".";
+  }
+  
+  
+  
+  @Override
+  protected void begin(CaptureProfile profile)
+  {
+    profile_     = profile;
+    frameNumber_ = 0;
+  }
+  
+  
+  
+  @Override
+  protected FrameData next()
+  {
+    return generate(frameNumber_++);
+  }
+  
+  
+  
+  @Override
+  protected long dueNanos(FrameData frame, long index)
+  {
+    return (fps_ > 0 ? (long) (index * 1e9 / fps_) : 0);
+  }
+  
+  
+  
+  @Override
+  protected void end()
+  {
+  }
+  
+  
+  
+  /** Generates frame number <code>number</code> (counting from 0). */
+  FrameData generate(long number)
+  {
+    double    time  = number / (fps_ > 0 ? fps_ : MOTION_FPS);
+    FrameData frame = new FrameData();
+    
+    frame.frameId   = number + 1;
+    frame.timestamp = Math.round(time * 1e6);
+    frame.hands     = new ArrayList<Hand>(handCount_);
+    
+    for (int i = 0; i < handCount_; i++)
+      frame.hands.add(generateHand(i, time));
+    
+    return frame;
+  }
+  
+  
+  
+  private Hand generateHand(int index, double time)
+  {
+    Hand     hand     = new Hand();
+    double   side     = (index % 2 == 0 ? -1 : 1);
+    double   phase    = index * 0.7;
+    double[] palm     = palmPosition(index, time);
+    double[] rotation = rotation(side, phase, time);
+    
+    hand.id           = index + 1;
+    hand.isLeft       = (side < 0);
+    hand.isRight      = (side > 0);
+    hand.palmPosition = toFloats(palm);
+    hand.direction    = toFloats(transform(rotation, 0, 0, -1));
+    hand.palmNormal   = toFloats(transform(rotation, 0, -1, 0));
+    
+    if (profile_.captures(CaptureProfile.VELOCITIES))
+    {
+      double[] next = palmPosition(index, time + STEP);
+      hand.palmVelocity = toFloats(difference(next, palm));
+    }
+    if (profile_.captures(CaptureProfile.BASES))
+      hand.basis = basis(rotation, side, 0, hand.palmPosition);
+    
+    if (profile_.captures(CaptureProfile.FINGERS))
+    {
+      hand.fingers = new ArrayList<Finger>(FINGER_OFFSET.length);
+      for (int i = 0; i < FINGER_OFFSET.length; i++)
+        hand.fingers.add(generateFinger(index, i, time, palm, rotation));
+    }
+    
+    return hand;
+  }
+  
+  
+  
+  private Finger generateFinger(int handIndex, int index, double time, double[] palm, double[] rotation)
+  {
+    Finger     finger = new Finger();
+    double     side   = (handIndex % 2 == 0 ? -1 : 1);
+    double     phase  = handIndex * 0.7;
+    double     curl   = curl(index, phase, time);
+    double[][] joints = joints(index, side, curl);
+    double[]   tip    = add(palm, transform(rotation, joints[4]));
+    
+    finger.id          = (handIndex + 1) * 10 + index;
+    finger.tipPosition = toFloats(tip);
+    finger.direction   = toFloats(transform(rotation, 0, -StrictMath.sin(curl * 3), -StrictMath.cos(curl * 3)));
+    
+    if (profile_.captures(CaptureProfile.VELOCITIES))
+    {
+      double[] nextPalm     = palmPosition(handIndex, time + STEP);
+      double[] nextRotation = rotation(side, phase, time + STEP);
+      double[] nextJoint    = joints(index, side, curl(index, phase, time + STEP))[4];
+      
+      finger.tipVelocity = toFloats(difference(add(nextPalm, transform(nextRotation, nextJoint)), tip));
+    }
+    
+    if (bones_ && profile_.captures(CaptureProfile.BONES))
+    {
+      finger.bones = new Bone[BONE_TYPES.length];
+      for (int i = 0; i < BONE_TYPES.length; i++)
+      {
+        double   boneAngle = curl * i;
+        double[] prev      = add(palm, transform(rotation, joints[i]));
+        double[] next      = add(palm, transform(rotation, joints[i + 1]));
+        Bone     bone      = new Bone();
+        
+        bone.type      = BONE_TYPES[i];
+        bone.length    = (float) BONE_LENGTH[index][i];
+        bone.width     = (float) BONE_WIDTH[index];
+        bone.prevJoint = toFloats(prev);
+        bone.nextJoint = toFloats(next);
+        bone.center    = toFloats(new double[] { (prev[0] + next[0]) / 2, (prev[1] + next[1]) / 2, (prev[2] + next[2]) / 2 });
+        bone.direction = toFloats(transform(rotation, 0, -StrictMath.sin(boneAngle), -StrictMath.cos(boneAngle)));
+        
+        if (profile_.captures(CaptureProfile.BASES))
+          bone.basis = basis(rotation, side, boneAngle, bone.center);
+        
+        finger.bones[i] = bone;
+      }
+    }
+    
+    return finger;
+  }
+  
+  
+  
+  private static double[] palmPosition(int index, double time)
+  {
+    double side  = (index % 2 == 0 ? -1 : 1);
+    double phase = index * 0.7;
+    
+    return new double[] {
+        side * 80 + 60 * StrictMath.sin(0.9 * time + phase),
+        200 + 40 * StrictMath.sin(0.6 * time + 2 * phase),
+        30 * StrictMath.cos(0.45 * time + phase) };
+  }
+  
+  
+  
+  /** @return The rotation of a hand as a row-major 3x3 matrix. */
+  private static double[] rotation(double side, double phase, double time)
+  {
+    double yaw   = 0.4 * StrictMath.sin(0.5 * time + phase);
+    double pitch = 0.3 * StrictMath.sin(0.7 * time + phase);
+    double roll  = side * 0.5 * StrictMath.sin(0.3 * time + phase);
+    
+    double cy = StrictMath.cos(yaw),   sy = StrictMath.sin(yaw);
+    double cp = StrictMath.cos(pitch), sp = StrictMath.sin(pitch);
+    double cr = StrictMath.cos(roll),  sr = StrictMath.sin(roll);
+    
+    // Yaw about y, then pitch about x, then roll about z.
+    return new double[] {
+        cy * cr + sy * sp * sr, -cy * sr + sy * sp * cr, sy * cp,
+        cp * sr,                cp * cr,                 -sp,
+        -sy * cr + cy * sp * sr, sy * sr + cy * sp * cr, cy * cp };
+  }
+  
+  
+  
+  /** @return How far each joint of a finger is bent, in radians. */
+  private static double curl(int finger, double phase, double time)
+  {
+    return 0.25 + 0.2 * StrictMath.sin(1.3 * time + finger * 0.5 + phase);
+  }
+  
+  
+  
+  /**
+   * @return The five joints of a finger, from the base of the metacarpal to
+   *         the tip, relative to the palm and before the hand's rotation.
+   */
+  private static double[][] joints(int finger, double side, double curl)
+  {
+    double[][] joints = new double[5][];
+    
+    joints[0] = new double[] { side * FINGER_OFFSET[finger], 0, 30 };
+    for (int i = 0; i < 4; i++)
+    {
+      double angle  = curl * i;
+      double length = BONE_LENGTH[finger][i];
+      
+      joints[i + 1] = new double[] {
+          joints[i][0],
+          joints[i][1] - length * StrictMath.sin(angle),
+          joints[i][2] - length * StrictMath.cos(angle) };
+    }
+    
+    return joints;
+  }
+  
+  
+  
+  /**
+   * @return The basis of a hand or bone: z points backwards along the bone,
+   *         y up from the palm, and x to the side (mirrored for left hands).
+   */
+  private static Basis basis(double[] rotation, double side, double angle, float[] origin)
+  {
+    Basis basis = new Basis();
+    
+    basis.origin = origin.clone();
+    basis.xBasis = toFloats(transform(rotation, side, 0, 0));
+    basis.yBasis = toFloats(transform(rotation, 0, StrictMath.cos(angle), -StrictMath.sin(angle)));
+    basis.zBasis = toFloats(transform(rotation, 0, StrictMath.sin(angle), StrictMath.cos(angle)));
+    
+    return basis;
+  }
+  
+  
+  
+  private static double[] transform(double[] rotation, double[] vector)
+  {
+    return transform(rotation, vector[0], vector[1], vector[2]);
+  }
+  
+  
+  
+  private static double[] transform(double[] rotation, double x, double y, double z)
+  {
+    return new double[] {
+        rotation[0] * x + rotation[1] * y + rotation[2] * z,
+        rotation[3] * x + rotation[4] * y + rotation[5] * z,
+        rotation[6] * x + rotation[7] * y + rotation[8] * z };
+  }
+  
+  
+  
+  private static double[] add(double[] a, double[] b)
+  {
+    return new double[] { a[0] + b[0], a[1] + b[1], a[2] + b[2] };
+  }
+  
+  
+  
+  /** @return The change per second from <code>from</code> to <code>to</code>, one {@link #STEP} later. */
+  private static double[] difference(double[] to, double[] from)
+  {
+    return new double[] { (to[0] - from[0]) / STEP, (to[1] - from[1]) / STEP, (to[2] - from[2]) / STEP };
+  }
+  
+  
+  
+  private static float[] toFloats(double[] vector)
+  {
+    return new float[] { (float) vector[0], (float) vector[1], (float) vector[2] };
+  }
+}